@@ -0,0 +1,90 @@
+package com.ea.asiacentraltech.thoth.mongodb;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * ByteBuffer 의 일부를 복사 없이 CharSequence 로 보여준다. ( byte 1개 = char 1개, ISO-8859-1 )
+ * mongod log 의 keyword / 구분자는 ASCII 이므로 Pattern, indexOf 를 String 생성 없이 수행할 수 있다.
+ * UTF-8 문자열 값이 필요하면 decode 로 해당 구간만 String 으로 만든다.
+ */
+final class ByteCharSequence implements CharSequence {
+  private final ByteBuffer buffer;
+  private int offset;
+  private int length;
+
+  ByteCharSequence(final ByteBuffer buffer, final int offset, final int length) {
+    this.buffer = buffer;
+    this.offset = offset;
+    this.length = length;
+  }
+
+  /**
+   * 같은 buffer 의 다른 구간을 가리키도록 바꾼다. ( line 마다 객체를 만들지 않는다. )
+   */
+  ByteCharSequence reset(final int offset, final int length) {
+    this.offset = offset;
+    this.length = length;
+    return this;
+  }
+
+  @Override
+  public int length() {
+    return length;
+  }
+
+  @Override
+  public char charAt(final int index) {
+    if (index < 0 || index >= length) throw new IndexOutOfBoundsException(String.valueOf(index));
+    return (char) (buffer.get(offset + index) & 0xff);
+  }
+
+  @Override
+  public CharSequence subSequence(final int start, final int end) {
+    if (start < 0 || end > length || start > end)
+      throw new IndexOutOfBoundsException(start + ", " + end);
+    return new ByteCharSequence(buffer, offset + start, end - start);
+  }
+
+  /**
+   * [start, end) 구간을 UTF-8 로 decode 한다.
+   */
+  String decode(final int start, final int end) {
+    return new String(this.copy(start, end), StandardCharsets.UTF_8);
+  }
+
+  int indexOf(final char c, final int from) {
+    for (int i = Math.max(0, from); i < length; i++) {
+      if (buffer.get(offset + i) == (byte) c) return i;
+    }
+    return -1;
+  }
+
+  /**
+   * ASCII 문자열 s 의 위치
+   */
+  int indexOf(final String s, final int from) {
+    int max = length - s.length();
+    byte first = (byte) s.charAt(0);
+    for (int i = Math.max(0, from); i <= max; i++) {
+      if (buffer.get(offset + i) != first) continue;
+      int j = 1;
+      while (j < s.length() && buffer.get(offset + i + j) == (byte) s.charAt(j)) j++;
+      if (j == s.length()) return i;
+    }
+    return -1;
+  }
+
+  @Override
+  public String toString() {
+    return new String(this.copy(0, length), StandardCharsets.ISO_8859_1);
+  }
+
+  private byte[] copy(final int start, final int end) {
+    byte[] bytes = new byte[end - start];
+    for (int i = 0; i < bytes.length; i++) {
+      bytes[i] = buffer.get(offset + start + i);
+    }
+    return bytes;
+  }
+}
@@ -0,0 +1,158 @@
+package com.ea.asiacentraltech.thoth.mongodb;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+
+import org.bson.BsonTimestamp;
+import org.bson.Document;
+import org.bson.types.MaxKey;
+import org.bson.types.MinKey;
+import org.bson.types.ObjectId;
+
+/**
+ * sort Document ( { key : 1 | -1 } ) 와 같은 순서로 Document를 비교한다.
+ * 서로 다른 Type은 MongoDB의 BSON 비교 순서를 따른다.
+ * 배열 field 는 MongoDB 처럼 오름차순이면 가장 작은 원소, 내림차순이면 가장 큰 원소로 비교하며, 빈 배열은 null 보다 작다.
+ * 배열 안의 Document 를 지나는 path( a.b 에서 a 가 배열 )는 지원하지 않으며 null 로 본다.
+ */
+public class DocumentSortComparator implements Comparator<Document> {
+  // 빈 배열의 sort key ( undefined )
+  private static final Object EMPTY_ARRAY = new Object();
+
+  private final String[][] paths;
+  private final int[] directions;
+
+  public DocumentSortComparator(final Document sort) {
+    List<String[]> pathList = new ArrayList<>();
+    List<Integer> directionList = new ArrayList<>();
+    if (sort != null) {
+      for (Map.Entry<String, Object> entry : sort.entrySet()) {
+        Object direction = entry.getValue();
+        pathList.add(entry.getKey().split("\\."));
+        directionList.add(direction instanceof Number && ((Number) direction).intValue() < 0 ? -1 : 1);
+      }
+    }
+    this.paths = pathList.toArray(new String[0][]);
+    this.directions = new int[directionList.size()];
+    for (int i = 0; i < directions.length; i++) {
+      directions[i] = directionList.get(i);
+    }
+  }
+
+  /**
+   * 정렬 조건이 있는지 여부
+   * @return
+   */
+  public boolean isSorted() {
+    return paths.length > 0;
+  }
+
+  @Override
+  public int compare(Document o1, Document o2) {
+    for (int i = 0; i < paths.length; i++) {
+      int cmp = compareValue(sortKey(getValue(o1, paths[i]), directions[i]),
+                             sortKey(getValue(o2, paths[i]), directions[i]));
+      if (cmp != 0) return cmp * directions[i];
+    }
+    return 0;
+  }
+
+  static Object getValue(Document doc, String[] path) {
+    Object value = doc;
+    for (String key : path) {
+      if (!(value instanceof Document)) return null;
+      value = ((Document) value).get(key);
+    }
+    return value;
+  }
+
+  /**
+   * 배열이면 direction 에 따라 가장 작은 / 큰 원소, 빈 배열이면 EMPTY_ARRAY
+   */
+  static Object sortKey(Object value, int direction) {
+    if (!(value instanceof List)) return value;
+    List<?> list = (List<?>) value;
+    if (list.isEmpty()) return EMPTY_ARRAY;
+    Object key = list.get(0);
+    for (int i = 1; i < list.size(); i++) {
+      Object element = list.get(i);
+      if (compareValue(element, key) * direction < 0) key = element;
+    }
+    return key;
+  }
+
+  @SuppressWarnings({ "unchecked", "rawtypes" })
+  static int compareValue(Object v1, Object v2) {
+    int t1 = typeOrder(v1);
+    int t2 = typeOrder(v2);
+    if (t1 != t2) return Integer.compare(t1, t2);
+    if (v1 == null || v1 == EMPTY_ARRAY || v1 instanceof MinKey || v1 instanceof MaxKey) return 0;
+    if (v1 instanceof Number) {
+      Number n1 = (Number) v1;
+      Number n2 = (Number) v2;
+      if (isIntegral(n1) && isIntegral(n2)) return Long.compare(n1.longValue(), n2.longValue());
+      return Double.compare(n1.doubleValue(), n2.doubleValue());
+    }
+    if (v1 instanceof Document) {
+      return compareDocument((Document) v1, (Document) v2);
+    }
+    if (v1 instanceof List) {
+      List<Object> l1 = (List<Object>) v1;
+      List<Object> l2 = (List<Object>) v2;
+      int size = Math.min(l1.size(), l2.size());
+      for (int i = 0; i < size; i++) {
+        int cmp = compareValue(l1.get(i), l2.get(i));
+        if (cmp != 0) return cmp;
+      }
+      return Integer.compare(l1.size(), l2.size());
+    }
+    if (v1 instanceof Comparable && v1.getClass().isInstance(v2)) {
+      return ((Comparable) v1).compareTo(v2);
+    }
+    return v1.toString().compareTo(v2.toString());
+  }
+
+  private static int compareDocument(Document d1, Document d2) {
+    java.util.Iterator<Map.Entry<String, Object>> i1 = d1.entrySet().iterator();
+    java.util.Iterator<Map.Entry<String, Object>> i2 = d2.entrySet().iterator();
+    while (i1.hasNext() && i2.hasNext()) {
+      Map.Entry<String, Object> e1 = i1.next();
+      Map.Entry<String, Object> e2 = i2.next();
+      int cmp = Integer.compare(typeOrder(e1.getValue()), typeOrder(e2.getValue()));
+      if (cmp != 0) return cmp;
+      cmp = e1.getKey().compareTo(e2.getKey());
+      if (cmp != 0) return cmp;
+      cmp = compareValue(e1.getValue(), e2.getValue());
+      if (cmp != 0) return cmp;
+    }
+    return Boolean.compare(i1.hasNext(), i2.hasNext());
+  }
+
+  private static boolean isIntegral(Number n) {
+    return n instanceof Integer || n instanceof Long || n instanceof Short || n instanceof Byte;
+  }
+
+  /**
+   * BSON Type 비교 순서
+   * MinKey < ( 빈 배열 ) < Null < Numbers < String < Object < Array < BinData < ObjectId < Boolean < Date < Timestamp < MaxKey
+   */
+  private static int typeOrder(Object value) {
+    if (value instanceof MinKey) return 0;
+    if (value == EMPTY_ARRAY) return 1;
+    if (value == null) return 2;
+    if (value instanceof Number) return 3;
+    if (value instanceof String) return 4;
+    if (value instanceof Document) return 5;
+    if (value instanceof List) return 6;
+    if (value instanceof byte[] || value instanceof org.bson.types.Binary) return 7;
+    if (value instanceof ObjectId) return 8;
+    if (value instanceof Boolean) return 9;
+    if (value instanceof Date) return 10;
+    if (value instanceof BsonTimestamp) return 11;
+    if (value instanceof MaxKey) return 13;
+    return 12;
+  }
+}
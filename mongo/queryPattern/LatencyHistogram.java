@@ -0,0 +1,96 @@
+package com.ea.asiacentraltech.thoth.mongodb;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.bson.Document;
+
+/**
+ * HdrHistogram 과 같은 log-linear bucket 을 사용하는 latency histogram. ( 단위 : microseconds )
+ * 0 ~ 63us 는 1us 단위, 그 이상은 2의 거듭제곱 구간을 32개로 나누므로 상대 오차는 약 3% 이다.
+ * record 는 AtomicLongArray 의 값만 증가시키므로 Lock 과 Object 할당이 없다.
+ */
+public class LatencyHistogram {
+  private static final int LINEAR_BUCKETS = 64;
+  private static final int SUB_BUCKET_BITS = 5;
+  private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+  private static final int MIN_EXPONENT = 6;
+  private static final int MAX_EXPONENT = 40;
+  private static final int BUCKETS = LINEAR_BUCKETS + (MAX_EXPONENT - MIN_EXPONENT + 1) * SUB_BUCKETS;
+
+  private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+  private final AtomicLong totalCount = new AtomicLong();
+  private final AtomicLong totalMicros = new AtomicLong();
+  private final AtomicLong maxMicros = new AtomicLong();
+
+  public void recordNanos(final long nanos) {
+    this.record(nanos / 1000);
+  }
+
+  public void record(final long micros) {
+    long value = Math.max(0, micros);
+    counts.incrementAndGet(indexOf(value));
+    totalCount.incrementAndGet();
+    totalMicros.addAndGet(value);
+    long max = maxMicros.get();
+    while (value > max && !maxMicros.compareAndSet(max, value)) {
+      max = maxMicros.get();
+    }
+  }
+
+  public long getCount() {
+    return totalCount.get();
+  }
+
+  public long getMaxMicros() {
+    return maxMicros.get();
+  }
+
+  public long getMeanMicros() {
+    long count = totalCount.get();
+    return count == 0 ? 0 : totalMicros.get() / count;
+  }
+
+  /**
+   * @param percentile 0 ~ 100
+   * @return percentile 에 해당하는 bucket 의 상한값 (us)
+   */
+  public long getPercentileMicros(final double percentile) {
+    long count = totalCount.get();
+    if (count == 0) return 0;
+    long target = Math.max(1, (long) Math.ceil(count * percentile / 100.0));
+    long seen = 0;
+    for (int i = 0; i < BUCKETS; i++) {
+      seen += counts.get(i);
+      // 마지막 bucket 은 상한이 없으므로 최대값을 사용한다.
+      if (seen >= target) return i == BUCKETS - 1 ? maxMicros.get() : Math.min(valueOf(i), maxMicros.get());
+    }
+    return maxMicros.get();
+  }
+
+  public Document toDocument() {
+    return new Document("count", this.getCount())
+        .append("mean", this.getMeanMicros())
+        .append("p50", this.getPercentileMicros(50))
+        .append("p99", this.getPercentileMicros(99))
+        .append("p999", this.getPercentileMicros(99.9))
+        .append("max", this.getMaxMicros());
+  }
+
+  static int indexOf(final long value) {
+    if (value < LINEAR_BUCKETS) return (int) value;
+    int exponent = 63 - Long.numberOfLeadingZeros(value);
+    if (exponent > MAX_EXPONENT) return BUCKETS - 1;
+    int shift = exponent - SUB_BUCKET_BITS;
+    int sub = (int) (value >>> shift) - SUB_BUCKETS;
+    return LINEAR_BUCKETS + (exponent - MIN_EXPONENT) * SUB_BUCKETS + sub;
+  }
+
+  static long valueOf(final int index) {
+    if (index < LINEAR_BUCKETS) return index;
+    int exponent = (index - LINEAR_BUCKETS) / SUB_BUCKETS + MIN_EXPONENT;
+    long sub = (index - LINEAR_BUCKETS) % SUB_BUCKETS + SUB_BUCKETS;
+    int shift = exponent - SUB_BUCKET_BITS;
+    return ((sub + 1) << shift) - 1;
+  }
+}
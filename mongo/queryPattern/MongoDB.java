@@ -2,18 +2,21 @@ package com.ea.asiacentraltech.thoth.mongodb;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.Date;
-import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.regex.Pattern;
 
 import org.bson.Document;
+import org.bson.RawBsonDocument;
 import org.bson.types.ObjectId;
 
 import com.ea.asiacentraltech.thoth.common.Constant;
@@ -33,6 +36,7 @@ import com.mongodb.client.MongoDatabase;
 import com.mongodb.client.MongoIterable;
 import com.mongodb.client.model.FindOneAndUpdateOptions;
 import com.mongodb.client.model.IndexOptions;
+import com.mongodb.client.model.ReplaceOptions;
 import com.mongodb.client.model.ReturnDocument;
 import com.mongodb.client.model.UpdateOptions;
 import com.mongodb.client.result.UpdateResult;
@@ -43,18 +47,27 @@ import com.mongodb.client.result.UpdateResult;
  */
 public class MongoDB {
   private static final Pattern NUMERIC = Pattern.compile("[-+]?\\d*\\.?\\d+");
+  private static final String SUMMARY = MongoDBAnalysisSummary.SUMMARY;
+  private static final String SUMMARY_COLLECTION_SUFFIX = "_summary";
 	
   private List<ServerAddress> connList = new ArrayList<>();
   private MongoClient mongoClient;
+  private boolean sharedClient = false;
   private MongoDatabase db;
   private Logger logger = null;
   private MongoCredential mongoCredential;
   private boolean statusSharding = true;
-  private Map<String, String> shardingMap = new HashMap<>();
+  private MongoDBShardingCache shardingCache;
+  private MongoDBGlobalLock globalLock;
   private int shardingError = 0;
   private int initialChunksSize = ConstantMongodb.MONGODB_INITIAL_CHUNK_SIZE;
   private String nodeID = new ObjectId().toString();
+  private volatile long validatedNanos = System.nanoTime();
   private Utils utils = new Utils();
+  private MongoDBReadCache readCache;
+  private Set<String> summaryCollections = ConcurrentHashMap.newKeySet();
+  private MongoDBClientProfile clientProfile = MongoDBClientProfile.defaults();
+  private MongoDBReadRouting readRouting = new MongoDBReadRouting();
 
   /**
    * mongo DB Connect
@@ -62,19 +75,52 @@ public class MongoDB {
    * @throws Exception
    */
   private void connect() {
+    if (sharedClient)
+      throw new MyOwnRuntimeException("shared MongoClient can not reconnect");
     if (mongoClient != null)
       mongoClient.close();
 
     if (mongoCredential != null) {
-      mongoClient = new MongoClient(connList, Arrays.asList(mongoCredential));
+      mongoClient = new MongoClient(connList, Arrays.asList(mongoCredential), readRouting.apply(clientProfile.toOptions()));
     } else {
-      mongoClient = new MongoClient(connList);
+      mongoClient = new MongoClient(connList, readRouting.apply(clientProfile.toOptions()));
     }
     db = this.getDatabase(ConstantMongodb.DATABASE_ADMIN);
+    String clusterKey = getClusterKey(connList);
+    shardingCache = MongoDBShardingCache.of(clusterKey);
+    globalLock = MongoDBGlobalLock.of(clusterKey);
     this.setDefaultParameter();
     this.checkSharding();
   }
 
+  /**
+   * 같은 MongoClient를 공유하는 MongoDB Handle을 생성한다.
+   * 접속, setDefaultParameter, checkSharding 은 이미 수행되었으므로 다시 하지 않는다.
+   * Handle을 close 해도 공유된 MongoClient는 닫히지 않는다.
+   * 
+   * @return MongoDB
+   */
+  MongoDB newHandle() {
+    if (mongoClient == null)
+      throw new MyOwnRuntimeException("MongoClient is not connected");
+    MongoDB handle = new MongoDB();
+    handle.logger = this.logger;
+    handle.connList = this.connList;
+    handle.mongoCredential = this.mongoCredential;
+    handle.mongoClient = this.mongoClient;
+    handle.sharedClient = true;
+    handle.statusSharding = this.statusSharding;
+    handle.shardingCache = this.shardingCache;
+    handle.globalLock = this.globalLock;
+    handle.initialChunksSize = this.initialChunksSize;
+    handle.readCache = this.readCache;
+    handle.summaryCollections = this.summaryCollections;
+    handle.clientProfile = this.clientProfile;
+    handle.readRouting = this.readRouting;
+    handle.db = handle.getDatabase(ConstantMongodb.DATABASE_ADMIN);
+    return handle;
+  }
+
   /**
    * MongoDB에 대해서 Parameter 설정을 한다.
    * 
@@ -127,9 +173,57 @@ public class MongoDB {
    * @throws Exception
    */
   public void multiConn(final String hostAddress) {
+    connList = parseHosts(hostAddress);
+    this.connect();
+  }
+
+  /**
+   * database Multi connect
+   * 
+   * @param hostAddress
+   * @param profile MongoClient 설정
+   */
+  public void multiConn(final String hostAddress, final MongoDBClientProfile profile) {
+    this.setClientProfile(profile);
+    this.multiConn(hostAddress);
+  }
+
+  /**
+   * 이후 접속( 재접속 포함 )에 사용할 MongoClient 설정. null 이면 driver 기본값
+   * 
+   * @param profile
+   */
+  public void setClientProfile(final MongoDBClientProfile profile) {
+    this.clientProfile = profile == null ? MongoDBClientProfile.defaults() : profile;
+  }
+
+  public MongoDBClientProfile getClientProfile() {
+    return clientProfile;
+  }
+
+  /**
+   * 읽기 routing. 이후 접속( 재접속 포함 )한 MongoClient 의 member latency 를 추적한다.
+   * 
+   * @param readRouting
+   */
+  public void setReadRouting(final MongoDBReadRouting readRouting) {
+    this.readRouting = readRouting == null ? new MongoDBReadRouting() : readRouting;
+  }
+
+  public MongoDBReadRouting getReadRouting() {
+    return readRouting;
+  }
+
+  /**
+   * "mongodb://host:port,host:port" 형식의 주소를 ServerAddress 목록으로 변환한다.
+   * 
+   * @param hostAddress
+   * @return List<ServerAddress>
+   */
+  static List<ServerAddress> parseHosts(final String hostAddress) {
     if (hostAddress == null)
       throw new NullPointerException("mongoDB Server");
-    connList = new ArrayList<>();
+    List<ServerAddress> hostList = new ArrayList<>();
     String[] hosts = hostAddress.replaceAll("mongodb://", "").split(",");
 
     String hostName;
@@ -142,16 +236,30 @@ public class MongoDB {
       hostName = hostInfo[0];
       try {
         hostPort = Integer.parseInt(hostInfo[1]);
-        connList.add(new ServerAddress(hostName, hostPort));
+        hostList.add(new ServerAddress(hostName, hostPort));
       } catch (NumberFormatException e) {
         // ignore
       }
     }
-    if (connList.isEmpty())
+    if (hostList.isEmpty())
       throw new NullPointerException("mongoDB Server");
-    java.util.Collections.shuffle(connList);
+    java.util.Collections.shuffle(hostList);
+    return hostList;
+  }
 
-    this.connect();
+  /**
+   * 접속 순서와 관계없이 같은 cluster 에 대해 같은 값을 반환한다.
+   * 
+   * @param hostList
+   * @return
+   */
+  static String getClusterKey(final List<ServerAddress> hostList) {
+    List<String> hosts = new ArrayList<>();
+    for (ServerAddress address : hostList) {
+      hosts.add(address.toString());
+    }
+    java.util.Collections.sort(hosts);
+    return String.join(",", hosts);
   }
 
   /**
@@ -163,8 +271,6 @@ public class MongoDB {
    * @throws Exception
    */
   public void setDB(final String database) {
-    this.keepAlive();
-
     if (this.getDB().equals(database))
       return;
     this.db = this.getDatabase(database);
@@ -198,57 +304,39 @@ public class MongoDB {
    * @throws Exception
    */
   public int docInsert(final String collName, final Document doc) {
-    int rtn = 0;
-    MongoCollection<Document> coll = this.getCollectionPrimary(collName).withWriteConcern(WriteConcern.ACKNOWLEDGED);
-    try {
-      coll.insertOne(doc);
-    } catch (MongoException ex) {
-      rtn = ex.getCode();
-    } catch (IllegalArgumentException e) {
-      try {
-        coll.insertOne(replaceIllegalArgumentException(doc));
-      } catch (MongoException ex) {
-        rtn = ex.getCode();
-      }
-    }
-    return rtn;
+    return this.docInsert(this.getCollectionPrimary(collName), doc);
   }
 
   /**
-   * replaceIllegalArgumentException이 발생되는 Key 이름에 . 이 붙는 경우는 _로 치환한다.
+   * Document Insert
    * 
+   * @param dbName
+   * @param collName
    * @param doc
-   * @return
+   * @return 0 : 성공, 그 외 : MongoException code
    */
-  private Document replaceIllegalArgumentException(Document doc) {
-    Document chgDoc = new Document();
-    String chgKey = "";
-
-    for (Map.Entry<String, Object> entry : doc.entrySet()) {
-      String key = entry.getKey();
-      Object value = entry.getValue();
-
-      chgKey = key;
-      if (value instanceof Document) {
-        doc.put(key, replaceIllegalArgumentException((Document) value));
-      } else if (value instanceof List) {
-        @SuppressWarnings("unchecked")
-        List<Document> docList = (List<Document>) doc.get(key);
-        for (int i = 0; i < docList.size(); i++) {
-          if (docList.get(i) instanceof Document) {
-            docList.set(i, replaceIllegalArgumentException((Document) docList.get(i)));
-          }
-        }
-      }
+  public int docInsert(final String dbName, final String collName, final Document doc) {
+    return this.docInsert(this.getCollectionPrimary(dbName, collName), doc);
+  }
 
-      if (key.contains("."))
-        chgKey = key.replaceAll("\\.", "_");
-      if (key.contains("$"))
-        chgKey = key.replaceAll("\\$", "_");
-      chgDoc.append(chgKey, doc.get(key));
+  /**
+   * Key에 . 또는 $ 가 있으면 _ 로 치환한 뒤 Insert 한다. ( MongoDBKeySanitizer )
+   * 
+   * @param collection
+   * @param doc
+   * @return 0 : 성공, 그 외 : MongoException code
+   */
+  private int docInsert(final MongoCollection<Document> collection, final Document doc) {
+    int rtn = 0;
+    MongoCollection<Document> coll = collection.withWriteConcern(WriteConcern.ACKNOWLEDGED);
+    try {
+      coll.insertOne(MongoDBKeySanitizer.sanitize(doc));
+    } catch (MongoException ex) {
+      rtn = ex.getCode();
+    } finally {
+      this.invalidateReadCache(collection);
     }
-
-    return chgDoc;
+    return rtn;
   }
 
   /**
@@ -259,7 +347,7 @@ public class MongoDB {
    * @return
    */
   public MongoCollection<Document> getCollection(final String collName) {
-    return this.getCollection(db, collName, ReadPreference.secondaryPreferred());
+    return this.getCollection(db, collName, readRouting.resolve(db.getName(), collName));
   }
 
   public MongoCollection<Document> getCollectionPrimary(final String collName) {
@@ -274,13 +362,43 @@ public class MongoDB {
    * @return
    */
   public MongoCollection<Document> getCollection(final String dbName, final String collName) {
-    return this.getCollection(this.getDatabase(dbName), collName, ReadPreference.secondaryPreferred());
+    return this.getCollection(this.getDatabase(dbName), collName, readRouting.resolve(dbName, collName));
+  }
+
+  /**
+   * Database의 Collection을 반환한다.
+   * 
+   * @param dbName
+   * @param collName
+   * @param readPreference null 이면 MongoDBReadRouting 의 설정
+   * @return
+   */
+  public MongoCollection<Document> getCollection(final String dbName, final String collName,
+      final ReadPreference readPreference) {
+    if (readPreference == null) return this.getCollection(dbName, collName);
+    return this.getCollection(this.getDatabase(dbName), collName, readPreference);
   }
 
   public MongoCollection<Document> getCollectionPrimary(final String dbName, final String collName) {
     return this.getCollection(this.getDatabase(dbName), collName, ReadPreference.primary());
   }
 
+  /**
+   * 결과를 RawBsonDocument 로 받는 Collection. field 는 읽을 때 decode 된다. ( MongoDBRawDocuments )
+   * 
+   * @param dbName
+   * @param collName
+   * @return
+   */
+  public MongoCollection<RawBsonDocument> getRawCollection(final String dbName, final String collName) {
+    return this.getCollection(dbName, collName).withDocumentClass(RawBsonDocument.class);
+  }
+
+  public MongoCollection<RawBsonDocument> getRawCollection(final String dbName, final String collName,
+      final ReadPreference readPreference) {
+    return this.getCollection(dbName, collName, readPreference).withDocumentClass(RawBsonDocument.class);
+  }
+
   private MongoCollection<Document> getCollection(final MongoDatabase database, final String collName,
       final ReadPreference mode) {
     return database.getCollection(collName).withReadPreference(mode);
@@ -291,6 +409,11 @@ public class MongoDB {
   }
 
   public Set<String> getDatabaseNames() {
+    if (readCache == null) return this.listDatabaseNames();
+    return new HashSet<>(readCache.get(null, null, "listDatabaseNames", this::listDatabaseNames));
+  }
+
+  private Set<String> listDatabaseNames() {
     HashSet<String> databaseNames = new HashSet<>();
     MongoIterable<String> databases = mongoClient.listDatabaseNames();
     for (String databaseName : databases) {
@@ -320,7 +443,9 @@ public class MongoDB {
    * @return
    */
   public Document docFindOne(final String dbName, final String collName, final Document query) {
-    return this.getCollection(dbName, collName).find(query).first();
+    if (readCache == null) return this.getCollection(dbName, collName).find(query).first();
+    return readCache.get(dbName, collName, MongoDBReadCache.key("findOne", query),
+        () -> this.getCollection(dbName, collName).find(query).first());
   }
 
   /**
@@ -333,7 +458,9 @@ public class MongoDB {
    * @return
    */
   public Document docFindOne(final String dbName, final String collName, final Document query, final Document fields) {
-    return this.getCollection(dbName, collName).find(query).projection(fields).first();
+    if (readCache == null) return this.getCollection(dbName, collName).find(query).projection(fields).first();
+    return readCache.get(dbName, collName, MongoDBReadCache.key("findOne", query, fields),
+        () -> this.getCollection(dbName, collName).find(query).projection(fields).first());
   }
 
   /**
@@ -396,6 +523,8 @@ public class MongoDB {
       rtnResult.setExCode(ex.getCode());
       rtnResult.setExMessage(ex.getMessage());
       return rtnResult;
+    } finally {
+      this.invalidateReadCache(collection);
     }
 
     return rtnResult;
@@ -423,7 +552,7 @@ public class MongoDB {
   }
   
   public boolean isSharding(final String dbName, final String collName) {
-    return this.shardingMap.containsKey(collName) && shardingMap.get(collName).equals(dbName);
+    return this.shardingCache.contains(dbName, collName);
   }
 
   private Document runCommand(MongoDatabase db, final Document cmd) {
@@ -458,12 +587,14 @@ public class MongoDB {
     } else if (collStatus == ConstantMongodb.STATUS_COLLECTION_PROGRESS) {
       this.waitShardingTransaction(dbName, collName, collStatus);
     }
-    this.shardingMap.put(collName, dbName);
+    this.shardingCache.put(dbName, collName);
     return this.getCollectionStatus(dbName, collName) != ConstantMongodb.STATUS_COLLECTION_DONE;
   }
   /**
    * Sharding 처리상태가 STATUS_COLLECTION_PROGRESS 일때,
    * 일정 시간동안 대기함으로써 Sharding 처리 중에 Insert Opertaion이 충돌되지 않도록 한다.
+   * meta.logdbs 변경 알림( MongoDBShardingCache )을 받으면 바로 상태를 다시 확인하며,
+   * 알림이 없으면 최대 500ms 간격의 backoff 로 확인한다.
    * 최대 1분을 대기하며, 1분이 초과될 경우 무시하고 진행한다. 
    * @param dbName
    * @param collName
@@ -471,18 +602,21 @@ public class MongoDB {
    */
   private void waitShardingTransaction(final String dbName, final String collName, int status) {
     long startTs = new Date().getTime();
+    long backoff = 50;
     while(true) {
-      try {
-        Thread.sleep(500);
-      } catch (InterruptedException e) {
-        Thread.currentThread().interrupt();
-        return;
-      }
+      long generation = shardingCache.generation();
       if (this.getCollectionStatus(dbName, collName) == ConstantMongodb.STATUS_COLLECTION_DONE) return;
       if (new Date().getTime() - startTs > ConstantMongodb.MONGODB_SHARDING_WAIT_TIME) {
         this.ignoreCollectionStatus(dbName, collName);
         return;
       }
+      try {
+        if (!shardingCache.awaitChange(generation, MongoDBChangeSignal.jitter(backoff)))
+          backoff = Math.min(backoff * 2, 500);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        return;
+      }
     }
   }
   /**
@@ -530,14 +664,19 @@ public class MongoDB {
   
   /**
    * Database Sharding 이 완료되었을때 후처리
+   * lease 의 fence 를 함께 기록하고, 더 큰 fence 로 기록된 Document 는 변경하지 않는다.
    * 
    * @param database
+   * @return lease 를 빼앗겨 기록하지 못했으면 false
    */
-  private void afterSharding(final String dbName, final String collName, final boolean ok) {
+  private boolean afterSharding(final String dbName, final String collName, final boolean ok, final MongoDBGlobalLock.Lease lease) {
     Document query = new Document(ConstantMongodb.ID, this.getShardingID(dbName, collName));
     query.append(ConstantMongodb.KEY_META_LOGDBS_NODE, nodeID);
     Document fields = new Document(ConstantMongodb.KEY_META_LOGDBS_STATUS, ok ? ConstantMongodb.STATUS_COLLECTION_DONE : ConstantMongodb.STATUS_COLLECTION_NOT_EXISTS );
-    this.getCollectionPrimary(ConstantMongodb.DATABASE_META, ConstantMongodb.COLLECTION_META_LOGDBS).updateOne(query, new Document("$set", fields));
+    MongoDBGlobalLock.fenced(query, lease);
+    fields.append(MongoDBGlobalLock.KEY_FENCE, lease.getFence());
+    return this.getCollectionPrimary(ConstantMongodb.DATABASE_META, ConstantMongodb.COLLECTION_META_LOGDBS)
+               .updateOne(query, new Document("$set", fields)).getMatchedCount() > 0;
   }
 
   /**
@@ -564,6 +703,11 @@ public class MongoDB {
         ConstantMongodb.COLLECTION_META_LOGDBS);
     logdbsColl.deleteOne(new Document().append(ConstantMongodb.KEY_META_LOGDBS_DATABASE, database));
     this.getDatabase(database).drop();
+    this.shardingCache.invalidateDatabase(database);
+    if (readCache != null) {
+      readCache.invalidate(ConstantMongodb.DATABASE_META, ConstantMongodb.COLLECTION_META_LOGDBS);
+      readCache.invalidateDatabase(database);
+    }
   }
 
   /**
@@ -574,6 +718,8 @@ public class MongoDB {
    */
   public void dropCollection(final String database, final String collName) {
     this.getCollectionPrimary(database, collName).drop();
+    this.shardingCache.invalidate(database, collName);
+    if (readCache != null) readCache.invalidateDatabase(database);
   }
 
   /**
@@ -613,13 +759,43 @@ public class MongoDB {
    * @throws Exception
    */
   public void keepAlive() {
-    if (!this.runCommand("admin", new Document("ping", 1)).getBoolean(ConstantMongodb.COMMAND_OK, false)) {
+    if (!this.ping()) {
+      // 공유된 MongoClient는 driver가 재접속을 담당한다.
+      if (sharedClient)
+        throw new MyOwnRuntimeException("keepAlive Fail");
       this.connect();
       if (mongoClient.getAddress() == null)
         throw new MyOwnRuntimeException("keepAlive Fail");
+      validatedNanos = System.nanoTime();
     }
   }
 
+  /**
+   * admin ping. 재접속하지 않으며, 성공하면 마지막 확인 시각을 갱신한다.
+   * 
+   * @return 응답이 ok 이면 true
+   */
+  public boolean ping() {
+    try {
+      if (!this.runCommand(ConstantMongodb.DATABASE_ADMIN, new Document("ping", 1)).getBoolean(ConstantMongodb.COMMAND_OK, false))
+        return false;
+    } catch (MongoException e) {
+      logger.log(Level.FINE, "ping Fail {0}", e.getMessage());
+      return false;
+    }
+    validatedNanos = System.nanoTime();
+    return true;
+  }
+
+  /**
+   * 마지막으로 접속 상태를 확인한 뒤 지난 시간
+   * 
+   * @return millis
+   */
+  public long getValidatedAgeMillis() {
+    return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - validatedNanos);
+  }
+
   /**
    * Collection Sharding
    * @param collName
@@ -629,14 +805,36 @@ public class MongoDB {
     if (ConstantMongodb.DATABASE_META.equals(dbName) || ConstantMongodb.DATABASE_ADMIN.equals(dbName))
       return;
     if (this.isSharding(dbName, collName)) return;
+    this.shardingCache.watch(this.getCollection(ConstantMongodb.DATABASE_META, ConstantMongodb.COLLECTION_META_LOGDBS), logger);
     MongoCollection<Document> coll = db.getCollection(collName);
     this.enableSharding(dbName);
     if (this.checkCollection(dbName, collName)) {
-      this.waitGlobalLock(ConstantJob.MONGODB_SHARDING, ConstantMongodb.MONGODB_SHARDING_LOCK_IGNORE_SEC);
-      this.ensureSharding(dbName, collName);
-      this.ensureIndex(collName, coll);
-      this.afterSharding(dbName, collName, true);
-      this.terminateGlobalLock(ConstantJob.MONGODB_SHARDING);
+      MongoDBGlobalLock.Lease lease = this.waitGlobalLock(ConstantJob.MONGODB_SHARDING, ConstantMongodb.MONGODB_SHARDING_LOCK_IGNORE_SEC);
+      // interrupt 되어 lock 을 얻지 못했으면 아무것도 쓰지 않는다. ( 다음 호출에서 다시 시도 )
+      if (lease == null) return;
+      boolean held;
+      try {
+        held = this.ensureSharding(dbName, collName, lease);
+        if (held && !this.afterSharding(dbName, collName, true, lease)) {
+          logger.log(Level.WARNING, "sharding lease lost before meta update : {0}.{1} fence {2}",
+              new Object[] { dbName, collName, lease.getFence() });
+          held = false;
+        }
+      } finally {
+        // token 이 일치할 때만 해제되므로 다른 Node 가 획득한 lock 은 건드리지 않는다.
+        globalLock.release(this.getDailyJobCollection(), lease);
+      }
+      // lease 를 빼앗겼으면 새 보유자가 마무리한다.
+      if (!held) return;
+      // Index 생성은 lock 을 잡고 있을 필요가 없으므로 해제 후 background 로 수행한다.
+      this.ensureIndex(collName, coll).whenComplete((created, e) -> {
+        if (e != null) {
+          logger.log(Level.WARNING, "[Exception] ensureIndex Fail : {0}.{1} \n{2}", new Object[] { dbName, collName, e });
+        } else if (created > 0) {
+          logger.log(Level.FINE, "ensureIndex : {0}.{1} created {2}", new Object[] { dbName, collName, created });
+        }
+      });
+      this.shardingCache.put(dbName, collName);
       this.shardingError = 0;
     }
   }
@@ -648,41 +846,48 @@ public class MongoDB {
    * Collection Hash Sharding
    * @param dbName
    * @param collName
-   * @param threadName
+   * @param lease shardCollection 을 보내기 전마다 아직 보유중인지 확인한다. ( admin command 는 조건부로 보낼 수 없음 )
+   * @return lease 를 빼앗겼으면 false
    */
-  private void ensureSharding(final String dbName, final String collName) {
+  private boolean ensureSharding(final String dbName, final String collName, final MongoDBGlobalLock.Lease lease) {
     if (!statusSharding) {
-      return;
+      return true;
     }
     Document cmd = new Document();
     cmd.append("shardCollection", new StringBuilder(dbName).append(".").append(collName).toString());
     cmd.append("key", new Document(ConstantMongodb.ID, "hashed")).append("numInitialChunks", this.initialChunksSize);
     int reTryCount = 0;
     while (true) {
+      if (!globalLock.isHeld(this.getDailyJobCollection(), lease)) {
+        logger.log(Level.WARNING, "sharding lease lost : {0}.{1} fence {2}", new Object[] { dbName, collName, lease.getFence() });
+        return false;
+      }
       Document databaseResult = this.runCommand(ConstantMongodb.DATABASE_ADMIN, cmd);
       if (!databaseResult.getBoolean(ConstantMongodb.COMMAND_OK, false)) {
         int exceptionCode = databaseResult.getInteger(ConstantMongodb.COMMAND_CODE, 0);
         if (exceptionCode == ConstantMongodb.ERROR_COLLECTION_ALREADY_SHARED
             || exceptionCode == ConstantMongodb.ERROR_DB_DOSE_NOT_HAVE_SHARDING_ENABLED
             || exceptionCode == ConstantMongodb.ERROR_COLLECTION_SHARDING_ALREADY_ENABLED) {
-          return;
+          return true;
         } else {
           logger.log(Level.WARNING, "[Exception] shardCollection Fail-{3} : {0}.{1} [{2}] \n {4}",
               new Object[] { dbName, collName, exceptionCode, reTryCount, databaseResult.toString() });
         }
       } else {
-        return;
+        return true;
       }
-      if (++reTryCount > 10) return;
+      if (++reTryCount > 10) return true;
     }
   }
 
   /**
    * ensureIndex
+   * meta.indexes 에 정의된 Index 중 없는 것만 background 로 생성한다. ( MongoDBIndexProvisioner )
    * @param collName
    * @param coll
+   * @return 생성한 Index 수
    */
-  private void ensureIndex(final String collName, MongoCollection<Document> coll) {
+  private CompletableFuture<Integer> ensureIndex(final String collName, MongoCollection<Document> coll) {
     MongoCursor<Document> cursor = this.getCollection(ConstantMongodb.DATABASE_META,
                                                       ConstantMongodb.COLLECTION_META_INDEXES)
                                        .find(new Document(ConstantMongodb.KEY_META_LOGDBS_COLLECTION, collName))
@@ -692,7 +897,8 @@ public class MongoDB {
     while (cursor.hasNext()) {
       docList.add(cursor.next());
     }
-    if (docList.isEmpty()) return;
+    if (docList.isEmpty()) return CompletableFuture.completedFuture(0);
+    MongoDBIndexProvisioner provisioner = new MongoDBIndexProvisioner(logger);
     String indexName = null;
     for (Document doc : docList) {
       IndexOptions idxOption = new IndexOptions();
@@ -709,8 +915,9 @@ public class MongoDB {
           continue;
         }
       }
-      this.createIndex(coll, (Document) keys, idxOption);
+      provisioner.add(coll, (Document) keys, idxOption);
     }
+    return provisioner.provisionAsync();
   }
 
   /**
@@ -760,7 +967,9 @@ public class MongoDB {
    * @return
    */
   public Set<String> getCollcetions(final String dbName) {
-    return this.listCollectionNames(this.getDatabase(dbName));
+    if (readCache == null) return this.listCollectionNames(this.getDatabase(dbName));
+    return new HashSet<>(readCache.get(dbName, null, "listCollectionNames",
+        () -> this.listCollectionNames(this.getDatabase(dbName))));
   }
   private Set<String> listCollectionNames(MongoDatabase database) {
     Set<String> result = new HashSet<>();
@@ -896,39 +1105,38 @@ public class MongoDB {
    * 기본 Meta Index를 생성한다.
    */
   public void createDefMetaIndex() {
-    MongoCollection<Document> targetColl = null;
+    MongoDBIndexProvisioner provisioner = new MongoDBIndexProvisioner(logger);
 
     // filesystems
-    targetColl = this.getCollectionPrimary(ConstantMongodb.DATABASE_META, ConstantMongodb.COLLECTION_META_FILESYSTEM);
-    this.createIndex(targetColl, new Document("no", 1));
+    MongoCollection<Document> targetColl = this.getCollectionPrimary(ConstantMongodb.DATABASE_META,
+        ConstantMongodb.COLLECTION_META_FILESYSTEM);
+    provisioner.add(targetColl, new Document("no", 1));
+    provisioner.add(targetColl, new Document("path", 1));
 
     // fileinfos
     targetColl = this.getCollectionPrimary(ConstantMongodb.DATABASE_META, ConstantMongodb.COLLECTION_META_FILEINFO);
-    this.createIndex(targetColl, new Document("fileinfo.database", 1));
-    this.createIndex(targetColl, new Document("fileinfo.collection", 1));
+    provisioner.add(targetColl, new Document("fileinfo.database", 1));
+    provisioner.add(targetColl, new Document("fileinfo.collection", 1));
 
     // fileindexes
     targetColl = this.getCollectionPrimary(ConstantMongodb.DATABASE_META, ConstantMongodb.COLLECTION_META_FILEINDEXES);
-    this.createIndex(targetColl, new Document("coll", 1));
-
-    // filesystems
-    targetColl = this.getCollectionPrimary(ConstantMongodb.DATABASE_META, ConstantMongodb.COLLECTION_META_FILESYSTEM);
-    this.createIndex(targetColl, new Document("no", 1));
-    this.createIndex(targetColl, new Document("path", 1));
+    provisioner.add(targetColl, new Document("coll", 1));
 
     // Accounts
     targetColl = this.getCollectionPrimary(ConstantMongodb.DATABASE_META, ConstantMongodb.COLLECTION_META_ACCOUNTS);
-    targetColl.createIndex(new Document("id", 1), new IndexOptions().unique(true).name("uniqueAccountID"));
+    provisioner.add(targetColl, new Document("id", 1), new IndexOptions().unique(true).name("uniqueAccountID"));
 
     // systeminfo
     targetColl = this.getCollectionPrimary(ConstantMongodb.DATABASE_ANALYSIS,
         ConstantMongodb.COLLECTION_ANALYSIS_SYSTEMSTATUS);
-    targetColl.createIndex(new Document("name", 1));
-    
+    provisioner.add(targetColl, new Document("name", 1));
+
     // COLLECTION_META_LOGDBS
     targetColl = this.getCollectionPrimary(ConstantMongodb.DATABASE_META,
         ConstantMongodb.COLLECTION_META_LOGDBS);
-    targetColl.createIndex(new Document(ConstantMongodb.KEY_META_LOGDBS_DATABASE, 1).append(ConstantMongodb.KEY_META_LOGDBS_COLLECTION, 1));
+    provisioner.add(targetColl, new Document(ConstantMongodb.KEY_META_LOGDBS_DATABASE, 1).append(ConstantMongodb.KEY_META_LOGDBS_COLLECTION, 1));
+
+    provisioner.provision();
   }
 
   /**
@@ -974,7 +1182,11 @@ public class MongoDB {
     doc.append("coll", coll).append("depth", depth);
     doc.append("inc5min", daily5mininc);
 
-    cChartInfo.insertOne(doc);
+    try {
+      cChartInfo.insertOne(doc);
+    } finally {
+      this.invalidateReadCache(cChartInfo);
+    }
   }
 
   /**
@@ -985,7 +1197,11 @@ public class MongoDB {
   public void removeChart(final String name) {
     MongoCollection<Document> cChartInfo = this.getCollectionPrimary(ConstantMongodb.DATABASE_META,
         ConstantMongodb.COLLECTION_META_CHARTLIST);
-    cChartInfo.deleteOne(new Document(ConstantMongodb.ID, name));
+    try {
+      cChartInfo.deleteOne(new Document(ConstantMongodb.ID, name));
+    } finally {
+      this.invalidateReadCache(cChartInfo);
+    }
   }
 
   /**
@@ -994,11 +1210,17 @@ public class MongoDB {
    * @return
    */
   public Set<String> getChartList() {
-    MongoCollection<Document> cChartInfo = this.getCollection(ConstantMongodb.DATABASE_META,
+    if (readCache == null) return this.listChart();
+    return new HashSet<>(readCache.get(ConstantMongodb.DATABASE_META, ConstantMongodb.COLLECTION_META_CHARTLIST,
+        "chartList", this::listChart));
+  }
+
+  private Set<String> listChart() {
+    MongoCollection<RawBsonDocument> cChartInfo = this.getRawCollection(ConstantMongodb.DATABASE_META,
         ConstantMongodb.COLLECTION_META_CHARTLIST);
     Set<String> chartResult = new HashSet<>();
-    for (Document doc : cChartInfo.find(new Document()).projection(new Document(ConstantMongodb.ID, 1)))
-      chartResult.add(doc.get(ConstantMongodb.ID).toString());
+    for (RawBsonDocument doc : cChartInfo.find(new Document()).projection(new Document(ConstantMongodb.ID, 1)))
+      chartResult.add(MongoDBRawDocuments.getString(doc, ConstantMongodb.ID));
     return chartResult;
   }
 
@@ -1009,33 +1231,14 @@ public class MongoDB {
    * @param depth
    */
   public Map<String, Integer> getDepthValue(Document doc, int depth) {
-    Set<String> keyList = getKeyList(doc);
-    Map<String, Integer> result = new HashMap<>();
-    for (String key : keyList) {
-      if (key.split("\\.").length != depth)
-        continue;
-      result.put(key, getDocValue(doc, key));
-    }
-    return result;
+    return MongoDBDocumentFlattener.depthValues(doc, depth).toMap();
   }
 
   /**
    * .으로 구분된 key의 int value를 반환한다.
    */
   public int getDocValue(Document obj, final String keyInfo) {
-    String[] keys = keyInfo.split("\\.");
-
-    Object doc = obj;
-    for (String key : keys) {
-      if (doc instanceof Document)
-        doc = ((Document) doc).get(key);
-    }
-
-    try {
-      return Integer.parseInt(doc.toString());
-    } catch (NumberFormatException | NullPointerException e) {
-      return 0;
-    }
+    return MongoDBDocumentFlattener.value(obj, keyInfo);
   }
 
   /**
@@ -1045,21 +1248,7 @@ public class MongoDB {
    * @return
    */
   public Set<String> getKeyList(Document doc) {
-    Set<String> keyList = new HashSet<>();
-
-    for (Map.Entry<String, Object> entry : doc.entrySet()) {
-      String key = entry.getKey();
-      Object value = entry.getValue();
-      if (value instanceof Document) {
-        for (String keyName : getKeyList((Document) value)) {
-          keyList.add(new StringBuilder(key).append(".").append(keyName).toString());
-        }
-      } else {
-        keyList.add(key);
-      }
-    }
-
-    return keyList;
+    return MongoDBDocumentFlattener.keys(doc);
   }
 
   /**
@@ -1073,49 +1262,24 @@ public class MongoDB {
   }
 
   /**
-   * Collection의 Index를 생성한다.
-   * 
-   * @param coll
-   * @param doc
+   * jobId가 GloablLock에서 해소 될때까지 대기한다.
+   * 보유자가 해제하면 알림을 받아 바로 획득하며, 보유중에는 lease가 자동으로 갱신된다. ( MongoDBGlobalLock )
+   * @param jobId
+   * @param ignoreLockTime lease 시간(초)
+   * @return 획득한 lease. 대기 중 interrupt 되면 null
    */
-  private void createIndex(MongoCollection<Document> coll, Document doc) {
+  private MongoDBGlobalLock.Lease waitGlobalLock(final String jobId, final int ignoreLockTime) {
     try {
-      coll.createIndex(doc);
-    } catch (Exception e) {
-      logger.log(Level.FINE, "Exception createIndex {0}", e);
+      return globalLock.acquire(this.getDailyJobCollection(), jobId, ignoreLockTime, logger);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return null;
     }
   }
 
-  /**
-   * Collection의 Index를 생성한다.
-   * 
-   * @param coll
-   * @param doc
-   */
-  private void createIndex(MongoCollection<Document> coll, Document keys, IndexOptions opts) {
-    try {
-      coll.createIndex(keys, opts);
-    } catch (com.mongodb.MongoCommandException e) {
-      logger.log(Level.FINE, "Exception createIndex {0}", new Object[] {e});
-    }
-  }
-  /**
-   * jobId가 GloablLock에서 해소 될때까지 대기한다.
-   * @param jobId
-   * @param ignoreLockTime
-   */
-  private void waitGlobalLock(final String jobId, final int ignoreLockTime) {
-    while(true) {
-      if (this.startGlobalLock(jobId, new ObjectId(), ignoreLockTime)) {
-        break;
-      }
-      try {
-        Thread.sleep(100);
-      } catch (InterruptedException e) {
-        Thread.currentThread().interrupt();
-        return;
-      }
-    }
+  private MongoCollection<Document> getDailyJobCollection() {
+    return this.getCollectionPrimary(ConstantMongodb.DATABASE_META, ConstantMongodb.COLLECTION_META_DAILYJOB)
+               .withWriteConcern(WriteConcern.ACKNOWLEDGED);
   }
   /**
    * 전체에서 jobID에 해당하는 Job이 동시에 한번만 수행하기 위해 GlbalLock을 시작한다.
@@ -1160,6 +1324,7 @@ public class MongoDB {
     MongoCollection<Document> cDailyJobColl = this.getCollectionPrimary(ConstantMongodb.DATABASE_META,
         ConstantMongodb.COLLECTION_META_DAILYJOB);
     cDailyJobColl.updateOne(new Document(ConstantMongodb.ID, jobID), new Document("$set", new Document("_t", getZeroOid())));
+    globalLock.signal(jobID);
   }
 
   private ObjectId getZeroOid() {
@@ -1173,24 +1338,158 @@ public class MongoDB {
    * close
    */
   public void close() {
-    if (mongoClient != null)
+    if (mongoClient != null && !sharedClient)
       mongoClient.close();
   }
   public Logger getLogger() {
     return this.logger;
   }
+
+  /**
+   * getChartList, getAnalysisSummary, getDatabaseNames, getCollcetions, docFindOne 결과를 cache 한다.
+   * null 이면 cache 하지 않는다.
+   * 
+   * @param readCache
+   */
+  public void setReadCache(final MongoDBReadCache readCache) {
+    this.readCache = readCache;
+  }
+
+  public MongoDBReadCache getReadCache() {
+    return this.readCache;
+  }
+
+  private void invalidateReadCache(final MongoCollection<Document> collection) {
+    if (readCache == null) return;
+    readCache.invalidate(collection.getNamespace().getDatabaseName(), collection.getNamespace().getCollectionName());
+  }
   public long getShardCount() {
-    return this.getCollectionPrimary("config", "shards").count(new Document("state", 1));
+    return this.getCollectionPrimary("config", "shards").countDocuments(new Document("state", 1));
   }
+  /**
+   * collName 의 Summary 를 Summary Document( <collName>_summary ) 에서 읽는다.
+   * collName 에 쓰는 모든 writer 가 incAnalysisSummary 를 호출하는 경우에만 사용한다. ( 그렇지 않으면 오래된 값을 읽는다 )
+   * 기존 데이터는 rebuildAnalysisSummary 로 먼저 만든다.
+   * @param collName
+   */
+  public void enableAnalysisSummary(final String collName) {
+    summaryCollections.add(collName);
+    if (readCache != null) readCache.invalidate(ConstantMongodb.DATABASE_ANALYSIS, collName);
+  }
+
+  public void disableAnalysisSummary(final String collName) {
+    summaryCollections.remove(collName);
+    if (readCache != null) readCache.invalidate(ConstantMongodb.DATABASE_ANALYSIS, collName);
+  }
+
+  public boolean isAnalysisSummaryEnabled(final String collName) {
+    return summaryCollections.contains(collName);
+  }
+
+  /**
+   * factory 가 만드는 MongoDB 끼리 enableAnalysisSummary 설정을 공유한다.
+   */
+  void setAnalysisSummaryCollections(final Set<String> summaryCollections) {
+    this.summaryCollections = summaryCollections;
+  }
+
   /**
    * Analysis Collection의 Summary를 반환한다.
+   * 기본적으로 aggregate 로 Server 에서 합산하며,
+   * enableAnalysisSummary 한 collName 이고 Summary Document 가 있으면 그 Document 하나만 조회한다.
    * @param collName
    * @param date
    * @return
    */
   public Document getAnalysisSummary(final String collName, final String date) {
+    if (readCache == null) return this.loadAnalysisSummary(collName, date);
+    return readCache.get(ConstantMongodb.DATABASE_ANALYSIS, collName, "summary:" + date,
+        () -> this.loadAnalysisSummary(collName, date));
+  }
+
+  /**
+   * Summary Document 에 값을 더한다. ( <collName>_summary, _id : date )
+   * collName 에 쓰는 모든 writer 가 호출해야 하며, 기존 데이터는 rebuildAnalysisSummary 로 먼저 만든다. ( enableAnalysisSummary )
+   * @param collName
+   * @param date
+   * @param summary { key : 숫자 }
+   */
+  public void incAnalysisSummary(final String collName, final String date, final Document summary) {
+    if (summary == null || summary.isEmpty()) return;
+    Document inc = new Document();
+    for (Map.Entry<String, Object> entry : summary.entrySet()) {
+      if (entry.getValue() instanceof Number) inc.append(SUMMARY + "." + entry.getKey(), entry.getValue());
+    }
+    if (inc.isEmpty()) return;
+    try {
+      this.getSummaryCollection(collName)
+          .updateOne(new Document(ConstantMongodb.ID, date),
+                     new Document("$inc", inc).append("$setOnInsert", new Document(Constant.DATE, date)),
+                     new UpdateOptions().upsert(true));
+    } finally {
+      if (readCache != null) readCache.invalidate(ConstantMongodb.DATABASE_ANALYSIS, collName);
+    }
+  }
+
+  /**
+   * date 의 Summary Document 를 Analysis Collection 으로부터 다시 만든다.
+   * @param collName
+   * @param date
+   * @return 만들어진 summary, 합산할 수 없으면 null
+   */
+  public Document rebuildAnalysisSummary(final String collName, final String date) {
+    Document aggregated = this.aggregateAnalysisSummary(collName, date);
+    if (aggregated == null) return null;
+    Document summary = (Document) aggregated.get(SUMMARY);
+    try {
+      this.getSummaryCollection(collName)
+          .replaceOne(new Document(ConstantMongodb.ID, date),
+                      new Document(ConstantMongodb.ID, date).append(Constant.DATE, date).append(SUMMARY, summary),
+                      new ReplaceOptions().upsert(true));
+    } finally {
+      if (readCache != null) readCache.invalidate(ConstantMongodb.DATABASE_ANALYSIS, collName);
+    }
+    return summary;
+  }
+
+  private Document loadAnalysisSummary(final String collName, final String date) {
+    Document summary = null;
+    if (summaryCollections.contains(collName)) {
+      summary = this.getSummaryCollection(collName)
+          .find(new Document(ConstantMongodb.ID, date))
+          .projection(new Document(SUMMARY, 1))
+          .maxTime(ConstantMongodb.MONGODB_CURSOR_MAX_SECS, TimeUnit.SECONDS)
+          .first();
+    }
+    if (summary == null) {
+      summary = this.aggregateAnalysisSummary(collName, date);
+      if (summary == null) return this.loadAnalysisSummaryDocuments(collName, date);
+      if (((Document) summary.get(SUMMARY)).isEmpty()) return new Document();
+    }
+    List<Document> summaryDocList = utils.summaryByDate(Collections.singletonList(summary));
+    if (summaryDocList.isEmpty()) return new Document();
+    return summaryDocList.get(0);
+  }
+
+  /**
+   * summary 의 key 별 합계를 Server 에서 계산한다. ( MongoDBAnalysisSummary )
+   * @return { _id : date, summary : { key : 합계 } }, 숫자가 아닌 값이 있으면 null
+   */
+  private Document aggregateAnalysisSummary(final String collName, final String date) {
+    List<Document> groups = new ArrayList<>();
+    this.getCollection(ConstantMongodb.DATABASE_ANALYSIS, collName)
+        .aggregate(MongoDBAnalysisSummary.pipeline(date))
+        .maxTime(ConstantMongodb.MONGODB_CURSOR_MAX_SECS, TimeUnit.SECONDS)
+        .into(groups);
+    return MongoDBAnalysisSummary.summaryOf(date, groups);
+  }
+
+  /**
+   * summary 에 숫자가 아닌 값( 하위 Document 등 )이 있으면 모든 Document 를 읽어 합산한다.
+   */
+  private Document loadAnalysisSummaryDocuments(final String collName, final String date) {
     FindIterable<Document> find = this.getCollection(ConstantMongodb.DATABASE_ANALYSIS, collName)
-        .find(new Document(Constant.DATE, date)).projection(new Document("summary", 1));
+        .find(new Document(Constant.DATE, date)).projection(new Document(SUMMARY, 1));
     find.maxTime(ConstantMongodb.MONGODB_CURSOR_MAX_SECS, TimeUnit.SECONDS);
     MongoCursor<Document> cursor = find.iterator();
     List<Document> docList = new ArrayList<>();
@@ -1201,4 +1500,8 @@ public class MongoDB {
     if (summaryDocList.isEmpty()) return new Document();
     return summaryDocList.get(0);
   }
+
+  private MongoCollection<Document> getSummaryCollection(final String collName) {
+    return this.getCollectionPrimary(ConstantMongodb.DATABASE_ANALYSIS, collName + SUMMARY_COLLECTION_SUFFIX);
+  }
 }
\ No newline at end of file
@@ -0,0 +1,58 @@
+package com.ea.asiacentraltech.thoth.mongodb;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.bson.Document;
+
+import com.ea.asiacentraltech.thoth.common.Constant;
+
+/**
+ * Analysis Collection 의 date 별 summary 합계를 Server 에서 계산하는 aggregate 와 그 결과 변환. ( MongoDB.getAnalysisSummary )
+ * 결과는 기존처럼 Document 를 모두 읽은 경우와 같은 모양( { _id, summary } )으로 utils.summaryByDate 에 넘긴다.
+ */
+final class MongoDBAnalysisSummary {
+  static final String SUMMARY = "summary";
+  static final String KEY_VALUE = "v";
+  static final String KEY_NON_NUMERIC = "nonNumeric";
+  private static final List<String> NUMERIC_TYPES = Arrays.asList("int", "long", "double", "decimal");
+
+  private MongoDBAnalysisSummary() {
+  }
+
+  /**
+   * summary 의 key 별 { _id : key, v : 합계, nonNumeric : 숫자가 아닌 값의 수 }
+   * summary 가 없거나 Document 가 아니면 건너뛴다. ( $objectToArray 는 Document 가 아니면 실패한다. )
+   */
+  static List<Document> pipeline(final String date) {
+    Document isObject = new Document("$eq", Arrays.asList(new Document("$type", "$" + SUMMARY), "object"));
+    return Arrays.asList(
+        new Document("$match", new Document(Constant.DATE, date)),
+        new Document("$project", new Document(ConstantMongodb.ID, 0)
+            .append(SUMMARY, new Document("$cond", Arrays.asList(isObject,
+                                                                 new Document("$objectToArray", "$" + SUMMARY),
+                                                                 Arrays.asList())))),
+        new Document("$unwind", "$" + SUMMARY),
+        new Document("$group", new Document(ConstantMongodb.ID, "$" + SUMMARY + ".k")
+            .append(KEY_VALUE, new Document("$sum", "$" + SUMMARY + "." + KEY_VALUE))
+            .append(KEY_NON_NUMERIC, new Document("$sum", new Document("$cond", Arrays.asList(
+                new Document("$in", Arrays.asList(new Document("$type", "$" + SUMMARY + "." + KEY_VALUE), NUMERIC_TYPES)),
+                0, 1))))));
+  }
+
+  /**
+   * pipeline 결과를 summary Document 로 만든다.
+   * @param date
+   * @param groups pipeline 결과
+   * @return { _id : date, summary : { key : 합계 } }, 숫자가 아닌 값이 있으면 null
+   */
+  static Document summaryOf(final String date, final Iterable<Document> groups) {
+    Document sums = new Document();
+    for (Document group : groups) {
+      Object nonNumeric = group.get(KEY_NON_NUMERIC);
+      if (nonNumeric instanceof Number && ((Number) nonNumeric).longValue() > 0) return null;
+      sums.append(String.valueOf(group.get(ConstantMongodb.ID)), group.get(KEY_VALUE));
+    }
+    return new Document(ConstantMongodb.ID, date).append(SUMMARY, sums);
+  }
+}
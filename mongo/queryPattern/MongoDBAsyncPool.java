@@ -0,0 +1,299 @@
+package com.ea.asiacentraltech.thoth.mongodb;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.bson.Document;
+
+import com.mongodb.MongoClientSettings;
+import com.mongodb.MongoCommandException;
+import com.mongodb.MongoCredential;
+import com.mongodb.ReadPreference;
+import com.mongodb.WriteConcern;
+import com.mongodb.async.SingleResultCallback;
+import com.mongodb.async.client.MongoClient;
+import com.mongodb.async.client.MongoClients;
+import com.mongodb.async.client.MongoCollection;
+import com.mongodb.client.model.UpdateOptions;
+
+/**
+ * MongoDBPool의 비동기 버전.
+ * async driver 의 MongoClient 하나를 공유하며, 모든 명령은 호출 Thread를 막지 않고 CompletableFuture로 결과를 반환한다.
+ * Connection 관리는 driver의 connection pool이 담당하므로 borrow/return 과정이 없다.
+ */
+public class MongoDBAsyncPool {
+  private final Logger logger;
+  private final MongoClient mongoClient;
+
+  public MongoDBAsyncPool(Logger logger, String host, String id, String pwd) {
+    this.logger = logger;
+    MongoClientSettings.Builder settings = MongoClientSettings.builder();
+    settings.applyToClusterSettings(builder -> builder.hosts(MongoDB.parseHosts(host)));
+    if (id != null && pwd != null) {
+      settings.credential(MongoCredential.createScramSha1Credential(id, ConstantMongodb.DATABASE_ADMIN,
+          pwd.toCharArray()));
+    }
+    this.mongoClient = MongoClients.create(settings.build());
+  }
+
+  /**
+   * FindOne
+   * @param database
+   * @param collection
+   * @param query
+   * @param fields
+   * @return
+   */
+  public CompletableFuture<Document> findOne(String database,
+                                             String collection,
+                                             Document query,
+                                             Document fields) {
+    CompletableFuture<Document> future = new CompletableFuture<>();
+    this.getCollection(database, collection)
+        .find(query)
+        .projection(fields)
+        .first(complete(future));
+    return future;
+  }
+
+  public CompletableFuture<Document> findOne(String database,
+                                             String collection,
+                                             Document query,
+                                             Document fields,
+                                             Document sort) {
+    CompletableFuture<Document> future = new CompletableFuture<>();
+    this.getCollection(database, collection)
+        .find(query)
+        .projection(fields)
+        .sort(sort)
+        .maxTime(ConstantMongodb.MONGODB_CURSOR_MAX_SECS, TimeUnit.SECONDS)
+        .first(complete(future));
+    return future;
+  }
+
+  public CompletableFuture<Void> updateOne(String database,
+                                           String collection,
+                                           Document filter,
+                                           Document update,
+                                           UpdateOptions options) {
+    CompletableFuture<Void> future = new CompletableFuture<>();
+    this.getCollectionPrimary(database, collection)
+        .updateOne(filter, update, options, (result, t) -> {
+          if (t != null) future.completeExceptionally(t);
+          else future.complete(null);
+        });
+    return future;
+  }
+
+  public CompletableFuture<List<Document>> find(String database,
+                                                String collection,
+                                                Document query,
+                                                Document fields,
+                                                Document sort) {
+    CompletableFuture<List<Document>> future = new CompletableFuture<>();
+    this.getCollection(database, collection)
+        .find(query)
+        .projection(fields)
+        .sort(sort)
+        .maxTime(ConstantMongodb.MONGODB_CURSOR_MAX_SECS, TimeUnit.SECONDS)
+        .into(new ArrayList<>(), complete(future));
+    return future;
+  }
+
+  public CompletableFuture<List<Document>> find(String database,
+                                                String collection,
+                                                Document query,
+                                                Document fields,
+                                                Document sort,
+                                                int limit) {
+    CompletableFuture<List<Document>> future = new CompletableFuture<>();
+    this.getCollection(database, collection)
+        .find(query)
+        .projection(fields)
+        .sort(sort)
+        .limit(limit)
+        .maxTime(ConstantMongodb.MONGODB_CURSOR_MAX_SECS, TimeUnit.SECONDS)
+        .into(new ArrayList<>(), complete(future));
+    return future;
+  }
+
+  public CompletableFuture<Void> insertOne(String database,
+                                           String collection,
+                                           Document doc) {
+    CompletableFuture<Void> future = new CompletableFuture<>();
+    this.getCollectionPrimary(database, collection)
+        .withWriteConcern(WriteConcern.ACKNOWLEDGED)
+        .insertOne(doc, complete(future));
+    return future;
+  }
+
+  public CompletableFuture<Void> deleteOne(String database,
+                                           String collection,
+                                           Document query) {
+    CompletableFuture<Void> future = new CompletableFuture<>();
+    this.getCollectionPrimary(database, collection)
+        .deleteOne(query, (result, t) -> {
+          if (t != null) future.completeExceptionally(t);
+          else future.complete(null);
+        });
+    return future;
+  }
+
+  public CompletableFuture<Set<String>> getCollcetionNames(String database) {
+    CompletableFuture<Set<String>> future = new CompletableFuture<>();
+    mongoClient.getDatabase(database)
+               .listCollectionNames()
+               .into(new HashSet<>(), complete(future));
+    return future;
+  }
+
+  public CompletableFuture<Set<String>> getDatbaseNames() {
+    CompletableFuture<Set<String>> future = new CompletableFuture<>();
+    mongoClient.listDatabaseNames()
+               .into(new HashSet<>(), complete(future));
+    return future;
+  }
+
+  /**
+   * run Command
+   * MongoDB.runCommand와 동일하게 MongoCommandException은 ok : -1 결과 Document로 변환한다.
+   * @param database
+   * @param command
+   * @return
+   */
+  public CompletableFuture<Document> command(String database,
+                                             Document command) {
+    CompletableFuture<Document> future = new CompletableFuture<>();
+    mongoClient.getDatabase(database).runCommand(command, (result, t) -> {
+      // callback 안의 Exception 은 driver thread 에서 사라지므로 future 로 전달한다.
+      try {
+        if (t instanceof MongoCommandException) {
+          MongoCommandException e = (MongoCommandException) t;
+          result = new Document("ok", (double) -1);
+          result.append("code", e.getErrorCode());
+          result.append("message", e.getErrorMessage());
+        } else if (t != null) {
+          future.completeExceptionally(t);
+          return;
+        }
+        // mongos 등은 ok 를 int 로 반환한다.
+        Object ok = result.get("ok");
+        result.append(ConstantMongodb.COMMAND_OK, ok instanceof Number && ((Number) ok).doubleValue() == 1);
+        future.complete(result);
+      } catch (RuntimeException e) {
+        future.completeExceptionally(e);
+      }
+    });
+    return future;
+  }
+
+  public CompletableFuture<List<String>> distinct(String database,
+                                                  String collection,
+                                                  String key) {
+    CompletableFuture<List<String>> future = new CompletableFuture<>();
+    this.getCollection(database, collection)
+        .distinct(key, String.class)
+        .into(new ArrayList<>(), complete(future));
+    return future;
+  }
+
+  public CompletableFuture<List<Document>> aggregate(String database,
+                                                     String collection,
+                                                     List<Document> pipe) {
+    CompletableFuture<List<Document>> future = new CompletableFuture<>();
+    this.getCollection(database, collection)
+        .aggregate(pipe)
+        .maxTime(ConstantMongodb.MONGODB_CURSOR_MAX_SECS, TimeUnit.SECONDS)
+        .into(new ArrayList<>(), complete(future));
+    return future;
+  }
+
+  /**
+   * 모든 database x collection 에 동시에 aggregate를 요청하고, MongoDBPool과 같은 순서로 결과를 합친다.
+   * @param databases
+   * @param collections
+   * @param pipe
+   * @return
+   */
+  public CompletableFuture<List<Document>> aggregate(String[] databases,
+                                                     String[] collections,
+                                                     List<Document> pipe) {
+    List<CompletableFuture<List<Document>>> futures = new ArrayList<>();
+    for (String database : databases) {
+      for (String collection : collections) {
+        futures.add(this.aggregate(database, collection, pipe));
+      }
+    }
+    return CompletableFuture.allOf(futures.toArray(new CompletableFuture[0])).thenApply(v -> {
+      List<Document> docList = new ArrayList<>();
+      for (CompletableFuture<List<Document>> f : futures) {
+        docList.addAll(f.join());
+      }
+      return docList;
+    });
+  }
+
+  public CompletableFuture<List<Document>> count(String[] databases,
+                                                 String[] collections,
+                                                 Document query) {
+    List<CompletableFuture<Document>> futures = new ArrayList<>();
+    for (String database : databases) {
+      for (String collection : collections) {
+        CompletableFuture<Long> count = new CompletableFuture<>();
+        if (query == null || query.isEmpty()) {
+          // 조건이 없으면 collection metadata 를 읽는다.
+          this.getCollection(database, collection).estimatedDocumentCount(complete(count));
+        } else {
+          this.getCollection(database, collection).countDocuments(query, complete(count));
+        }
+        futures.add(count.thenApply(n -> new Document().append("database", database)
+                                                       .append("collection", collection)
+                                                       .append("count", n)));
+      }
+    }
+    return CompletableFuture.allOf(futures.toArray(new CompletableFuture[0])).thenApply(v -> {
+      List<Document> docList = new ArrayList<>();
+      for (CompletableFuture<Document> f : futures) {
+        docList.add(f.join());
+      }
+      return docList;
+    });
+  }
+
+  /**
+   * close
+   */
+  public void close() {
+    try {
+      mongoClient.close();
+    } catch (Exception e) {
+      logger.log(Level.WARNING, "MongoDBAsyncPool close Fail {0}", e.getMessage());
+    }
+  }
+
+  private MongoCollection<Document> getCollection(final String dbName, final String collName) {
+    return mongoClient.getDatabase(dbName).getCollection(collName).withReadPreference(ReadPreference.secondaryPreferred());
+  }
+
+  private MongoCollection<Document> getCollectionPrimary(final String dbName, final String collName) {
+    return mongoClient.getDatabase(dbName).getCollection(collName).withReadPreference(ReadPreference.primary());
+  }
+
+  /**
+   * driver callback의 결과를 future에 전달한다.
+   * @param future
+   * @return
+   */
+  private static <T> SingleResultCallback<T> complete(final CompletableFuture<T> future) {
+    return (result, t) -> {
+      if (t != null) future.completeExceptionally(t);
+      else future.complete(result);
+    };
+  }
+}
@@ -0,0 +1,216 @@
+package com.ea.asiacentraltech.thoth.mongodb;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.bson.Document;
+
+import com.mongodb.MongoBulkWriteException;
+import com.mongodb.MongoException;
+import com.mongodb.WriteConcern;
+import com.mongodb.bulk.BulkWriteError;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.model.BulkWriteOptions;
+import com.mongodb.client.model.InsertOneModel;
+
+/**
+ * namespace 하나에 대한 Buffered Insert Writer.
+ * Document를 Queue에 모았다가 batchSize 또는 flushIntervalMillis 에 도달하면 unordered bulkWrite 로 한번에 Insert 한다.
+ * Queue가 가득 차면 insert 호출이 대기한다. (backpressure)
+ * flush 는 모든 namespace 가 공유하는 scheduler thread 에서 수행하므로 namespace 마다 thread 를 만들지 않는다.
+ * Key의 . 과 $ 는 docInsert와 같이 MongoDBKeySanitizer로 치환된다.
+ * 각 Document의 결과는 docInsert와 같이 0 : 성공, 그 외 : MongoException code 로 전달된다.
+ */
+public class MongoDBBulkWriter {
+  public static final int DEFAULT_BATCH_SIZE = 1000;
+  public static final long DEFAULT_FLUSH_INTERVAL_MILLIS = 100;
+  public static final int DEFAULT_QUEUE_CAPACITY = 10000;
+  private static final int FLUSH_THREADS = 4;
+  private static final int IDLE = 0;
+  private static final int DELAYED = 1;
+  private static final int ACTIVE = 2;
+  private static final AtomicInteger THREAD_COUNT = new AtomicInteger();
+  static final ScheduledExecutorService SCHEDULER = Executors.newScheduledThreadPool(FLUSH_THREADS, r -> {
+    Thread thread = new Thread(r, "mongodb-bulkwriter-" + THREAD_COUNT.incrementAndGet());
+    thread.setDaemon(true);
+    return thread;
+  });
+
+  private final MongoDBPool pool;
+  private final String database;
+  private final String collection;
+  private final int batchSize;
+  private final long flushIntervalMillis;
+  private final BlockingQueue<Entry> queue;
+  private final ReentrantReadWriteLock stateLock = new ReentrantReadWriteLock();
+  private final AtomicInteger flushState = new AtomicInteger(IDLE);
+  private volatile boolean running = true;
+  private volatile long lastUsedNanos = System.nanoTime();
+
+  public MongoDBBulkWriter(final MongoDBPool pool, final String database, final String collection) {
+    this(pool, database, collection, DEFAULT_BATCH_SIZE, DEFAULT_FLUSH_INTERVAL_MILLIS, DEFAULT_QUEUE_CAPACITY);
+  }
+
+  public MongoDBBulkWriter(final MongoDBPool pool,
+                           final String database,
+                           final String collection,
+                           final int batchSize,
+                           final long flushIntervalMillis,
+                           final int queueCapacity) {
+    this.pool = pool;
+    this.database = database;
+    this.collection = collection;
+    this.batchSize = Math.max(1, batchSize);
+    this.flushIntervalMillis = Math.max(1, flushIntervalMillis);
+    // 쓰지 않는 namespace 가 capacity 만큼의 배열을 잡고 있지 않도록 LinkedBlockingQueue 를 사용한다.
+    this.queue = new LinkedBlockingQueue<>(Math.max(this.batchSize, queueCapacity));
+  }
+
+  /**
+   * Document를 Buffer에 추가한다. Buffer가 가득 차 있으면 공간이 생길 때까지 대기한다.
+   * @param doc
+   * @return 0 : 성공, 그 외 : MongoException code
+   * @throws InterruptedException
+   */
+  public CompletableFuture<Integer> insert(final Document doc) throws InterruptedException {
+    CompletableFuture<Integer> result = this.offer(doc);
+    if (result == null) throw new IllegalStateException("MongoDBBulkWriter closed " + database + "." + collection);
+    return result;
+  }
+
+  /**
+   * @return close 된 경우 null
+   */
+  CompletableFuture<Integer> offer(final Document doc) throws InterruptedException {
+    Entry entry = new Entry(doc);
+    // close 는 write lock 을 잡으므로, 상태 확인 후 put 사이에 close 가 끼어들어 Entry 가 남는 일이 없다.
+    stateLock.readLock().lockInterruptibly();
+    try {
+      if (!running) return null;
+      queue.put(entry);
+    } finally {
+      stateLock.readLock().unlock();
+    }
+    lastUsedNanos = System.nanoTime();
+    this.scheduleFlush();
+    return entry.result;
+  }
+
+  /**
+   * @return Queue 가 비어 있고 idleNanos 동안 insert 가 없었는지
+   */
+  boolean isIdle(final long idleNanos) {
+    return queue.isEmpty() && System.nanoTime() - lastUsedNanos > idleNanos;
+  }
+
+  /**
+   * 대기중인 Document를 모두 Insert 한 뒤 종료한다.
+   */
+  public void close() {
+    // put 에서 대기 중인 insert 는 scheduler 의 flush 가 계속 비우므로 끝난다.
+    stateLock.writeLock().lock();
+    try {
+      if (!running) return;
+      running = false;
+    } finally {
+      stateLock.writeLock().unlock();
+    }
+    // 이후에는 insert 가 없으므로 남은 Document 를 모두 쓴다. ( 진행 중인 flush 는 자신이 꺼낸 것을 끝까지 쓴다. )
+    List<Entry> batch = new ArrayList<>();
+    while (queue.drainTo(batch, batchSize) > 0) {
+      this.write(batch);
+      batch.clear();
+    }
+  }
+
+  /**
+   * batchSize 가 모이면 바로, 아니면 flushIntervalMillis 뒤에 flush 한다.
+   */
+  private void scheduleFlush() {
+    if (queue.size() >= batchSize) {
+      int state = flushState.get();
+      if (state != ACTIVE && flushState.compareAndSet(state, ACTIVE)) SCHEDULER.execute(this::flush);
+    } else if (flushState.compareAndSet(IDLE, DELAYED)) {
+      SCHEDULER.schedule(this::flush, flushIntervalMillis, TimeUnit.MILLISECONDS);
+    }
+  }
+
+  private void flush() {
+    flushState.set(ACTIVE);
+    List<Entry> batch = new ArrayList<>(batchSize);
+    try {
+      // 가득 찬 batch 는 이어서 쓰고, 나머지는 다음 interval 에 쓴다.
+      while (queue.drainTo(batch, batchSize) > 0) {
+        this.write(batch);
+        batch.clear();
+        if (queue.size() < batchSize) break;
+      }
+    } finally {
+      flushState.set(IDLE);
+    }
+    if (!queue.isEmpty()) this.scheduleFlush();
+  }
+
+  private void write(final List<Entry> batch) {
+    MongoDB mongoDB = null;
+    long start = 0;
+    try {
+      mongoDB = pool.borrowObject();
+      start = System.nanoTime();
+      this.write(mongoDB, batch);
+    } catch (Exception e) {
+      pool.getMetrics().recordError(MongoDBPoolMetrics.Operation.BULK_INSERT, e);
+      for (Entry entry : batch) {
+        entry.result.completeExceptionally(e);
+      }
+    } finally {
+      if (mongoDB != null) {
+        pool.returnObject(mongoDB);
+        pool.getMetrics().record(MongoDBPoolMetrics.Operation.BULK_INSERT, database, collection, start);
+      }
+    }
+  }
+
+  private void write(final MongoDB mongoDB, final List<Entry> batch) {
+    MongoCollection<Document> coll = mongoDB.getCollectionPrimary(database, collection)
+                                            .withWriteConcern(WriteConcern.ACKNOWLEDGED);
+    List<InsertOneModel<Document>> models = new ArrayList<>(batch.size());
+    for (Entry entry : batch) {
+      models.add(new InsertOneModel<>(MongoDBKeySanitizer.sanitize(entry.doc)));
+    }
+    int[] codes = new int[batch.size()];
+    try {
+      coll.bulkWrite(models, new BulkWriteOptions().ordered(false));
+    } catch (MongoBulkWriteException ex) {
+      pool.getMetrics().recordError(MongoDBPoolMetrics.Operation.BULK_INSERT, ex);
+      for (BulkWriteError error : ex.getWriteErrors()) {
+        codes[error.getIndex()] = error.getCode();
+      }
+    } catch (MongoException ex) {
+      pool.getMetrics().recordError(MongoDBPoolMetrics.Operation.BULK_INSERT, ex);
+      java.util.Arrays.fill(codes, ex.getCode());
+    }
+    // 일부만 실패한 경우에도 쓰기가 있었으므로 무효화한다.
+    pool.invalidateReadCache(database, collection);
+    for (int i = 0; i < batch.size(); i++) {
+      batch.get(i).result.complete(codes[i]);
+    }
+  }
+
+  private static class Entry {
+    private final Document doc;
+    private final CompletableFuture<Integer> result = new CompletableFuture<>();
+
+    Entry(Document doc) {
+      this.doc = doc;
+    }
+  }
+}
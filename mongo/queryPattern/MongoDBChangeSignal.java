@@ -0,0 +1,65 @@
+package com.ea.asiacentraltech.thoth.mongodb;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * 변경 알림을 기다리는 Thread를 깨우기 위한 signal.
+ * 알림이 오지 않는 경우(change stream 미지원, 알림 유실)에도 timeout 으로 깨어나므로 polling 의 fallback 으로 사용한다.
+ */
+class MongoDBChangeSignal {
+  private final ReentrantLock lock = new ReentrantLock();
+  private final Condition changed = lock.newCondition();
+  private long generation = 0;
+
+  /**
+   * 현재 generation. await 전에 읽어두면 그 사이의 signal을 놓치지 않는다.
+   */
+  long generation() {
+    lock.lock();
+    try {
+      return generation;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * generation 이후에 signal 이 오거나 timeout 이 지날 때까지 대기한다.
+   * @return signal을 받았으면 true
+   * @throws InterruptedException
+   */
+  boolean await(final long since, final long timeoutMillis) throws InterruptedException {
+    long remaining = TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+    lock.lock();
+    try {
+      while (generation == since) {
+        if (remaining <= 0) return false;
+        remaining = changed.awaitNanos(remaining);
+      }
+      return true;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  void signal() {
+    lock.lock();
+    try {
+      generation++;
+      changed.signalAll();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * backoff/2 ~ backoff 사이의 임의의 값. 여러 Node가 동시에 재시도하지 않도록 한다.
+   */
+  static long jitter(final long backoffMillis) {
+    long half = Math.max(1, backoffMillis / 2);
+    return half + ThreadLocalRandom.current().nextLong(half + 1);
+  }
+}
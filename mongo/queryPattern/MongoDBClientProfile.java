@@ -0,0 +1,235 @@
+package com.ea.asiacentraltech.thoth.mongodb;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.mongodb.MongoClientOptions;
+import com.mongodb.MongoCompressor;
+
+/**
+ * 용도별 MongoClient 설정. ( 압축, connection pool 크기, 대기열, heartbeat, timeout, cursor batchSize )
+ * MongoDB.multiConn / MongoManger 에 넘기면 MongoClient 를 만들 때 적용된다.
+ * <pre>
+ * INGEST    : 대량 insert. snappy 압축( CPU 부담이 적음 ), 큰 pool 과 대기열, 긴 socket timeout
+ * DASHBOARD : 짧은 조회. 작은 pool, 짧은 대기 / server selection timeout 으로 빨리 실패, 가까운 member 만 사용
+ * BATCH     : 대량 조회 / 집계. snappy 압축, 작은 pool, socket timeout 없음, 큰 batchSize
+ * DEFAULT   : driver 기본값 ( 압축 없음 )
+ * </pre>
+ * 압축은 server 와 협상하며 server 가 지원하지 않으면 사용하지 않는다.
+ * zstd 는 driver 4.0 이상에서만 사용할 수 있어 현재 driver( 3.x )의 BATCH 는 snappy 를 사용한다.
+ * 지정한 압축 방식을 driver 에서 만들 수 없으면 경고를 남기고 제외한다.
+ */
+public class MongoDBClientProfile {
+  public static final String DEFAULT = "default";
+  public static final String INGEST = "ingest";
+  public static final String DASHBOARD = "dashboard";
+  public static final String BATCH = "batch";
+  private static final Logger LOGGER = Logger.getLogger(MongoDBClientProfile.class.getName());
+
+  private final String name;
+  private List<String> compressors = Collections.emptyList();
+  private int minConnectionsPerHost = -1;
+  private int connectionsPerHost = -1;
+  private int threadsAllowedToBlockForConnectionMultiplier = -1;
+  private long maxWaitTimeMillis = -1;
+  private long heartbeatFrequencyMillis = -1;
+  private long connectTimeoutMillis = -1;
+  private long socketTimeoutMillis = -1;
+  private long serverSelectionTimeoutMillis = -1;
+  private long localThresholdMillis = -1;
+  private long maxConnectionIdleTimeMillis = -1;
+  private int batchSize = 0;
+
+  public MongoDBClientProfile(final String name) {
+    this.name = name;
+  }
+
+  /**
+   * @param name default, ingest, dashboard, batch ( 대소문자 무시 )
+   * @return 이름에 해당하는 새 profile, 모르는 이름이면 default
+   */
+  public static MongoDBClientProfile named(final String name) {
+    if (name == null) return defaults();
+    switch (name.toLowerCase(Locale.ROOT)) {
+      case INGEST:
+        return ingest();
+      case DASHBOARD:
+        return dashboard();
+      case BATCH:
+        return batch();
+      default:
+        return defaults();
+    }
+  }
+
+  public static MongoDBClientProfile defaults() {
+    return new MongoDBClientProfile(DEFAULT);
+  }
+
+  public static MongoDBClientProfile ingest() {
+    return new MongoDBClientProfile(INGEST).compressors("snappy")
+                                           .connectionsPerHost(10, 200)
+                                           .waitQueue(10, 30, TimeUnit.SECONDS)
+                                           .heartbeatFrequency(10, TimeUnit.SECONDS)
+                                           .connectTimeout(10, TimeUnit.SECONDS)
+                                           .socketTimeout(60, TimeUnit.SECONDS)
+                                           .serverSelectionTimeout(30, TimeUnit.SECONDS)
+                                           .maxConnectionIdleTime(5, TimeUnit.MINUTES);
+  }
+
+  public static MongoDBClientProfile dashboard() {
+    return new MongoDBClientProfile(DASHBOARD).compressors("snappy")
+                                              .connectionsPerHost(5, 50)
+                                              .waitQueue(2, 2, TimeUnit.SECONDS)
+                                              .heartbeatFrequency(5, TimeUnit.SECONDS)
+                                              .connectTimeout(5, TimeUnit.SECONDS)
+                                              .socketTimeout(15, TimeUnit.SECONDS)
+                                              .serverSelectionTimeout(5, TimeUnit.SECONDS)
+                                              .localThreshold(15, TimeUnit.MILLISECONDS)
+                                              .batchSize(500);
+  }
+
+  public static MongoDBClientProfile batch() {
+    return new MongoDBClientProfile(BATCH).compressors("snappy")
+                                          .connectionsPerHost(0, 20)
+                                          .waitQueue(5, 120, TimeUnit.SECONDS)
+                                          .heartbeatFrequency(20, TimeUnit.SECONDS)
+                                          .connectTimeout(10, TimeUnit.SECONDS)
+                                          .socketTimeout(0, TimeUnit.SECONDS)
+                                          .serverSelectionTimeout(60, TimeUnit.SECONDS)
+                                          .batchSize(5000);
+  }
+
+  /**
+   * 선호 순서의 압축 방식 ( zstd, snappy, zlib )
+   */
+  public MongoDBClientProfile compressors(final String... compressors) {
+    this.compressors = Arrays.asList(compressors);
+    return this;
+  }
+
+  public MongoDBClientProfile connectionsPerHost(final int min, final int max) {
+    this.minConnectionsPerHost = min;
+    this.connectionsPerHost = max;
+    return this;
+  }
+
+  /**
+   * connection 을 기다릴 수 있는 thread 수( max x multiplier )와 최대 대기시간
+   */
+  public MongoDBClientProfile waitQueue(final int multiplier, final long maxWait, final TimeUnit timeUnit) {
+    this.threadsAllowedToBlockForConnectionMultiplier = multiplier;
+    this.maxWaitTimeMillis = timeUnit.toMillis(maxWait);
+    return this;
+  }
+
+  public MongoDBClientProfile heartbeatFrequency(final long frequency, final TimeUnit timeUnit) {
+    this.heartbeatFrequencyMillis = timeUnit.toMillis(frequency);
+    return this;
+  }
+
+  public MongoDBClientProfile connectTimeout(final long timeout, final TimeUnit timeUnit) {
+    this.connectTimeoutMillis = timeUnit.toMillis(timeout);
+    return this;
+  }
+
+  /**
+   * 0 이면 제한하지 않는다.
+   */
+  public MongoDBClientProfile socketTimeout(final long timeout, final TimeUnit timeUnit) {
+    this.socketTimeoutMillis = timeUnit.toMillis(timeout);
+    return this;
+  }
+
+  public MongoDBClientProfile serverSelectionTimeout(final long timeout, final TimeUnit timeUnit) {
+    this.serverSelectionTimeoutMillis = timeUnit.toMillis(timeout);
+    return this;
+  }
+
+  /**
+   * 가장 가까운 member 보다 이 시간 이상 느린 member 에는 읽기를 보내지 않는다.
+   */
+  public MongoDBClientProfile localThreshold(final long threshold, final TimeUnit timeUnit) {
+    this.localThresholdMillis = timeUnit.toMillis(threshold);
+    return this;
+  }
+
+  public MongoDBClientProfile maxConnectionIdleTime(final long idleTime, final TimeUnit timeUnit) {
+    this.maxConnectionIdleTimeMillis = timeUnit.toMillis(idleTime);
+    return this;
+  }
+
+  /**
+   * MongoDBPool 의 find / cursor 에 적용할 batchSize. 0 이면 server 기본값
+   */
+  public MongoDBClientProfile batchSize(final int batchSize) {
+    this.batchSize = Math.max(0, batchSize);
+    return this;
+  }
+
+  public String getName() {
+    return name;
+  }
+
+  public int getBatchSize() {
+    return batchSize;
+  }
+
+  /**
+   * 설정하지 않은 값은 driver 기본값을 사용한다.
+   */
+  public MongoClientOptions toOptions() {
+    MongoClientOptions.Builder builder = MongoClientOptions.builder();
+    List<MongoCompressor> compressorList = this.createCompressors();
+    if (!compressorList.isEmpty()) builder.compressorList(compressorList);
+    if (minConnectionsPerHost >= 0) builder.minConnectionsPerHost(minConnectionsPerHost);
+    if (connectionsPerHost > 0) builder.connectionsPerHost(connectionsPerHost);
+    if (threadsAllowedToBlockForConnectionMultiplier > 0)
+      builder.threadsAllowedToBlockForConnectionMultiplier(threadsAllowedToBlockForConnectionMultiplier);
+    if (maxWaitTimeMillis >= 0) builder.maxWaitTime((int) maxWaitTimeMillis);
+    if (heartbeatFrequencyMillis > 0) builder.heartbeatFrequency((int) heartbeatFrequencyMillis);
+    if (connectTimeoutMillis >= 0) builder.connectTimeout((int) connectTimeoutMillis);
+    if (socketTimeoutMillis >= 0) builder.socketTimeout((int) socketTimeoutMillis);
+    if (serverSelectionTimeoutMillis >= 0) builder.serverSelectionTimeout((int) serverSelectionTimeoutMillis);
+    if (localThresholdMillis >= 0) builder.localThreshold((int) localThresholdMillis);
+    if (maxConnectionIdleTimeMillis >= 0) builder.maxConnectionIdleTime((int) maxConnectionIdleTimeMillis);
+    return builder.build();
+  }
+
+  private List<MongoCompressor> createCompressors() {
+    List<MongoCompressor> result = new ArrayList<>(compressors.size());
+    for (String compressor : compressors) {
+      switch (compressor.toLowerCase(Locale.ROOT)) {
+        case "snappy":
+          result.add(MongoCompressor.createSnappyCompressor());
+          break;
+        case "zlib":
+          result.add(MongoCompressor.createZlibCompressor());
+          break;
+        case "zstd":
+          // driver 4.0 미만에는 없다.
+          try {
+            result.add((MongoCompressor) MongoCompressor.class.getMethod("createZstdCompressor").invoke(null));
+          } catch (ReflectiveOperationException e) {
+            LOGGER.log(Level.WARNING, "MongoDBClientProfile {0} : zstd compressor requires driver 4.0+", name);
+          }
+          break;
+        default:
+          LOGGER.log(Level.WARNING, "MongoDBClientProfile {0} : unknown compressor {1}", new Object[] { name, compressor });
+          break;
+      }
+    }
+    return result;
+  }
+
+  @Override
+  public String toString() {
+    return name;
+  }
+}
@@ -0,0 +1,76 @@
+package com.ea.asiacentraltech.thoth.mongodb;
+
+import java.util.concurrent.TimeUnit;
+
+import org.bson.Document;
+
+/**
+ * MongoDBPool.count 의 option.
+ * 조건이 없으면 항상 collection metadata 의 estimatedDocumentCount 를 사용한다.
+ * 조건이 있으면 countDocuments 를 사용하며, maxTime 안에 끝나지 않으면 approximate 여부에 따라
+ * $sample 로 추정한 값을 반환하거나 Exception 을 발생시킨다.
+ */
+public class MongoDBCountOptions {
+  public static final int DEFAULT_SAMPLE_SIZE = 1000;
+  private static final long MIN_SAMPLE_MAX_TIME_MILLIS = 100;
+
+  private Document hint;
+  private long maxTimeMillis = 0;
+  private boolean approximate = false;
+  private int sampleSize = DEFAULT_SAMPLE_SIZE;
+
+  /**
+   * countDocuments 에 사용할 index
+   * @param hint { key : 1 }
+   * @return
+   */
+  public MongoDBCountOptions hint(final Document hint) {
+    this.hint = hint;
+    return this;
+  }
+
+  /**
+   * namespace 별 countDocuments 의 시간 제한. 0 이면 제한하지 않는다.
+   */
+  public MongoDBCountOptions maxTime(final long maxTime, final TimeUnit timeUnit) {
+    this.maxTimeMillis = timeUnit.toMillis(maxTime);
+    return this;
+  }
+
+  /**
+   * true 이면 maxTime 을 넘긴 경우 $sample 에서 조건에 맞는 비율 x estimatedDocumentCount 를 반환한다.
+   * 추정에는 maxTime / 4 ( 최소 100ms ) 가 더 걸릴 수 있다.
+   */
+  public MongoDBCountOptions approximate(final boolean approximate) {
+    this.approximate = approximate;
+    return this;
+  }
+
+  /**
+   * approximate 추정에 사용할 sample 건수
+   */
+  public MongoDBCountOptions sampleSize(final int sampleSize) {
+    this.sampleSize = Math.max(1, sampleSize);
+    return this;
+  }
+
+  public Document getHint() {
+    return hint;
+  }
+
+  public long getMaxTime(final TimeUnit timeUnit) {
+    return timeUnit.convert(maxTimeMillis, TimeUnit.MILLISECONDS);
+  }
+
+  public boolean isApproximate() {
+    return approximate;
+  }
+
+  public int getSampleSize() {
+    return sampleSize;
+  }
+
+  long getSampleMaxTimeMillis() {
+    return Math.max(MIN_SAMPLE_MAX_TIME_MILLIS, maxTimeMillis / 4);
+  }
+}
@@ -0,0 +1,71 @@
+package com.ea.asiacentraltech.thoth.mongodb;
+
+import java.io.Closeable;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+import org.bson.Document;
+
+import com.mongodb.client.MongoCursor;
+
+/**
+ * Pool에서 빌린 MongoDB와 MongoCursor를 함께 보관하는 Iterator.
+ * 결과를 모두 읽었거나 close 될 때 cursor를 닫고 MongoDB를 Pool에 반환한다.
+ * 다음 batch는 소비자가 현재 batch를 다 읽은 뒤에야 요청되므로, 메모리 사용량은 batchSize로 제한된다.
+ */
+public class MongoDBCursor implements Iterator<Document>, Closeable {
+  private final MongoDBPool pool;
+  private final MongoDB mongoDB;
+  private final MongoCursor<Document> cursor;
+  private final AtomicBoolean closed = new AtomicBoolean(false);
+
+  MongoDBCursor(MongoDBPool pool, MongoDB mongoDB, MongoCursor<Document> cursor) {
+    this.pool = pool;
+    this.mongoDB = mongoDB;
+    this.cursor = cursor;
+  }
+
+  @Override
+  public boolean hasNext() {
+    if (closed.get()) return false;
+    boolean hasNext;
+    try {
+      hasNext = cursor.hasNext();
+    } catch (RuntimeException e) {
+      this.close();
+      throw e;
+    }
+    if (!hasNext) this.close();
+    return hasNext;
+  }
+
+  @Override
+  public Document next() {
+    if (!this.hasNext()) throw new NoSuchElementException();
+    return cursor.next();
+  }
+
+  /**
+   * Stream으로 변환한다. Stream을 close 하면 cursor도 닫힌다.
+   * @return
+   */
+  public Stream<Document> stream() {
+    return StreamSupport.stream(Spliterators.spliteratorUnknownSize(this, Spliterator.ORDERED | Spliterator.NONNULL), false)
+                        .onClose(this::close);
+  }
+
+  @Override
+  public void close() {
+    if (!closed.compareAndSet(false, true)) return;
+    try {
+      cursor.close();
+    } finally {
+      pool.returnObject(mongoDB);
+    }
+  }
+}
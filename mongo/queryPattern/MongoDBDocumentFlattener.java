@@ -0,0 +1,141 @@
+package com.ea.asiacentraltech.thoth.mongodb;
+
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import org.bson.Document;
+
+/**
+ * 중첩 Document 를 . 으로 연결한 key path 로 펼친다. ( MongoDB.getKeyList / getDepthValue / getDocValue )
+ * Document 를 한번만 순회하며 하나의 StringBuilder 를 되돌려 가며 key 를 만들고, 요청한 depth 보다 깊은 하위 Document 는 순회하지 않는다.
+ * key 에 . 이 포함되거나 빈 key 가 있는 경우에는 기존 구현( split 후 root 부터 다시 조회 )과 같은 결과가 나오도록 해당 key 만 기존 방식으로 계산한다.
+ */
+public final class MongoDBDocumentFlattener {
+  private MongoDBDocumentFlattener() {
+  }
+
+  /**
+   * 모든 leaf 의 key path
+   * @param doc
+   * @return
+   */
+  public static Set<String> keys(final Document doc) {
+    Set<String> keyList = new HashSet<>();
+    collectKeys(doc, new StringBuilder(), true, keyList);
+    return keyList;
+  }
+
+  /**
+   * depth 단계 leaf 의 key path 와 int value
+   * @param doc
+   * @param depth key path 를 . 으로 나눈 개수
+   * @return
+   */
+  public static ObjectIntHashMap<String> depthValues(final Document doc, final int depth) {
+    ObjectIntHashMap<String> result = new ObjectIntHashMap<>(doc.size());
+    flatten(doc, doc, new StringBuilder(), 0, true, depth, result);
+    return result;
+  }
+
+  /**
+   * .으로 구분된 key의 int value. 값이 없거나 int 가 아니면 0
+   * @param doc
+   * @param keyInfo
+   * @return
+   */
+  public static int value(final Document doc, final String keyInfo) {
+    // String.split 과 같이 끝의 빈 key 는 무시한다.
+    int end = keyInfo.length();
+    while (end > 0 && keyInfo.charAt(end - 1) == '.') end--;
+    if (end == 0 && !keyInfo.isEmpty()) return toInt(doc);
+
+    Object value = doc;
+    int from = 0;
+    while (value instanceof Document) {
+      int dot = keyInfo.indexOf('.', from);
+      if (dot < 0 || dot > end) dot = end;
+      value = ((Document) value).get(keyInfo.substring(from, dot));
+      if (dot == end) break;
+      from = dot + 1;
+    }
+    return toInt(value);
+  }
+
+  static int toInt(final Object value) {
+    if (value instanceof Integer) return (Integer) value;
+    if (value == null) return 0;
+    try {
+      return Integer.parseInt(value.toString());
+    } catch (NumberFormatException e) {
+      return 0;
+    }
+  }
+
+  /**
+   * keyInfo.split("\\.").length 와 같은 값
+   */
+  static int splitLength(final String keyInfo) {
+    int end = keyInfo.length();
+    while (end > 0 && keyInfo.charAt(end - 1) == '.') end--;
+    if (end == 0) return keyInfo.isEmpty() ? 1 : 0;
+    int length = 1;
+    for (int i = 0; i < end; i++) {
+      if (keyInfo.charAt(i) == '.') length++;
+    }
+    return length;
+  }
+
+  private static void collectKeys(final Document doc, final StringBuilder path, final boolean root, final Set<String> keyList) {
+    int mark = path.length();
+    for (Map.Entry<String, Object> entry : doc.entrySet()) {
+      if (!root) path.append('.');
+      path.append(entry.getKey());
+      if (entry.getValue() instanceof Document) {
+        collectKeys((Document) entry.getValue(), path, false, keyList);
+      } else {
+        keyList.add(path.toString());
+      }
+      path.setLength(mark);
+    }
+  }
+
+  /**
+   * @param segments path 의 key 개수
+   * @param clean path 의 모든 key 가 비어있지 않고 . 을 포함하지 않으면 true. 이때 segments 가 split 결과의 길이와 같다.
+   */
+  private static void flatten(final Document root,
+                              final Document doc,
+                              final StringBuilder path,
+                              final int segments,
+                              final boolean clean,
+                              final int depth,
+                              final ObjectIntHashMap<String> result) {
+    int mark = path.length();
+    for (Map.Entry<String, Object> entry : doc.entrySet()) {
+      String key = entry.getKey();
+      Object value = entry.getValue();
+      boolean cleanKey = clean && !key.isEmpty() && key.indexOf('.') < 0;
+      int keySegments = segments + 1;
+      if (value instanceof Document) {
+        // clean path 는 하위 key 가 늘어날수록 split 길이도 늘어나므로 depth 를 넘으면 더 내려가지 않는다.
+        // depth 와 같은 경우에는 하위 key 가 비어있거나 . 으로만 이루어지면 ( split 에서 무시되는 끝의 빈 문자열 ) 결과가 생기므로 내려간다.
+        if (cleanKey && keySegments > depth) continue;
+        if (segments > 0) path.append('.');
+        path.append(key);
+        flatten(root, (Document) value, path, keySegments, cleanKey, depth, result);
+      } else if (cleanKey) {
+        if (keySegments != depth) continue;
+        if (segments > 0) path.append('.');
+        path.append(key);
+        result.put(path.toString(), toInt(value));
+      } else {
+        if (segments > 0) path.append('.');
+        path.append(key);
+        String keyInfo = path.toString();
+        if (splitLength(keyInfo) == depth) result.put(keyInfo, value(root, keyInfo));
+      }
+      path.setLength(mark);
+    }
+  }
+}
@@ -0,0 +1,454 @@
+package com.ea.asiacentraltech.thoth.mongodb;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.bson.Document;
+
+import com.mongodb.MongoExecutionTimeoutException;
+import com.mongodb.client.FindIterable;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoCursor;
+import com.mongodb.client.model.CountOptions;
+import com.mongodb.client.model.EstimatedDocumentCountOptions;
+
+/**
+ * 다수의 database x collection 에 대한 find / aggregate / count 를 동시에 수행한다.
+ * 동시에 수행되는 namespace 수는 parallelism 으로 제한되며, 각 작업은 Pool에서 MongoDB를 따로 빌린다.
+ * find 의 sort 결과는 k-way merge 로 합치고, limit / skip 은 전체 결과에 대해 적용한다.
+ * findPage 는 skip 대신 namespace 별 마지막 위치( MongoDBKeyset token )부터 조회한다.
+ */
+public class MongoDBFanOut {
+  private static final AtomicInteger POOL_SEQ = new AtomicInteger();
+
+  private final MongoDBPool pool;
+  private final int parallelism;
+  private final ExecutorService executor;
+
+  public MongoDBFanOut(final MongoDBPool pool, final int parallelism) {
+    this.pool = pool;
+    this.parallelism = Math.max(1, parallelism);
+    final String prefix = "mongodb-fanout-" + POOL_SEQ.incrementAndGet() + "-";
+    final AtomicInteger threadSeq = new AtomicInteger();
+    ThreadFactory factory = r -> {
+      Thread thread = new Thread(r, prefix + threadSeq.incrementAndGet());
+      thread.setDaemon(true);
+      return thread;
+    };
+    this.executor = Executors.newFixedThreadPool(this.parallelism, factory);
+  }
+
+  public int getParallelism() {
+    return parallelism;
+  }
+
+  /**
+   * 모든 namespace를 find 한 결과를 반환한다.
+   * sort가 있으면 각 namespace의 정렬된 결과를 k-way merge 하고, 없으면 databases x collections 순서로 이어 붙인다.
+   * skip / limit 은 합쳐진 결과 전체에 대해 적용되며, limit 이 0 이하이면 제한하지 않는다.
+   * @return
+   * @throws Exception
+   */
+  public List<Document> find(final String[] databases,
+                             final String[] collections,
+                             final Document query,
+                             final Document fields,
+                             final Document sort,
+                             final int limit,
+                             final int skip) throws Exception {
+    final int offset = Math.max(0, skip);
+    // 각 namespace에서 필요한 최대 건수 ( 0 : 제한 없음 )
+    final int fetch = limit > 0 ? offset + limit : 0;
+    List<Callable<List<Document>>> tasks = new ArrayList<>();
+    for (final String database : databases) {
+      for (final String collection : collections) {
+        tasks.add(() -> this.findNamespace(database, collection, query, fields, sort, fetch));
+      }
+    }
+
+    DocumentSortComparator comparator = new DocumentSortComparator(sort);
+    if (comparator.isSorted()) {
+      return merge(this.invokeAll(tasks), comparator, offset, limit);
+    }
+    return this.concat(tasks, offset, limit);
+  }
+
+  /**
+   * 모든 namespace를 sort 순서로 limit 건씩 조회한다. ( keyset pagination )
+   * 각 namespace는 token 에 저장된 마지막 위치 다음부터 최대 limit 건만 조회하므로, 몇 번째 page 이든 비용이 같다.
+   * sort 에 _id 가 없으면 _id : 1 이 추가된다. sort key 는 projection 과 관계없이 조회하되, 요청하지 않은 field 는 결과에서 제거한다.
+   * @param token 이전 page 의 getNextToken(). 첫 page 는 null
+   * @return
+   * @throws Exception
+   */
+  public MongoDBPage findPage(final String[] databases,
+                              final String[] collections,
+                              final Document query,
+                              final Document fields,
+                              final Document sort,
+                              final int limit,
+                              final String token) throws Exception {
+    if (limit <= 0) throw new IllegalArgumentException("limit must be positive : " + limit);
+    final MongoDBKeyset keyset = new MongoDBKeyset(sort, fields);
+    final MongoDBKeyset.Position position = keyset.decode(token);
+    final Document projection = keyset.getProjection();
+    List<String> namespaces = new ArrayList<>();
+    List<Callable<List<Document>>> tasks = new ArrayList<>();
+    for (final String database : databases) {
+      for (final String collection : collections) {
+        String namespace = database + "." + collection;
+        namespaces.add(namespace);
+        if (position.isDone(namespace)) {
+          tasks.add(Collections::emptyList);
+          continue;
+        }
+        final Document after = keyset.after(query, position.get(namespace));
+        tasks.add(() -> this.findNamespace(database, collection, after, projection, keyset.getSort(), limit));
+      }
+    }
+    List<List<Document>> results = this.invokeAll(tasks);
+
+    // k-way merge 하면서 namespace 별로 마지막으로 반환한 Document를 기억한다.
+    DocumentSortComparator comparator = new DocumentSortComparator(keyset.getSort());
+    PriorityQueue<MergeHead> heap = new PriorityQueue<>(Math.max(1, results.size()));
+    for (int i = 0; i < results.size(); i++) {
+      Iterator<Document> iterator = results.get(i).iterator();
+      if (iterator.hasNext()) heap.add(new MergeHead(comparator, i, iterator));
+    }
+    int[] emitted = new int[results.size()];
+    Document[] last = new Document[results.size()];
+    List<Document> docList = new ArrayList<>(limit);
+    while (!heap.isEmpty() && docList.size() < limit) {
+      MergeHead head = heap.poll();
+      docList.add(head.doc);
+      emitted[head.index]++;
+      last[head.index] = head.doc;
+      if (head.advance()) heap.add(head);
+    }
+
+    MongoDBKeyset.Position next = new MongoDBKeyset.Position();
+    boolean hasNext = false;
+    for (int i = 0; i < namespaces.size(); i++) {
+      String namespace = namespaces.get(i);
+      List<Document> result = results.get(i);
+      // limit 보다 적게 조회되었고 모두 반환했다면 더 이상 결과가 없다.
+      if (position.isDone(namespace) || (result.size() < limit && emitted[i] == result.size())) {
+        next.done(namespace);
+        continue;
+      }
+      hasNext = true;
+      next.put(namespace, last[i] != null ? keyset.valuesOf(last[i]) : position.get(namespace));
+    }
+    keyset.strip(docList);
+    return new MongoDBPage(docList, hasNext ? keyset.encode(next) : null);
+  }
+
+  /**
+   * 모든 namespace를 aggregate 한 결과를 databases x collections 순서로 반환한다.
+   * @throws Exception
+   */
+  public List<Document> aggregate(final String[] databases,
+                                  final String[] collections,
+                                  final List<Document> pipe) throws Exception {
+    List<Callable<List<Document>>> tasks = new ArrayList<>();
+    for (final String database : databases) {
+      for (final String collection : collections) {
+        tasks.add(() -> this.aggregateNamespace(database, collection, pipe));
+      }
+    }
+    return this.concat(tasks, 0, 0);
+  }
+
+  /**
+   * 모든 namespace의 count를 databases x collections 순서로 반환한다.
+   * @throws Exception
+   */
+  public List<Document> count(final String[] databases,
+                              final String[] collections,
+                              final Document query) throws Exception {
+    return this.count(databases, collections, query, new MongoDBCountOptions());
+  }
+
+  /**
+   * 모든 namespace의 count를 동시에 수행하여 databases x collections 순서로 반환한다.
+   * 조건이 없으면 estimatedDocumentCount( collection metadata ), 있으면 countDocuments 를 사용한다.
+   * @return [ { database, collection, count, approximate } ]  approximate 는 $sample 추정값인 경우 true
+   * @throws Exception
+   */
+  public List<Document> count(final String[] databases,
+                              final String[] collections,
+                              final Document query,
+                              final MongoDBCountOptions options) throws Exception {
+    List<Callable<Document>> tasks = new ArrayList<>();
+    for (final String database : databases) {
+      for (final String collection : collections) {
+        tasks.add(() -> this.countNamespace(database, collection, query, options));
+      }
+    }
+    return this.invokeAll(tasks);
+  }
+
+  /**
+   * 실행중인 작업을 중단하고 Thread를 정리한다.
+   */
+  public void close() {
+    executor.shutdownNow();
+  }
+
+  private List<Document> findNamespace(final String database,
+                                       final String collection,
+                                       final Document query,
+                                       final Document fields,
+                                       final Document sort,
+                                       final int fetch) throws Exception {
+    MongoDB mongoDB = null;
+    try {
+      mongoDB = pool.borrowObject();
+      FindIterable<Document> find = mongoDB.getCollection(database, collection)
+                                           .find(query)
+                                           .projection(fields)
+                                           .sort(sort)
+                                           .maxTime(ConstantMongodb.MONGODB_CURSOR_MAX_SECS, TimeUnit.SECONDS);
+      if (fetch > 0) find.limit(fetch);
+      List<Document> docList = new ArrayList<>();
+      MongoCursor<Document> cursor = find.iterator();
+      try {
+        while (cursor.hasNext()) {
+          docList.add(cursor.next());
+        }
+      } finally {
+        cursor.close();
+      }
+      return docList;
+    } finally {
+      if (mongoDB != null) pool.returnObject(mongoDB);
+    }
+  }
+
+  private Document countNamespace(final String database,
+                                  final String collection,
+                                  final Document query,
+                                  final MongoDBCountOptions options) throws Exception {
+    MongoDB mongoDB = null;
+    try {
+      mongoDB = pool.borrowObject();
+      MongoCollection<Document> coll = mongoDB.getCollection(database, collection);
+      Document result = new Document().append("database", database)
+                                      .append("collection", collection);
+      long maxTime = options.getMaxTime(TimeUnit.MILLISECONDS);
+      if (query == null || query.isEmpty()) {
+        EstimatedDocumentCountOptions estimateOptions = new EstimatedDocumentCountOptions();
+        if (maxTime > 0) estimateOptions.maxTime(maxTime, TimeUnit.MILLISECONDS);
+        return result.append("count", coll.estimatedDocumentCount(estimateOptions))
+                     .append("approximate", false);
+      }
+      CountOptions countOptions = new CountOptions();
+      if (options.getHint() != null) countOptions.hint(options.getHint());
+      if (maxTime > 0) countOptions.maxTime(maxTime, TimeUnit.MILLISECONDS);
+      try {
+        return result.append("count", coll.countDocuments(query, countOptions))
+                     .append("approximate", false);
+      } catch (MongoExecutionTimeoutException e) {
+        if (!options.isApproximate()) throw e;
+        return result.append("count", sampleCount(coll, query, options))
+                     .append("approximate", true);
+      }
+    } finally {
+      if (mongoDB != null) pool.returnObject(mongoDB);
+    }
+  }
+
+  /**
+   * $sample 에서 query 에 맞는 비율 x estimatedDocumentCount
+   */
+  private static long sampleCount(final MongoCollection<Document> coll,
+                                  final Document query,
+                                  final MongoDBCountOptions options) {
+    long maxTime = options.getSampleMaxTimeMillis();
+    long total = coll.estimatedDocumentCount(new EstimatedDocumentCountOptions().maxTime(maxTime, TimeUnit.MILLISECONDS));
+    if (total == 0) return 0;
+    int sampleSize = options.getSampleSize();
+    Document matched = coll.aggregate(Arrays.asList(new Document("$sample", new Document("size", sampleSize)),
+                                                    new Document("$match", query),
+                                                    new Document("$count", "n")))
+                           .maxTime(maxTime, TimeUnit.MILLISECONDS)
+                           .first();
+    if (matched == null) return 0;
+    long sampled = Math.min(sampleSize, total);
+    return Math.round(((Number) matched.get("n")).doubleValue() / sampled * total);
+  }
+
+  private List<Document> aggregateNamespace(final String database,
+                                            final String collection,
+                                            final List<Document> pipe) throws Exception {
+    MongoDB mongoDB = null;
+    try {
+      mongoDB = pool.borrowObject();
+      List<Document> docList = new ArrayList<>();
+      MongoCursor<Document> cursor = mongoDB.getCollection(database, collection)
+                                            .aggregate(pipe)
+                                            .maxTime(ConstantMongodb.MONGODB_CURSOR_MAX_SECS, TimeUnit.SECONDS)
+                                            .iterator();
+      try {
+        while (cursor.hasNext()) {
+          docList.add(cursor.next());
+        }
+      } finally {
+        cursor.close();
+      }
+      return docList;
+    } finally {
+      if (mongoDB != null) pool.returnObject(mongoDB);
+    }
+  }
+
+  /**
+   * 모든 작업을 동시에 수행하고 작업 순서대로 결과를 반환한다.
+   * namespace가 하나라면 호출 Thread에서 바로 수행한다.
+   */
+  <T> List<T> invokeAll(final List<Callable<T>> tasks) throws Exception {
+    List<T> results = new ArrayList<>(tasks.size());
+    if (tasks.size() == 1) {
+      results.add(tasks.get(0).call());
+      return results;
+    }
+    List<Future<T>> futures = new ArrayList<>(tasks.size());
+    try {
+      for (Callable<T> task : tasks) {
+        futures.add(executor.submit(task));
+      }
+      for (Future<T> future : futures) {
+        results.add(getResult(future));
+      }
+      return results;
+    } finally {
+      cancel(futures);
+    }
+  }
+
+  /**
+   * 작업 순서대로 결과를 이어 붙인다.
+   * offset + limit 건이 채워지면 남은 작업은 취소한다.
+   */
+  private List<Document> concat(final List<Callable<List<Document>>> tasks,
+                                final int offset,
+                                final int limit) throws Exception {
+    if (tasks.size() == 1) {
+      return slice(tasks.get(0).call(), offset, limit);
+    }
+    List<Document> docList = new ArrayList<>();
+    int skipped = 0;
+    List<Future<List<Document>>> futures = new ArrayList<>(tasks.size());
+    try {
+      for (Callable<List<Document>> task : tasks) {
+        futures.add(executor.submit(task));
+      }
+      for (Future<List<Document>> future : futures) {
+        for (Document doc : getResult(future)) {
+          if (skipped < offset) {
+            skipped++;
+            continue;
+          }
+          docList.add(doc);
+          if (limit > 0 && docList.size() >= limit) return docList;
+        }
+      }
+      return docList;
+    } finally {
+      cancel(futures);
+    }
+  }
+
+  /**
+   * 정렬된 결과 목록들을 k-way merge 한다.
+   */
+  static List<Document> merge(final List<List<Document>> sortedLists,
+                              final DocumentSortComparator comparator,
+                              final int offset,
+                              final int limit) {
+    PriorityQueue<MergeHead> heap = new PriorityQueue<>(Math.max(1, sortedLists.size()));
+    for (int i = 0; i < sortedLists.size(); i++) {
+      Iterator<Document> iterator = sortedLists.get(i).iterator();
+      if (iterator.hasNext()) heap.add(new MergeHead(comparator, i, iterator));
+    }
+    List<Document> docList = new ArrayList<>();
+    int skipped = 0;
+    while (!heap.isEmpty()) {
+      MergeHead head = heap.poll();
+      if (skipped < offset) {
+        skipped++;
+      } else {
+        docList.add(head.doc);
+        if (limit > 0 && docList.size() >= limit) break;
+      }
+      if (head.advance()) heap.add(head);
+    }
+    return docList;
+  }
+
+  private static List<Document> slice(final List<Document> docList, final int offset, final int limit) {
+    if (offset >= docList.size()) return new ArrayList<>();
+    int end = limit > 0 ? Math.min(docList.size(), offset + limit) : docList.size();
+    if (offset == 0 && end == docList.size()) return docList;
+    return new ArrayList<>(docList.subList(offset, end));
+  }
+
+  private static <T> T getResult(final Future<T> future) throws Exception {
+    try {
+      return future.get();
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof Exception) throw (Exception) cause;
+      if (cause instanceof Error) throw (Error) cause;
+      throw e;
+    }
+  }
+
+  private static <T> void cancel(final List<Future<T>> futures) {
+    for (Future<T> future : futures) {
+      if (!future.isDone()) future.cancel(true);
+    }
+  }
+
+  /**
+   * k-way merge에서 각 namespace의 현재 위치.
+   * 같은 값이면 namespace 순서를 유지한다.
+   */
+  private static class MergeHead implements Comparable<MergeHead> {
+    private final DocumentSortComparator comparator;
+    private final int index;
+    private final Iterator<Document> iterator;
+    private Document doc;
+
+    MergeHead(DocumentSortComparator comparator, int index, Iterator<Document> iterator) {
+      this.comparator = comparator;
+      this.index = index;
+      this.iterator = iterator;
+      this.doc = iterator.next();
+    }
+
+    boolean advance() {
+      if (!iterator.hasNext()) return false;
+      doc = iterator.next();
+      return true;
+    }
+
+    @Override
+    public int compareTo(MergeHead o) {
+      int cmp = comparator.compare(doc, o.doc);
+      return cmp != 0 ? cmp : Integer.compare(index, o.index);
+    }
+  }
+}
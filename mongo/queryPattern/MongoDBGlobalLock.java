@@ -0,0 +1,297 @@
+package com.ea.asiacentraltech.thoth.mongodb;
+
+import java.util.Arrays;
+import java.util.Date;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.bson.BsonDocument;
+import org.bson.BsonValue;
+import org.bson.Document;
+import org.bson.types.ObjectId;
+
+import com.mongodb.MongoException;
+import com.mongodb.WriteConcern;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoCursor;
+import com.mongodb.client.model.FindOneAndUpdateOptions;
+import com.mongodb.client.model.ReturnDocument;
+import com.mongodb.client.model.changestream.ChangeStreamDocument;
+import com.mongodb.client.model.changestream.OperationType;
+
+/**
+ * meta.dailyjob 기반의 lease lock.
+ * startGlobalLock 과 같은 Document 형식( _id : jobID, _t : 획득 시각의 ObjectId )을 사용하므로 기존 방식과 함께 동작한다.
+ * - 획득할 때마다 fence 를 1씩 증가시켜 fencing token 으로 반환한다.
+ *   보호하는 쓰기는 fenced 조건과 함께 fence 를 기록하여, lease 가 만료된 뒤 늦게 도착한 이전 보유자의 쓰기를 거부한다.
+ *   조건을 붙일 수 없는 command 는 보내기 전에 isHeld 로 확인한다. ( MongoDB.collectionSharding )
+ * - 보유중에는 lease 의 1/3 주기로 _t 를 갱신하여 작업이 길어져도 lock 이 만료되지 않는다.
+ * - 대기자는 meta.dailyjob change stream 또는 같은 Process의 release 알림으로 즉시 깨어나며,
+ *   알림이 없으면 jitter 가 적용된 backoff 로 재시도한다.
+ */
+public class MongoDBGlobalLock {
+  private static final ConcurrentHashMap<String, MongoDBGlobalLock> CLUSTERS = new ConcurrentHashMap<>();
+  private static final ObjectId ZERO_OID = new ObjectId("000000000000000000000000");
+  private static final long MIN_BACKOFF_MILLIS = 50;
+  private static final long MAX_BACKOFF_MILLIS = 2000;
+  private static final String KEY_TIME = "_t";
+  private static final String KEY_TID = "tID";
+  static final String KEY_FENCE = "fence";
+  private static final ScheduledExecutorService RENEWER = Executors.newSingleThreadScheduledExecutor(r -> {
+    Thread thread = new Thread(r, "mongodb-globallock-renewer");
+    thread.setDaemon(true);
+    return thread;
+  });
+
+  private final ConcurrentHashMap<String, MongoDBChangeSignal> signals = new ConcurrentHashMap<>();
+  private final AtomicBoolean watching = new AtomicBoolean(false);
+  private final String clusterKey;
+
+  private MongoDBGlobalLock(final String clusterKey) {
+    this.clusterKey = clusterKey;
+  }
+
+  public static MongoDBGlobalLock of(final String clusterKey) {
+    return CLUSTERS.computeIfAbsent(clusterKey, MongoDBGlobalLock::new);
+  }
+
+  /**
+   * 보유중인 lock
+   */
+  public static class Lease {
+    private final String jobID;
+    private final long fence;
+    private final int leaseSeconds;
+    // renew 와 release 가 동시에 _t 를 바꾸지 않도록 한다.
+    private final ReentrantLock lock = new ReentrantLock();
+    private volatile ObjectId token;
+    private volatile ScheduledFuture<?> renewal;
+    private boolean released = false;
+
+    Lease(String jobID, ObjectId token, long fence, int leaseSeconds) {
+      this.jobID = jobID;
+      this.token = token;
+      this.fence = fence;
+      this.leaseSeconds = leaseSeconds;
+    }
+
+    public String getJobID() {
+      return jobID;
+    }
+
+    /**
+     * fencing token. 획득할 때마다 증가하므로, 이 값보다 작은 token을 가진 작업의 쓰기는 거부할 수 있다.
+     * @see MongoDBGlobalLock#fenced(Document, Lease)
+     */
+    public long getFence() {
+      return fence;
+    }
+
+    public ObjectId getToken() {
+      return token;
+    }
+  }
+
+  /**
+   * lock 획득을 한번 시도한다.
+   * @param dailyJob meta.dailyjob collection
+   * @param jobID
+   * @param leaseSeconds lease 시간. _t 가 이 시간보다 오래되었으면 만료된 lock 으로 본다.
+   * @return 획득하지 못하면 null
+   */
+  public Lease tryAcquire(final MongoCollection<Document> dailyJob, final String jobID, final int leaseSeconds) {
+    MongoCollection<Document> coll = dailyJob.withWriteConcern(WriteConcern.ACKNOWLEDGED);
+    ObjectId token = new ObjectId();
+    ObjectId expired = new ObjectId(new Date(System.currentTimeMillis() - 1000L * leaseSeconds));
+    Document query = new Document(ConstantMongodb.ID, jobID)
+        .append("$or", Arrays.asList(new Document(KEY_TIME, new Document("$lte", expired)),
+                                     new Document(KEY_TIME, new Document("$exists", false))));
+    Document update = new Document("$set", new Document(KEY_TIME, token).append(KEY_TID, token))
+                                            .append("$inc", new Document(KEY_FENCE, 1L));
+    Document doc;
+    try {
+      doc = coll.findOneAndUpdate(query, update, new FindOneAndUpdateOptions().returnDocument(ReturnDocument.AFTER)
+                                                                               .upsert(true)
+                                                                               .projection(new Document(KEY_FENCE, 1)));
+    } catch (MongoException e) {
+      // 다른 Node가 보유중 ( upsert 가 duplicate key 로 실패 )
+      if (e.getCode() == ConstantMongodb.ERROR_DUPLICATE_KEY) return null;
+      throw e;
+    }
+    if (doc == null) return null;
+    Lease lease = new Lease(jobID, token, ((Number) doc.get(KEY_FENCE)).longValue(), leaseSeconds);
+    this.scheduleRenewal(coll, lease);
+    return lease;
+  }
+
+  /**
+   * lock을 획득할 때까지 대기한다.
+   * @param dailyJob meta.dailyjob collection
+   * @param jobID
+   * @param leaseSeconds
+   * @param logger
+   * @return
+   * @throws InterruptedException
+   */
+  public Lease acquire(final MongoCollection<Document> dailyJob,
+                       final String jobID,
+                       final int leaseSeconds,
+                       final Logger logger) throws InterruptedException {
+    this.watch(dailyJob, logger);
+    MongoDBChangeSignal signal = this.getSignal(jobID);
+    long backoff = MIN_BACKOFF_MILLIS;
+    while (true) {
+      long generation = signal.generation();
+      Lease lease = this.tryAcquire(dailyJob, jobID, leaseSeconds);
+      if (lease != null) return lease;
+      if (!signal.await(generation, MongoDBChangeSignal.jitter(backoff))) {
+        backoff = Math.min(backoff * 2, MAX_BACKOFF_MILLIS);
+      }
+    }
+  }
+
+  /**
+   * lease 를 연장한다.
+   * @return 다른 Node에게 lock 을 빼앗겼으면 false
+   */
+  public boolean renew(final MongoCollection<Document> dailyJob, final Lease lease) {
+    lease.lock.lock();
+    try {
+      if (lease.released) return false;
+      ObjectId token = new ObjectId();
+      long matched = dailyJob.updateOne(new Document(ConstantMongodb.ID, lease.jobID).append(KEY_TIME, lease.token),
+                                        new Document("$set", new Document(KEY_TIME, token))).getMatchedCount();
+      if (matched == 0) return false;
+      lease.token = token;
+      return true;
+    } finally {
+      lease.lock.unlock();
+    }
+  }
+
+  /**
+   * @return 해제하지 않았고, 이후 다른 Node 가 획득하지 않았으면( fence 가 그대로 ) true
+   */
+  public boolean isHeld(final MongoCollection<Document> dailyJob, final Lease lease) {
+    lease.lock.lock();
+    try {
+      if (lease.released) return false;
+    } finally {
+      lease.lock.unlock();
+    }
+    return dailyJob.find(new Document(ConstantMongodb.ID, lease.jobID).append(KEY_FENCE, lease.fence))
+                   .projection(new Document(ConstantMongodb.ID, 1))
+                   .first() != null;
+  }
+
+  /**
+   * 보호하는 Document 의 쓰기 조건을 추가한다. 더 큰 fence 로 기록된 Document 는 match 되지 않는다.
+   * 쓰기의 $set 에 KEY_FENCE : lease.getFence() 를 함께 기록해야 한다.
+   * @param query 변경할 Document 의 조건. $or 를 사용하지 않아야 한다.
+   * @return query
+   */
+  public static Document fenced(final Document query, final Lease lease) {
+    return query.append("$or", Arrays.asList(new Document(KEY_FENCE, new Document("$lte", lease.fence)),
+                                             new Document(KEY_FENCE, new Document("$exists", false))));
+  }
+
+  /**
+   * lock 을 해제하고 대기중인 Thread를 깨운다.
+   */
+  public void release(final MongoCollection<Document> dailyJob, final Lease lease) {
+    lease.lock.lock();
+    try {
+      if (lease.released) return;
+      lease.released = true;
+      ScheduledFuture<?> renewal = lease.renewal;
+      if (renewal != null) renewal.cancel(false);
+      dailyJob.updateOne(new Document(ConstantMongodb.ID, lease.jobID).append(KEY_TIME, lease.token),
+                         new Document("$set", new Document(KEY_TIME, ZERO_OID)));
+    } finally {
+      lease.lock.unlock();
+    }
+    this.signal(lease.jobID);
+  }
+
+  /**
+   * jobID 를 기다리는 같은 Process 의 Thread를 깨운다.
+   */
+  public void signal(final String jobID) {
+    MongoDBChangeSignal signal = signals.get(jobID);
+    if (signal != null) signal.signal();
+  }
+
+  private MongoDBChangeSignal getSignal(final String jobID) {
+    return signals.computeIfAbsent(jobID, id -> new MongoDBChangeSignal());
+  }
+
+  private void scheduleRenewal(final MongoCollection<Document> dailyJob, final Lease lease) {
+    long period = Math.max(1000L, 1000L * lease.leaseSeconds / 3);
+    lease.renewal = RENEWER.scheduleAtFixedRate(() -> {
+      try {
+        if (!this.renew(dailyJob, lease)) lease.renewal.cancel(false);
+      } catch (RuntimeException e) {
+        // 다음 주기에 재시도
+      }
+    }, period, period, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * meta.dailyjob change stream 을 구독하여 lock 이 해제되면 대기자를 깨운다.
+   * 구독이 끊어지면 다음 acquire 에서 다시 구독한다.
+   */
+  private void watch(final MongoCollection<Document> dailyJob, final Logger logger) {
+    if (!watching.compareAndSet(false, true)) return;
+    final MongoCursor<ChangeStreamDocument<Document>> cursor;
+    try {
+      cursor = dailyJob.watch().iterator();
+    } catch (MongoException e) {
+      // change stream 미지원 : backoff 만 사용한다.
+      if (logger != null)
+        logger.log(Level.INFO, "global lock change stream disabled {0} : {1}", new Object[] { clusterKey, e.getMessage() });
+      return;
+    }
+    Thread thread = new Thread(() -> {
+      try {
+        while (cursor.hasNext()) {
+          this.onChange(cursor.next());
+        }
+      } catch (RuntimeException e) {
+        if (logger != null)
+          logger.log(Level.FINE, "global lock change stream closed {0} : {1}", new Object[] { clusterKey, e.getMessage() });
+      } finally {
+        try {
+          cursor.close();
+        } catch (RuntimeException e) {
+          // ignore
+        }
+        watching.set(false);
+        // 놓친 해제가 있을 수 있으므로 모든 대기자를 깨운다.
+        for (MongoDBChangeSignal signal : signals.values()) {
+          signal.signal();
+        }
+      }
+    }, "mongodb-globallock-watcher");
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  private void onChange(final ChangeStreamDocument<Document> change) {
+    BsonDocument key = change.getDocumentKey();
+    BsonValue id = key == null ? null : key.get(ConstantMongodb.ID);
+    if (id == null || !id.isString()) return;
+    if (change.getOperationType() == OperationType.UPDATE && change.getUpdateDescription() != null) {
+      // lease 갱신은 무시하고, 해제( _t = 0 ) 만 알린다.
+      BsonValue time = change.getUpdateDescription().getUpdatedFields().get(KEY_TIME);
+      if (time == null || !time.isObjectId() || !ZERO_OID.equals(time.asObjectId().getValue())) return;
+    }
+    this.signal(id.asString().getValue());
+  }
+}
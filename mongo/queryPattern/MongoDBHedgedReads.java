@@ -0,0 +1,195 @@
+package com.ea.asiacentraltech.thoth.mongodb;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.bson.Document;
+
+import com.ea.asiacentraltech.thoth.mongodb.MongoDBPoolMetrics.Operation;
+
+/**
+ * MongoDBPool.findOne 의 hedged read.
+ * 첫 시도가 FIND_ONE p95 안에 끝나지 않으면 같은 읽기를 다른 member 로 한번 더 보내고, 먼저 성공한 결과를 사용한다.
+ * mongos 로 접속한 경우 다른 member 는 다른 mongos 이다. ( MongoDBReadRouting )
+ * 첫 시도가 아직 borrow 나 server selection 중이면 느린 것은 Pool / cluster 이므로 hedge 하지 않는다.
+ * 늦은 쪽은 cancel( interrupt ) 하지만, driver 3.x 는 진행 중인 socket read 를 interrupt 로 중단하지 않는다. ( borrow 대기만 멈춘다 )
+ * 그래서 hedge 할 수 있는 읽기는 두 시도 모두 attemptMaxTime 의 maxTime 으로 보내, 늦은 쪽이 MongoDB 와 thread 를 오래 잡지 않게 한다.
+ * 두번째 시도는 전체 읽기의 budgetRatio 비율까지만 허용한다. ( 읽기마다 ratio 만큼 쌓이고 최대 BURST 개까지 모이는 token )
+ * FIND_ONE 기록이 MIN_SAMPLES 보다 적으면 hedge 하지 않는다.
+ * driver 4.x / server 4.4 의 hedged read 와 달리 driver 가 아닌 client 에서 수행한다.
+ */
+public class MongoDBHedgedReads {
+  public static final double DEFAULT_BUDGET_RATIO = 0.05;
+  public static final long MIN_SAMPLES = 100;
+  public static final long DEFAULT_ATTEMPT_MAX_MILLIS = 3000;
+  private static final long TOKEN = 1_000_000L;
+  private static final long BURST = 10 * TOKEN;
+  private static final AtomicInteger THREAD_COUNT = new AtomicInteger();
+  private static final ExecutorService EXECUTOR = Executors.newCachedThreadPool(r -> {
+    Thread thread = new Thread(r, "mongodb-hedge-" + THREAD_COUNT.incrementAndGet());
+    thread.setDaemon(true);
+    return thread;
+  });
+
+  private final MongoDBPool pool;
+  private final long tokensPerRead;
+  private final AtomicLong tokens = new AtomicLong(BURST);
+  private volatile long minDelayMicros = 1000;
+  private volatile long attemptMaxTimeMillis = DEFAULT_ATTEMPT_MAX_MILLIS;
+  private final LongAdder reads = new LongAdder();
+  private final LongAdder hedged = new LongAdder();
+  private final LongAdder hedgeWins = new LongAdder();
+  private final LongAdder denied = new LongAdder();
+  private final LongAdder unselected = new LongAdder();
+  private final LongAdder cancelled = new LongAdder();
+
+  /**
+   * @param pool
+   * @param budgetRatio 전체 읽기 중 두번째 시도를 보낼 수 있는 최대 비율 ( 0 ~ 1 )
+   */
+  public MongoDBHedgedReads(final MongoDBPool pool, final double budgetRatio) {
+    this.pool = pool;
+    this.tokensPerRead = (long) (Math.max(0, Math.min(1, budgetRatio)) * TOKEN);
+  }
+
+  /**
+   * p95 가 이보다 작아도 이 시간은 기다린다.
+   */
+  public MongoDBHedgedReads setMinDelay(final long delay, final TimeUnit timeUnit) {
+    this.minDelayMicros = Math.max(0, timeUnit.toMicros(delay));
+    return this;
+  }
+
+  /**
+   * hedge 할 수 있는 읽기의 시도마다 server 에서 허용하는 실행시간 ( maxTime )
+   * 기록이 부족해 hedge 하지 않는 읽기는 MONGODB_CURSOR_MAX_SECS 를 사용한다.
+   */
+  public MongoDBHedgedReads setAttemptMaxTime(final long time, final TimeUnit timeUnit) {
+    this.attemptMaxTimeMillis = Math.max(1, timeUnit.toMillis(time));
+    return this;
+  }
+
+  /**
+   * @return 두번째 시도를 보내기까지의 대기시간 (us), 기록이 부족하면 -1
+   */
+  public long getDelayMicros() {
+    LatencyHistogram histogram = pool.getMetrics().getOperation(Operation.FIND_ONE);
+    if (histogram.getCount() < MIN_SAMPLES) return -1;
+    return Math.max(minDelayMicros, histogram.getPercentileMicros(95));
+  }
+
+  /**
+   * @return 먼저 성공한 시도의 결과. 둘 다 실패하면 첫 실패
+   * @throws Exception
+   */
+  public Document findOne(final String database,
+                          final String collection,
+                          final Document query,
+                          final Document fields,
+                          final Document sort) throws Exception {
+    long start = System.nanoTime();
+    reads.increment();
+    this.addTokens();
+    ExecutorCompletionService<Document> completion = new ExecutorCompletionService<>(EXECUTOR);
+    long delay = this.getDelayMicros();
+    long maxTimeMillis = delay < 0 ? TimeUnit.SECONDS.toMillis(ConstantMongodb.MONGODB_CURSOR_MAX_SECS) : attemptMaxTimeMillis;
+    MongoDBReadRouting.Selection first = new MongoDBReadRouting.Selection(null);
+    Future<Document> firstFuture = completion.submit(this.attempt(first, database, collection, query, fields, sort, maxTimeMillis));
+    Future<Document> secondFuture = null;
+    try {
+      Future<Document> done = delay < 0 ? null : completion.poll(delay, TimeUnit.MICROSECONDS);
+      if (done == null && delay >= 0) {
+        if (first.getSelected() == null) {
+          unselected.increment();
+        } else if (this.tryAcquire()) {
+          hedged.increment();
+          MongoDBReadRouting.Selection second = new MongoDBReadRouting.Selection(first.getSelected());
+          secondFuture = completion.submit(this.attempt(second, database, collection, query, fields, sort, maxTimeMillis));
+        } else {
+          denied.increment();
+        }
+      }
+      ExecutionException failure = null;
+      for (int pending = secondFuture == null ? 1 : 2; pending > 0; pending--) {
+        if (done == null) done = completion.take();
+        try {
+          Document doc = done.get();
+          if (done == secondFuture) hedgeWins.increment();
+          return doc;
+        } catch (ExecutionException e) {
+          if (failure == null) failure = e;
+          done = null;
+        }
+      }
+      throw failure.getCause() instanceof Exception ? (Exception) failure.getCause() : failure;
+    } catch (Exception e) {
+      pool.getMetrics().recordError(Operation.FIND_ONE, e);
+      throw e;
+    } finally {
+      if (firstFuture.cancel(true)) cancelled.increment();
+      if (secondFuture != null && secondFuture.cancel(true)) cancelled.increment();
+      pool.getMetrics().record(Operation.FIND_ONE, database, collection, start, query, sort);
+    }
+  }
+
+  private Callable<Document> attempt(final MongoDBReadRouting.Selection selection,
+                                     final String database,
+                                     final String collection,
+                                     final Document query,
+                                     final Document fields,
+                                     final Document sort,
+                                     final long maxTimeMillis) {
+    return () -> {
+      MongoDB mongoDB = pool.borrowObject();
+      selection.begin();
+      try {
+        return mongoDB.getCollection(database, collection)
+                      .find(query)
+                      .projection(fields)
+                      .sort(sort)
+                      .maxTime(maxTimeMillis, TimeUnit.MILLISECONDS)
+                      .first();
+      } finally {
+        selection.end();
+        pool.returnObject(mongoDB);
+      }
+    };
+  }
+
+  private void addTokens() {
+    long current;
+    do {
+      current = tokens.get();
+      if (current >= BURST) return;
+    } while (!tokens.compareAndSet(current, Math.min(BURST, current + tokensPerRead)));
+  }
+
+  private boolean tryAcquire() {
+    long current;
+    do {
+      current = tokens.get();
+      if (current < TOKEN) return false;
+    } while (!tokens.compareAndSet(current, current - TOKEN));
+    return true;
+  }
+
+  /**
+   * @return { reads, hedged, hedgeWins, denied, unselected, cancelled, delayMicros }
+   */
+  public Document snapshot() {
+    return new Document("reads", reads.sum()).append("hedged", hedged.sum())
+                                             .append("hedgeWins", hedgeWins.sum())
+                                             .append("denied", denied.sum())
+                                             .append("unselected", unselected.sum())
+                                             .append("cancelled", cancelled.sum())
+                                             .append("delayMicros", this.getDelayMicros());
+  }
+}
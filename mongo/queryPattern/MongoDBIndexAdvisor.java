@@ -0,0 +1,338 @@
+package com.ea.asiacentraltech.thoth.mongodb;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.bson.Document;
+
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.model.UpdateOptions;
+
+/**
+ * 느린 query 의 모양( filter 의 equality / range key, sort key )으로부터 compound index 를 제안한다.
+ * index key 는 Equality - Sort - Range 순서로 만들며, 같은 namespace 에서 다른 제안의 prefix 인 제안은 합친다.
+ * listIndexes 의 기존 index 가 제안을 prefix 로 포함하면( sort 방향이 모두 반대인 경우 포함 ) 이미 있는 것으로 표시한다.
+ * 채택한 제안은 accept 로 meta.indexes 에 기록하며, 이후 ensureIndex 가 생성한다.
+ */
+public class MongoDBIndexAdvisor {
+  public static final String INDEX_NAME_PREFIX = "esr_";
+
+  private static final Set<String> RANGE_OPERATORS = new LinkedHashSet<>(Arrays.asList(
+      "$gt", "$gte", "$lt", "$lte", "$ne", "$nin", "$regex", "$exists", "$not", "$elemMatch", "$type", "$mod"));
+
+  private final MongoDBPool pool;
+
+  public MongoDBIndexAdvisor(final MongoDBPool pool) {
+    this.pool = pool;
+  }
+
+  /**
+   * 느린 query 하나의 모양
+   */
+  public static class Shape {
+    private final String database;
+    private final String collection;
+    private final Set<String> equality = new LinkedHashSet<>();
+    private final Document sort = new Document();
+    private final Set<String> range = new LinkedHashSet<>();
+    private long count = 1;
+    private long totalMillis = 0;
+
+    public Shape(final String database, final String collection) {
+      this.database = database;
+      this.collection = collection;
+    }
+
+    /**
+     * filter 의 값이 상수, $eq, $in 이면 equality, 비교 연산자이면 range 로 분류한다.
+     * $and 는 펼쳐서 분류하며, $or / $nor 등 하나의 index 로 처리할 수 없는 조건은 제외한다.
+     * sort 가 있으면 $in 은 sort 순서를 보장하지 못하므로 range 로 분류한다.
+     */
+    public static Shape of(final String database, final String collection, final Document filter, final Document sort) {
+      Shape shape = new Shape(database, collection);
+      if (sort != null) {
+        for (Map.Entry<String, Object> entry : sort.entrySet()) {
+          shape.sort(entry.getKey(), entry.getValue() instanceof Number && ((Number) entry.getValue()).intValue() < 0 ? -1 : 1);
+        }
+      }
+      if (filter != null) shape.classify(filter);
+      return shape;
+    }
+
+    public Shape equality(final String key) {
+      equality.add(key);
+      return this;
+    }
+
+    public Shape sort(final String key, final int direction) {
+      sort.append(key, direction < 0 ? -1 : 1);
+      return this;
+    }
+
+    public Shape range(final String key) {
+      range.add(key);
+      return this;
+    }
+
+    /**
+     * 제안의 우선순위에 사용할 실행 횟수와 누적 시간
+     */
+    public Shape stats(final long count, final long totalMillis) {
+      this.count = count;
+      this.totalMillis = totalMillis;
+      return this;
+    }
+
+    @SuppressWarnings("unchecked")
+    private void classify(final Document filter) {
+      for (Map.Entry<String, Object> entry : filter.entrySet()) {
+        String key = entry.getKey();
+        Object value = entry.getValue();
+        if ("$and".equals(key) && value instanceof List) {
+          for (Object clause : (List<Object>) value) {
+            if (clause instanceof Document) this.classify((Document) clause);
+          }
+          continue;
+        }
+        if (key.startsWith("$")) continue;
+        if (!(value instanceof Document) || !isOperator((Document) value)) {
+          equality.add(key);
+          continue;
+        }
+        Document ops = (Document) value;
+        boolean isRange = false;
+        for (String op : ops.keySet()) {
+          if (RANGE_OPERATORS.contains(op) || ("$in".equals(op) && !sort.isEmpty())) isRange = true;
+        }
+        if (isRange) {
+          range.add(key);
+        } else {
+          equality.add(key);
+        }
+      }
+    }
+
+    private static boolean isOperator(final Document value) {
+      return !value.isEmpty() && value.keySet().iterator().next().startsWith("$");
+    }
+
+    /**
+     * Equality - Sort - Range 순서의 index key
+     */
+    Document keys() {
+      Document keys = new Document();
+      for (String key : equality) {
+        keys.append(key, 1);
+      }
+      for (Map.Entry<String, Object> entry : sort.entrySet()) {
+        if (!keys.containsKey(entry.getKey())) keys.append(entry.getKey(), entry.getValue());
+      }
+      for (String key : range) {
+        if (!keys.containsKey(key)) keys.append(key, 1);
+      }
+      return keys;
+    }
+  }
+
+  /**
+   * 제안된 index
+   */
+  public static class Proposal {
+    private final String database;
+    private final String collection;
+    private final Document keys;
+    private long count;
+    private long totalMillis;
+    private String existingIndex;
+
+    Proposal(final String database, final String collection, final Document keys) {
+      this.database = database;
+      this.collection = collection;
+      this.keys = keys;
+    }
+
+    public String getDatabase() {
+      return database;
+    }
+
+    public String getCollection() {
+      return collection;
+    }
+
+    public Document getKeys() {
+      return keys;
+    }
+
+    /**
+     * @return esr_<collection>_<key>_<direction>...
+     */
+    public String getName() {
+      StringBuilder sb = new StringBuilder(INDEX_NAME_PREFIX).append(collection);
+      for (Map.Entry<String, Object> entry : keys.entrySet()) {
+        sb.append('_').append(entry.getKey()).append('_').append(entry.getValue());
+      }
+      return sb.toString();
+    }
+
+    public long getCount() {
+      return count;
+    }
+
+    public long getTotalMillis() {
+      return totalMillis;
+    }
+
+    /**
+     * @return 이 제안을 포함하는 기존 index 이름, 없으면 null
+     */
+    public String getExistingIndex() {
+      return existingIndex;
+    }
+
+    public boolean isCovered() {
+      return existingIndex != null;
+    }
+
+    public Document toDocument() {
+      return new Document("database", database).append("collection", collection).append("name", this.getName())
+          .append("keys", keys).append("count", count).append("totalMillis", totalMillis)
+          .append("existingIndex", existingIndex);
+    }
+  }
+
+  /**
+   * @param shapes 느린 query 의 모양
+   * @return 누적 시간 순의 제안. 기존 index 로 충분한 제안은 isCovered() 가 true
+   * @throws Exception
+   */
+  public List<Proposal> propose(final List<Shape> shapes) throws Exception {
+    Map<String, List<Proposal>> namespaces = new LinkedHashMap<>();
+    for (Shape shape : shapes) {
+      Document keys = shape.keys();
+      if (keys.isEmpty()) continue;
+      List<Proposal> proposals = namespaces.computeIfAbsent(shape.database + "." + shape.collection, ns -> new ArrayList<>());
+      Proposal target = null;
+      for (Proposal proposal : proposals) {
+        if (isPrefix(keys, proposal.keys)) {
+          target = proposal;
+          break;
+        }
+        if (isPrefix(proposal.keys, keys)) {
+          // 더 긴 key 로 교체
+          target = new Proposal(shape.database, shape.collection, keys);
+          target.count = proposal.count;
+          target.totalMillis = proposal.totalMillis;
+          proposals.set(proposals.indexOf(proposal), target);
+          break;
+        }
+      }
+      if (target == null) {
+        target = new Proposal(shape.database, shape.collection, keys);
+        proposals.add(target);
+      }
+      target.count += shape.count;
+      target.totalMillis += shape.totalMillis;
+    }
+
+    List<Proposal> result = new ArrayList<>();
+    for (List<Proposal> proposals : namespaces.values()) {
+      List<Document> indexes = this.listIndexes(proposals.get(0).database, proposals.get(0).collection);
+      for (Proposal proposal : proposals) {
+        for (Document index : indexes) {
+          Object keys = index.get("key");
+          if (keys instanceof Document && isPrefix(proposal.keys, (Document) keys)) {
+            proposal.existingIndex = index.getString("name");
+            break;
+          }
+        }
+        result.add(proposal);
+      }
+    }
+    result.sort((a, b) -> Long.compare(b.totalMillis, a.totalMillis));
+    return result;
+  }
+
+  /**
+   * 제안을 meta.indexes 에 기록한다. 같은 이름이 이미 있으면 변경하지 않는다.
+   * @return 기록한 제안 수
+   * @throws Exception
+   */
+  public int accept(final List<Proposal> proposals) throws Exception {
+    int accepted = 0;
+    MongoDB mongoDB = null;
+    try {
+      mongoDB = pool.borrowObject();
+      MongoCollection<Document> indexes = mongoDB.getCollectionPrimary(ConstantMongodb.DATABASE_META,
+                                                                      ConstantMongodb.COLLECTION_META_INDEXES);
+      for (Proposal proposal : proposals) {
+        if (proposal.isCovered()) continue;
+        Document spec = new Document(ConstantMongodb.KEY_META_LOGDBS_COLLECTION, proposal.collection)
+            .append(ColletionInfo.STR_KEYS, proposal.keys);
+        if (indexes.updateOne(new Document(ConstantMongodb.ID, proposal.getName()),
+                              new Document("$setOnInsert", spec),
+                              new UpdateOptions().upsert(true)).getUpsertedId() != null) accepted++;
+      }
+    } finally {
+      if (mongoDB != null) {
+        pool.returnObject(mongoDB);
+        pool.invalidateReadCache(ConstantMongodb.DATABASE_META, ConstantMongodb.COLLECTION_META_INDEXES);
+      }
+    }
+    return accepted;
+  }
+
+  private List<Document> listIndexes(final String database, final String collection) throws Exception {
+    MongoDB mongoDB = null;
+    long start = 0;
+    try {
+      mongoDB = pool.borrowObject();
+      start = System.nanoTime();
+      return mongoDB.getCollectionPrimary(database, collection).listIndexes().into(new ArrayList<>());
+    } catch (RuntimeException e) {
+      pool.getMetrics().recordError(MongoDBPoolMetrics.Operation.LIST, e);
+      throw e;
+    } finally {
+      if (mongoDB != null) {
+        pool.returnObject(mongoDB);
+        pool.getMetrics().record(MongoDBPoolMetrics.Operation.LIST, database, collection, start);
+      }
+    }
+  }
+
+  /**
+   * prefix 의 key 가 keys 의 앞부분과 같은지. 방향은 모두 같거나 모두 반대여야 한다.
+   */
+  static boolean isPrefix(final Document prefix, final Document keys) {
+    if (prefix.size() > keys.size()) return false;
+    int same = 0;
+    int reversed = 0;
+    Iterator<Map.Entry<String, Object>> it = keys.entrySet().iterator();
+    for (Map.Entry<String, Object> entry : prefix.entrySet()) {
+      Map.Entry<String, Object> other = it.next();
+      if (!entry.getKey().equals(other.getKey())) return false;
+      int a = direction(entry.getValue());
+      int b = direction(other.getValue());
+      if (a == 0 || b == 0) return false;
+      if (a == b) {
+        same++;
+      } else {
+        reversed++;
+      }
+    }
+    return same == 0 || reversed == 0;
+  }
+
+  /**
+   * @return 1, -1, hashed / text 등은 0
+   */
+  private static int direction(final Object value) {
+    if (!(value instanceof Number)) return 0;
+    return ((Number) value).doubleValue() < 0 ? -1 : 1;
+  }
+}
@@ -0,0 +1,166 @@
+package com.ea.asiacentraltech.thoth.mongodb;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.bson.BsonValue;
+import org.bson.Document;
+
+import com.mongodb.MongoException;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.model.IndexModel;
+import com.mongodb.client.model.IndexOptions;
+
+/**
+ * 여러 Collection 의 Index 를 한번에 생성한다.
+ * Collection 별로 listIndexes 와 비교하여 없는 Index 만 createIndexes 한번으로 생성하며, Collection 들은 동시에 처리한다.
+ * 같은 key 의 Index 를 여러번 add 해도 한번만 생성한다.
+ * createIndexes 가 실패하면( 같은 key 의 다른 option 등 ) 해당 Collection 은 Index 하나씩 다시 생성한다.
+ */
+public class MongoDBIndexProvisioner {
+  private static final int PARALLELISM = 4;
+  private static final AtomicInteger THREAD_COUNT = new AtomicInteger();
+  private static final ExecutorService EXECUTOR = Executors.newFixedThreadPool(PARALLELISM, r -> {
+    Thread thread = new Thread(r, "mongodb-index-" + THREAD_COUNT.incrementAndGet());
+    thread.setDaemon(true);
+    return thread;
+  });
+
+  private final Logger logger;
+  private final Map<String, Target> targets = new LinkedHashMap<>();
+
+  public MongoDBIndexProvisioner(final Logger logger) {
+    this.logger = logger == null ? Logger.getLogger(MongoDBIndexProvisioner.class.getName()) : logger;
+  }
+
+  public MongoDBIndexProvisioner add(final MongoCollection<Document> coll, final Document keys) {
+    return this.add(coll, new IndexModel(keys));
+  }
+
+  public MongoDBIndexProvisioner add(final MongoCollection<Document> coll, final Document keys, final IndexOptions options) {
+    return this.add(coll, new IndexModel(keys, options));
+  }
+
+  /**
+   * @param coll Index 를 생성할 Collection ( primary )
+   * @param model
+   * @return
+   */
+  public MongoDBIndexProvisioner add(final MongoCollection<Document> coll, final IndexModel model) {
+    Target target = targets.computeIfAbsent(coll.getNamespace().getFullName(), ns -> new Target(coll));
+    String key = keyOf(model.getKeys().toBsonDocument(Document.class, coll.getCodecRegistry()));
+    target.models.putIfAbsent(key, model);
+    return this;
+  }
+
+  public boolean isEmpty() {
+    return targets.isEmpty();
+  }
+
+  /**
+   * 없는 Index 를 생성하고 끝날 때까지 대기한다.
+   * @return 생성한 Index 수
+   */
+  public int provision() {
+    try {
+      return this.provisionAsync().get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return 0;
+    } catch (ExecutionException e) {
+      logger.log(Level.WARNING, "Exception provision index {0}", new Object[] { e.getCause() });
+      return 0;
+    }
+  }
+
+  /**
+   * 없는 Index 를 background 로 생성한다.
+   * @return 생성한 Index 수
+   */
+  public CompletableFuture<Integer> provisionAsync() {
+    List<CompletableFuture<Integer>> futures = new ArrayList<>(targets.size());
+    for (Target target : targets.values()) {
+      futures.add(CompletableFuture.supplyAsync(() -> this.provision(target), EXECUTOR));
+    }
+    return CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0]))
+                            .thenApply(v -> futures.stream().mapToInt(CompletableFuture::join).sum());
+  }
+
+  private int provision(final Target target) {
+    MongoCollection<Document> coll = target.coll;
+    Set<String> existingKeys = new HashSet<>();
+    Set<String> existingNames = new HashSet<>();
+    try {
+      for (Document index : coll.listIndexes()) {
+        Object keys = index.get("key");
+        if (keys instanceof Map) existingKeys.add(keyOf((Map<?, ?>) keys));
+        existingNames.add(index.getString("name"));
+      }
+    } catch (MongoException e) {
+      logger.log(Level.FINE, "Exception listIndexes {0}", new Object[] { e });
+    }
+    List<IndexModel> missing = new ArrayList<>();
+    for (Map.Entry<String, IndexModel> entry : target.models.entrySet()) {
+      String name = entry.getValue().getOptions().getName();
+      if (existingKeys.contains(entry.getKey()) || (name != null && existingNames.contains(name))) continue;
+      missing.add(entry.getValue());
+    }
+    if (missing.isEmpty()) return 0;
+    try {
+      coll.createIndexes(missing);
+      return missing.size();
+    } catch (MongoException e) {
+      logger.log(Level.FINE, "Exception createIndexes {0} : {1}", new Object[] { coll.getNamespace(), e });
+    }
+    int created = 0;
+    for (IndexModel model : missing) {
+      try {
+        coll.createIndex(model.getKeys(), model.getOptions());
+        created++;
+      } catch (MongoException e) {
+        logger.log(Level.FINE, "Exception createIndex {0}", new Object[] { e });
+      }
+    }
+    return created;
+  }
+
+  /**
+   * key 순서와 방향 / type 으로 비교한다. ( 1 과 1.0 은 같은 Index )
+   */
+  private static String keyOf(final Map<?, ?> keys) {
+    StringBuilder sb = new StringBuilder();
+    for (Map.Entry<?, ?> entry : keys.entrySet()) {
+      Object value = entry.getValue();
+      if (value instanceof BsonValue) value = toJava((BsonValue) value);
+      if (value instanceof Number) value = ((Number) value).doubleValue() < 0 ? -1 : 1;
+      sb.append(entry.getKey()).append(':').append(value).append(',');
+    }
+    return sb.toString();
+  }
+
+  private static Object toJava(final BsonValue value) {
+    if (value.isNumber()) return value.asNumber().doubleValue();
+    if (value.isString()) return value.asString().getValue();
+    return value.toString();
+  }
+
+  private static class Target {
+    private final MongoCollection<Document> coll;
+    private final Map<String, IndexModel> models = new LinkedHashMap<>();
+
+    Target(final MongoCollection<Document> coll) {
+      this.coll = coll;
+    }
+  }
+}
@@ -0,0 +1,96 @@
+package com.ea.asiacentraltech.thoth.mongodb;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import org.bson.Document;
+
+/**
+ * Insert 전에 driver가 거부하는 Key( . 이 포함되거나 $ 로 시작하는 Key )를 _ 로 치환한다.
+ * Document를 한번만 순회하며, 잘못된 Key가 없는 Document는 복사하지 않고 그대로 반환한다.
+ * 잘못된 Key가 있는 경우에도 해당 Key를 포함하는 하위 Document / List 만 복사하며, 원본은 변경하지 않는다.
+ */
+public final class MongoDBKeySanitizer {
+  private MongoDBKeySanitizer() {
+  }
+
+  /**
+   * @param doc
+   * @return 치환할 Key가 없으면 doc 자신, 있으면 치환된 복사본
+   */
+  public static Document sanitize(final Document doc) {
+    if (doc == null) return null;
+    Document chgDoc = null;
+    int index = 0;
+    for (Map.Entry<String, Object> entry : doc.entrySet()) {
+      String key = entry.getKey();
+      Object value = entry.getValue();
+      String chgKey = sanitizeKey(key);
+      Object chgValue = sanitizeValue(value);
+      if (chgDoc == null && (chgKey != key || chgValue != value)) {
+        chgDoc = copyHead(doc, index);
+      }
+      if (chgDoc != null) chgDoc.put(chgKey, chgValue);
+      index++;
+    }
+    return chgDoc == null ? doc : chgDoc;
+  }
+
+  /**
+   * driver가 거부하는 Key인지 확인한다. ( $ref, $id, $db 는 DBRef Key로 허용된다. )
+   * @param key
+   * @return
+   */
+  static boolean isIllegalKey(final String key) {
+    if (key.indexOf('.') >= 0) return true;
+    return key.startsWith("$") && !"$ref".equals(key) && !"$id".equals(key) && !"$db".equals(key);
+  }
+
+  /**
+   * Key의 . 과 $ 를 _ 로 치환한다. 치환할 필요가 없으면 같은 String을 반환한다.
+   */
+  static String sanitizeKey(final String key) {
+    if (!isIllegalKey(key)) return key;
+    char[] chars = key.toCharArray();
+    for (int i = 0; i < chars.length; i++) {
+      if (chars[i] == '.' || chars[i] == '$') chars[i] = '_';
+    }
+    return new String(chars);
+  }
+
+  private static Object sanitizeValue(final Object value) {
+    if (value instanceof Document) return sanitize((Document) value);
+    if (value instanceof List) return sanitizeList((List<?>) value);
+    return value;
+  }
+
+  private static List<?> sanitizeList(final List<?> list) {
+    List<Object> chgList = null;
+    int index = 0;
+    for (Object value : list) {
+      Object chgValue = sanitizeValue(value);
+      if (chgList == null && chgValue != value) {
+        chgList = new ArrayList<>(list.size());
+        chgList.addAll(list.subList(0, index));
+      }
+      if (chgList != null) chgList.add(chgValue);
+      index++;
+    }
+    return chgList == null ? list : chgList;
+  }
+
+  /**
+   * doc의 앞에서부터 count개의 entry를 복사한다.
+   */
+  private static Document copyHead(final Document doc, final int count) {
+    Document chgDoc = new Document();
+    Iterator<Map.Entry<String, Object>> iterator = doc.entrySet().iterator();
+    for (int i = 0; i < count && iterator.hasNext(); i++) {
+      Map.Entry<String, Object> entry = iterator.next();
+      chgDoc.put(entry.getKey(), entry.getValue());
+    }
+    return chgDoc;
+  }
+}
@@ -0,0 +1,281 @@
+package com.ea.asiacentraltech.thoth.mongodb;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.bson.Document;
+import org.bson.json.JsonParseException;
+
+/**
+ * keyset pagination 의 sort key 와 continuation token 을 다룬다. ( MongoDBFanOut.findPage )
+ * sort 에 _id 가 없으면 마지막에 _id : 1 을 추가하여 namespace 안에서 순서가 유일하도록 한다.
+ * token 은 namespace 별 마지막 Document 의 sort key 값을 extended JSON 으로 저장한 뒤 base64url 로 encode 한 값이며,
+ * 다음 page 는 각 namespace 에서 그 값보다 뒤의 Document 만 range 조건으로 조회하므로 skip 없이 page 1 과 같은 비용이 든다.
+ * range 조건은 BSON type 별로 비교되므로 sort key 는 모든 Document 에서 같은 type 이어야 한다. ( null / 없음 은 예외 )
+ * token 을 만들려면 sort key 가 결과에 있어야 하므로 projection 에 sort key 를 강제로 포함하고,
+ * 호출자가 요청하지 않은 field 는 token 을 만든 뒤 strip 으로 제거한다.
+ */
+class MongoDBKeyset {
+  private static final String TOKEN_SORT = "s";
+  private static final String TOKEN_POSITIONS = "p";
+  private static final String TOKEN_DONE = "d";
+
+  private final Document sort;
+  private final String[] keys;
+  private final String[][] paths;
+  private final int[] directions;
+  private final Document projection;
+  // projection 때문에 추가된 field. 결과에서 제거한다.
+  private final List<String[]> hidden = new ArrayList<>();
+
+  /**
+   * @param sort
+   * @param fields 호출자의 projection
+   */
+  MongoDBKeyset(final Document sort, final Document fields) {
+    this.sort = new Document();
+    if (sort != null) this.sort.putAll(sort);
+    if (!this.sort.containsKey(ConstantMongodb.ID)) this.sort.append(ConstantMongodb.ID, 1);
+    this.keys = this.sort.keySet().toArray(new String[0]);
+    this.paths = new String[keys.length][];
+    this.directions = new int[keys.length];
+    int i = 0;
+    for (Map.Entry<String, Object> entry : this.sort.entrySet()) {
+      paths[i] = entry.getKey().split("\\.");
+      directions[i] = entry.getValue() instanceof Number && ((Number) entry.getValue()).intValue() < 0 ? -1 : 1;
+      i++;
+    }
+    this.projection = this.projection(fields);
+  }
+
+  /**
+   * _id 가 추가된 sort
+   */
+  Document getSort() {
+    return sort;
+  }
+
+  /**
+   * sort key 가 모두 포함되는 projection
+   */
+  Document getProjection() {
+    return projection;
+  }
+
+  /**
+   * 포함( inclusion ) projection 에는 없는 sort key 를 추가하고 ( _id : 0 포함 ),
+   * 제외( exclusion ) projection 에서는 sort key 를 가리는 제외를 없앤다.
+   */
+  private Document projection(final Document fields) {
+    if (fields == null || fields.isEmpty()) return fields;
+    Document projection = new Document(fields);
+    boolean inclusion = isInclusion(fields);
+    for (String key : keys) {
+      if (inclusion && !ConstantMongodb.ID.equals(key)) {
+        if (isCovered(projection, key)) continue;
+        projection.append(key, 1);
+        hidden.add(key.split("\\."));
+        continue;
+      }
+      // _id 와 제외 projection : key 또는 상위 path 를 제외했으면 포함으로 되돌린다.
+      for (String path : prefixes(key)) {
+        Object value = projection.get(path);
+        if (value == null || isTruthy(value)) continue;
+        projection.remove(path);
+        hidden.add(path.split("\\."));
+      }
+    }
+    return hidden.isEmpty() ? fields : projection;
+  }
+
+  /**
+   * 호출자가 요청하지 않았지만 token 을 위해 조회한 field 를 제거한다. valuesOf 이후에 호출한다.
+   */
+  void strip(final List<Document> docList) {
+    if (hidden.isEmpty()) return;
+    for (Document doc : docList) {
+      for (String[] path : hidden) {
+        remove(doc, path, 0);
+      }
+    }
+  }
+
+  /**
+   * values 다음의 Document 만 조회하는 조건
+   * { $or : [ { k1 : { $gt : v1 } }, { k1 : v1, k2 : { $gt : v2 } }, ... ] }
+   * 내림차순 key 는 { $or : [ { k : { $lt : v } }, { k : null } ] } 로 뒤에 오는 null / 없음 까지 포함한다.
+   * @param values null 이면 query 를 그대로 반환한다.
+   */
+  Document after(final Document query, final List<Object> values) {
+    if (values == null) return query;
+    List<Document> or = new ArrayList<>(keys.length);
+    for (int i = 0; i < keys.length; i++) {
+      Document clause = new Document();
+      for (int j = 0; j < i; j++) {
+        clause.append(keys[j], values.get(j));
+      }
+      Object value = values.get(i);
+      if (value == null) {
+        // null / 없음 은 MinKey 다음으로 작으며 { $gt : null } 은 아무것도 match 하지 않는다.
+        // 오름차순이면 null 이 아닌 모든 값이 뒤에 오고, 내림차순이면 뒤에 오는 값이 없다.
+        if (directions[i] < 0) continue;
+        clause.append(keys[i], new Document("$ne", null));
+      } else if (directions[i] < 0) {
+        // 내림차순에서는 null / 없음 이 가장 뒤에 오지만 { $lt : v } 는 이를 match 하지 않는다.
+        clause.append("$or", Arrays.asList(new Document(keys[i], new Document("$lt", value)),
+                                           new Document(keys[i], null)));
+      } else {
+        clause.append(keys[i], new Document("$gt", value));
+      }
+      or.add(clause);
+    }
+    // 모든 sort key 가 null 인 내림차순 마지막 위치 : _id 는 null 일 수 없으므로 실제로는 생기지 않는다.
+    if (or.isEmpty()) or.add(new Document(ConstantMongodb.ID, new Document("$exists", false)));
+    Document range = new Document("$or", or);
+    if (query == null || query.isEmpty()) return range;
+    return new Document("$and", Arrays.asList(query, range));
+  }
+
+  List<Object> valuesOf(final Document doc) {
+    List<Object> values = new ArrayList<>(paths.length);
+    for (String[] path : paths) {
+      values.add(DocumentSortComparator.getValue(doc, path));
+    }
+    return values;
+  }
+
+  String encode(final Position position) {
+    Document positions = new Document();
+    for (Map.Entry<String, List<Object>> entry : position.positions.entrySet()) {
+      positions.append(entry.getKey(), entry.getValue());
+    }
+    Document token = new Document(TOKEN_SORT, sort).append(TOKEN_POSITIONS, positions)
+                                                    .append(TOKEN_DONE, new ArrayList<>(position.done));
+    return Base64.getUrlEncoder().withoutPadding().encodeToString(token.toJson().getBytes(StandardCharsets.UTF_8));
+  }
+
+  /**
+   * @param token null 이거나 비어있으면 첫 page
+   * @throws IllegalArgumentException token 이 잘못되었거나 다른 sort 로 만들어진 경우
+   */
+  @SuppressWarnings("unchecked")
+  Position decode(final String token) {
+    Position position = new Position();
+    if (token == null || token.isEmpty()) return position;
+    Document doc;
+    try {
+      doc = Document.parse(new String(Base64.getUrlDecoder().decode(token), StandardCharsets.UTF_8));
+    } catch (IllegalArgumentException | JsonParseException e) {
+      throw new IllegalArgumentException("invalid page token", e);
+    }
+    if (!sort.equals(doc.get(TOKEN_SORT)))
+      throw new IllegalArgumentException("page token does not match sort " + sort.toJson());
+    try {
+      Document positions = (Document) doc.get(TOKEN_POSITIONS);
+      if (positions != null) {
+        for (Map.Entry<String, Object> entry : positions.entrySet()) {
+          List<Object> values = (List<Object>) entry.getValue();
+          if (values == null || values.size() != keys.length) throw new IllegalArgumentException("invalid page token");
+          position.put(entry.getKey(), values);
+        }
+      }
+      List<?> done = (List<?>) doc.get(TOKEN_DONE);
+      if (done != null) {
+        for (Object namespace : done) {
+          position.done.add((String) namespace);
+        }
+      }
+    } catch (ClassCastException e) {
+      // 조작된 token : 필드 type 이 다른 경우
+      throw new IllegalArgumentException("invalid page token", e);
+    }
+    return position;
+  }
+
+  /**
+   * key 또는 상위 path 가 포함되어 있으면 true
+   */
+  private static boolean isCovered(final Document fields, final String key) {
+    for (String path : prefixes(key)) {
+      Object value = fields.get(path);
+      if (value != null && !(value instanceof Document) && isTruthy(value)) return true;
+    }
+    return false;
+  }
+
+  /**
+   * a.b.c =&gt; [ a, a.b, a.b.c ]
+   */
+  private static List<String> prefixes(final String key) {
+    List<String> prefixes = new ArrayList<>();
+    int dot = key.indexOf('.');
+    while (dot > 0) {
+      prefixes.add(key.substring(0, dot));
+      dot = key.indexOf('.', dot + 1);
+    }
+    prefixes.add(key);
+    return prefixes;
+  }
+
+  private static boolean isTruthy(final Object value) {
+    if (value instanceof Number) return ((Number) value).intValue() != 0;
+    if (value instanceof Boolean) return (Boolean) value;
+    return true;
+  }
+
+  private static void remove(final Document doc, final String[] path, final int depth) {
+    if (depth == path.length - 1) {
+      doc.remove(path[depth]);
+      return;
+    }
+    Object child = doc.get(path[depth]);
+    if (!(child instanceof Document)) return;
+    remove((Document) child, path, depth + 1);
+    // sort key 를 위해서만 만들어진 상위 Document
+    if (((Document) child).isEmpty()) doc.remove(path[depth]);
+  }
+
+  private static boolean isInclusion(final Document fields) {
+    for (Map.Entry<String, Object> entry : fields.entrySet()) {
+      if (ConstantMongodb.ID.equals(entry.getKey())) continue;
+      Object value = entry.getValue();
+      // $slice, $elemMatch, $meta
+      if (value instanceof Document) continue;
+      if (value instanceof Number) return ((Number) value).intValue() != 0;
+      if (value instanceof Boolean) return (Boolean) value;
+      return true;
+    }
+    return false;
+  }
+
+  /**
+   * namespace ( database.collection ) 별 마지막 위치와 끝난 namespace
+   */
+  static class Position {
+    private final Map<String, List<Object>> positions = new LinkedHashMap<>();
+    private final Set<String> done = new HashSet<>();
+
+    List<Object> get(final String namespace) {
+      return positions.get(namespace);
+    }
+
+    void put(final String namespace, final List<Object> values) {
+      positions.put(namespace, values);
+    }
+
+    boolean isDone(final String namespace) {
+      return done.contains(namespace);
+    }
+
+    void done(final String namespace) {
+      done.add(namespace);
+    }
+  }
+}
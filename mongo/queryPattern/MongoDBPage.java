@@ -0,0 +1,34 @@
+package com.ea.asiacentraltech.thoth.mongodb;
+
+import java.util.List;
+
+import org.bson.Document;
+
+/**
+ * keyset pagination 결과. ( MongoDBPool.findPage )
+ * nextToken 을 다음 findPage 호출에 넘기면 이 page 의 마지막 Document 다음부터 조회한다.
+ */
+public class MongoDBPage {
+  private final List<Document> documents;
+  private final String nextToken;
+
+  public MongoDBPage(final List<Document> documents, final String nextToken) {
+    this.documents = documents;
+    this.nextToken = nextToken;
+  }
+
+  public List<Document> getDocuments() {
+    return documents;
+  }
+
+  /**
+   * @return 다음 page 의 token. 더 이상 결과가 없으면 null
+   */
+  public String getNextToken() {
+    return nextToken;
+  }
+
+  public boolean hasNext() {
+    return nextToken != null;
+  }
+}
@@ -3,21 +3,48 @@ package com.ea.asiacentraltech.thoth.mongodb;
 import java.util.ArrayList;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.stream.Stream;
 
 import org.apache.commons.pool2.PooledObjectFactory;
 import org.apache.commons.pool2.impl.GenericObjectPool;
 import org.apache.commons.pool2.impl.GenericObjectPoolConfig;
 import org.bson.Document;
+import org.bson.RawBsonDocument;
 
+import com.mongodb.ReadPreference;
 import com.mongodb.WriteConcern;
+import com.mongodb.bulk.BulkWriteResult;
 import com.mongodb.client.MongoCursor;
+import com.mongodb.client.model.BulkWriteOptions;
 import com.mongodb.client.model.UpdateOptions;
+import com.mongodb.client.model.WriteModel;
+import com.ea.asiacentraltech.thoth.mongodb.MongoDBPoolMetrics.Operation;
 
 public class MongoDBPool extends GenericObjectPool<MongoDB> {
+  private static final int DEFAULT_FANOUT_PARALLELISM = 8;
+  private static final long DEFAULT_EVICTION_RUN_MILLIS = 30_000L;
+  public static final long DEFAULT_BULK_WRITER_IDLE_MILLIS = 60_000L;
+
+  private final ReentrantLock fanOutLock = new ReentrantLock();
+  private volatile MongoDBFanOut fanOut;
+  private final ConcurrentHashMap<String, MongoDBBulkWriter> bulkWriters = new ConcurrentHashMap<>();
+  private final ReentrantLock bulkWriterLock = new ReentrantLock();
+  private volatile ScheduledFuture<?> bulkWriterEviction;
+  private volatile long bulkWriterIdleMillis = DEFAULT_BULK_WRITER_IDLE_MILLIS;
+  private final MongoDBPoolMetrics metrics = new MongoDBPoolMetrics(this);
+  private volatile MongoDBReadCache readCache;
+  private volatile MongoDBHedgedReads hedgedReads;
+
+  @SuppressWarnings("unchecked")
   public MongoDBPool(PooledObjectFactory<MongoDB> factory) {
-    super(factory);
+    super(factory, defaultConfig());
   }
 
   @SuppressWarnings({ "rawtypes", "unchecked" })
@@ -26,6 +53,93 @@ public class MongoDBPool extends GenericObjectPool<MongoDB> {
     super(factory, config);
   }
 
+  /**
+   * 접속 확인은 borrow 경로가 아닌 evictor 에서 수행한다. ( testWhileIdle )
+   * borrow 시에는 MongoManger.activateObject 가 일정 시간이 지난 경우에만 확인한다.
+   * @return
+   */
+  @SuppressWarnings("rawtypes")
+  public static GenericObjectPoolConfig defaultConfig() {
+    GenericObjectPoolConfig config = new GenericObjectPoolConfig();
+    config.setTestOnBorrow(false);
+    config.setTestWhileIdle(true);
+    config.setTimeBetweenEvictionRunsMillis(DEFAULT_EVICTION_RUN_MILLIS);
+    config.setNumTestsPerEvictionRun(-1);
+    return config;
+  }
+
+  /**
+   * borrow 대기시간을 MongoDBPoolMetrics 에 기록한다.
+   */
+  @Override
+  public MongoDB borrowObject() throws Exception {
+    long start = System.nanoTime();
+    try {
+      return super.borrowObject();
+    } finally {
+      metrics.recordBorrow(start);
+    }
+  }
+
+  /**
+   * operation latency, borrow 대기시간, error 통계
+   * @return
+   */
+  public MongoDBPoolMetrics getMetrics() {
+    return metrics;
+  }
+
+  /**
+   * findOne, getCollcetionNames, getDatbaseNames 와 MongoDB 의 meta 조회 결과를 cache 한다.
+   * 같은 Pool 을 통한 updateOne, insertOne, deleteOne, dropDatabase, insertBuffered 는 해당 namespace 를 무효화한다.
+   * @param readCache null 이면 cache 를 사용하지 않는다.
+   */
+  public void setReadCache(MongoDBReadCache readCache) {
+    this.readCache = readCache;
+    if (this.getFactory() instanceof MongoManger) {
+      ((MongoManger) this.getFactory()).setReadCache(readCache);
+    }
+  }
+
+  public MongoDBReadCache getReadCache() {
+    return readCache;
+  }
+
+  /**
+   * namespace 별 ReadPreference 와 member latency. factory 가 MongoManger 가 아니면 null
+   * @return
+   */
+  public MongoDBReadRouting getReadRouting() {
+    if (this.getFactory() instanceof MongoManger) {
+      return ((MongoManger) this.getFactory()).getReadRouting();
+    }
+    return null;
+  }
+
+  /**
+   * findOne( ReadPreference 를 지정한 경우 제외 )을 hedged read 로 수행한다. ( MongoDBHedgedReads )
+   * @param hedgedReads null 이면 사용하지 않는다.
+   */
+  public void setHedgedReads(MongoDBHedgedReads hedgedReads) {
+    this.hedgedReads = hedgedReads;
+  }
+
+  /**
+   * @param budgetRatio 전체 findOne 중 두번째 시도를 보낼 수 있는 최대 비율
+   */
+  public void enableHedgedReads(double budgetRatio) {
+    this.setHedgedReads(new MongoDBHedgedReads(this, budgetRatio));
+  }
+
+  public MongoDBHedgedReads getHedgedReads() {
+    return hedgedReads;
+  }
+
+  void invalidateReadCache(String database, String collection) {
+    MongoDBReadCache cache = readCache;
+    if (cache != null) cache.invalidate(database, collection);
+  }
+
   /**
    * FindOne
    * @param Database
@@ -39,13 +153,28 @@ public class MongoDBPool extends GenericObjectPool<MongoDB> {
                           String collection,
                           Document query,
                           Document fields) throws Exception {
+    MongoDBHedgedReads hedged = hedgedReads;
+    if (hedged != null) {
+      // MongoDB.docFindOne 과 같은 cache key
+      MongoDBReadCache cache = readCache;
+      if (cache == null) return hedged.findOne(database, collection, query, fields, null);
+      return cache.get(database, collection, MongoDBReadCache.key("findOne", query, fields),
+                       () -> hedged.findOne(database, collection, query, fields, null));
+    }
     MongoDB mongoDB = null;
+    long start = 0;
     try {
       mongoDB = this.borrowObject();
+      start = System.nanoTime();
       return mongoDB.docFindOne(database, collection, query, fields);
-      
+    } catch (RuntimeException e) {
+      metrics.recordError(Operation.FIND_ONE, e);
+      throw e;
     } finally {
-      if (mongoDB != null) this.returnObject(mongoDB);
+      if (mongoDB != null) {
+        this.returnObject(mongoDB);
+        metrics.record(Operation.FIND_ONE, database, collection, start, query, null);
+      }
     }
   }
 
@@ -54,17 +183,55 @@ public class MongoDBPool extends GenericObjectPool<MongoDB> {
                           Document query,
                           Document fields,
                           Document sort) throws Exception {
+    MongoDBReadCache cache = readCache;
+    if (cache != null) {
+      return cache.get(database, collection, MongoDBReadCache.key("findOne", query, fields, sort),
+                       () -> this.loadOne(database, collection, query, fields, sort));
+    }
+    return this.loadOne(database, collection, query, fields, sort);
+  }
+
+  private Document loadOne(String database,
+                           String collection,
+                           Document query,
+                           Document fields,
+                           Document sort) throws Exception {
+    MongoDBHedgedReads hedged = hedgedReads;
+    if (hedged != null) return hedged.findOne(database, collection, query, fields, sort);
+    return this.findOne(database, collection, query, fields, sort, null);
+  }
+
+  /**
+   * read cache 를 사용하지 않는다.
+   * @param readPreference null 이면 MongoDBReadRouting 의 설정
+   * @return
+   * @throws Exception
+   */
+  public Document findOne(String database,
+                          String collection,
+                          Document query,
+                          Document fields,
+                          Document sort,
+                          ReadPreference readPreference) throws Exception {
     MongoDB mongoDB = null;
+    long start = 0;
     try {
       mongoDB = this.borrowObject();
-      return mongoDB.getCollection(database, collection)
+      start = System.nanoTime();
+      return mongoDB.getCollection(database, collection, readPreference)
                     .find(query)
                     .projection(fields)
                     .sort(sort)
                     .maxTime(ConstantMongodb.MONGODB_CURSOR_MAX_SECS, TimeUnit.SECONDS)
                     .first();
+    } catch (RuntimeException e) {
+      metrics.recordError(Operation.FIND_ONE, e);
+      throw e;
     } finally {
-      if (mongoDB != null) this.returnObject(mongoDB);
+      if (mongoDB != null) {
+        this.returnObject(mongoDB);
+        metrics.record(Operation.FIND_ONE, database, collection, start, query, sort);
+      }
     }
   }
 
@@ -74,12 +241,21 @@ public class MongoDBPool extends GenericObjectPool<MongoDB> {
                         Document update,
                         UpdateOptions options) throws Exception {
     MongoDB mongoDB = null;
+    long start = 0;
     try {
       mongoDB = this.borrowObject();
+      start = System.nanoTime();
       mongoDB.getCollectionPrimary(database, collection)
              .updateOne(filter, update, options);
+    } catch (RuntimeException e) {
+      metrics.recordError(Operation.UPDATE, e);
+      throw e;
     } finally {
-      if (mongoDB != null) this.returnObject(mongoDB);
+      if (mongoDB != null) {
+        this.returnObject(mongoDB);
+        this.invalidateReadCache(database, collection);
+        metrics.record(Operation.UPDATE, database, collection, start, filter, null);
+      }
     }
   }
 
@@ -89,21 +265,30 @@ public class MongoDBPool extends GenericObjectPool<MongoDB> {
       Document fields,
       Document sort) throws Exception {
     MongoDB mongoDB = null;
+    long start = 0;
     try {
       mongoDB = this.borrowObject();
+      start = System.nanoTime();
       List<Document> docList = new ArrayList<>();
       MongoCursor<Document> cursor = mongoDB.getCollection(database, collection)
                                             .find(query)
                                             .projection(fields)
                                             .sort(sort)
+                                            .batchSize(mongoDB.getClientProfile().getBatchSize())
                                             .maxTime(ConstantMongodb.MONGODB_CURSOR_MAX_SECS, TimeUnit.SECONDS)
                                             .iterator();
       while (cursor.hasNext()) {
         docList.add(cursor.next());
       }
       return docList;
+    } catch (RuntimeException e) {
+      metrics.recordError(Operation.FIND, e);
+      throw e;
     } finally {
-      if (mongoDB != null) this.returnObject(mongoDB);
+      if (mongoDB != null) {
+        this.returnObject(mongoDB);
+        metrics.record(Operation.FIND, database, collection, start, query, sort);
+      }
     }
   }
 
@@ -113,26 +298,180 @@ public class MongoDBPool extends GenericObjectPool<MongoDB> {
                              Document fields,
                              Document sort,
                              int limit) throws Exception {
+    return this.find(database, collection, query, fields, sort, limit, null);
+  }
+
+  /**
+   * @param readPreference null 이면 MongoDBReadRouting 의 설정
+   * @return
+   * @throws Exception
+   */
+  public List<Document> find(String database,
+                             String collection,
+                             Document query,
+                             Document fields,
+                             Document sort,
+                             int limit,
+                             ReadPreference readPreference) throws Exception {
     MongoDB mongoDB = null;
+    long start = 0;
     try {
       mongoDB = this.borrowObject();
+      start = System.nanoTime();
       List<Document> docList = new ArrayList<>();
-      MongoCursor<Document> cursor = mongoDB.getCollection(database, collection)
+      MongoCursor<Document> cursor = mongoDB.getCollection(database, collection, readPreference)
                                             .find(query)
                                             .projection(fields)
                                             .sort(sort)
                                             .limit(limit)
+                                            .batchSize(mongoDB.getClientProfile().getBatchSize())
                                             .maxTime(ConstantMongodb.MONGODB_CURSOR_MAX_SECS, TimeUnit.SECONDS)
                                             .iterator();
       while (cursor.hasNext()) {
         docList.add(cursor.next());
       }
       return docList;
+    } catch (RuntimeException e) {
+      metrics.recordError(Operation.FIND, e);
+      throw e;
     } finally {
-      if (mongoDB != null) this.returnObject(mongoDB);
+      if (mongoDB != null) {
+        this.returnObject(mongoDB);
+        metrics.record(Operation.FIND, database, collection, start, query, sort);
+      }
     }
   }
   
+  /**
+   * findOne 과 같지만 결과를 decode 하지 않는다. field 는 MongoDBRawDocuments 로 읽을 때 decode 된다.
+   * read cache 를 사용하지 않는다.
+   * @param fields 읽을 field 만 지정하면 전송량도 줄어든다.
+   * @return
+   * @throws Exception
+   */
+  public RawBsonDocument findOneRaw(String database,
+                                    String collection,
+                                    Document query,
+                                    Document fields,
+                                    Document sort) throws Exception {
+    MongoDB mongoDB = null;
+    long start = 0;
+    try {
+      mongoDB = this.borrowObject();
+      start = System.nanoTime();
+      return mongoDB.getRawCollection(database, collection)
+                    .find(query)
+                    .projection(fields)
+                    .sort(sort)
+                    .maxTime(ConstantMongodb.MONGODB_CURSOR_MAX_SECS, TimeUnit.SECONDS)
+                    .first();
+    } catch (RuntimeException e) {
+      metrics.recordError(Operation.FIND_ONE, e);
+      throw e;
+    } finally {
+      if (mongoDB != null) {
+        this.returnObject(mongoDB);
+        metrics.record(Operation.FIND_ONE, database, collection, start, query, sort);
+      }
+    }
+  }
+
+  /**
+   * find 와 같지만 결과를 decode 하지 않는다. ( MongoDBRawDocuments )
+   * @return
+   * @throws Exception
+   */
+  public List<RawBsonDocument> findRaw(String database,
+                                       String collection,
+                                       Document query,
+                                       Document fields,
+                                       Document sort,
+                                       int limit) throws Exception {
+    MongoDB mongoDB = null;
+    long start = 0;
+    try {
+      mongoDB = this.borrowObject();
+      start = System.nanoTime();
+      List<RawBsonDocument> docList = new ArrayList<>();
+      MongoCursor<RawBsonDocument> cursor = mongoDB.getRawCollection(database, collection)
+                                                   .find(query)
+                                                   .projection(fields)
+                                                   .sort(sort)
+                                                   .limit(limit)
+                                                   .batchSize(mongoDB.getClientProfile().getBatchSize())
+                                                   .maxTime(ConstantMongodb.MONGODB_CURSOR_MAX_SECS, TimeUnit.SECONDS)
+                                                   .iterator();
+      try {
+        while (cursor.hasNext()) {
+          docList.add(cursor.next());
+        }
+      } finally {
+        cursor.close();
+      }
+      return docList;
+    } catch (RuntimeException e) {
+      metrics.recordError(Operation.FIND, e);
+      throw e;
+    } finally {
+      if (mongoDB != null) {
+        this.returnObject(mongoDB);
+        metrics.record(Operation.FIND, database, collection, start, query, sort);
+      }
+    }
+  }
+
+  /**
+   * 한 collection 의 aggregate 결과를 decode 하지 않고 반환한다. ( MongoDBRawDocuments )
+   * @return
+   * @throws Exception
+   */
+  public List<RawBsonDocument> aggregateRaw(String database,
+                                            String collection,
+                                            List<Document> pipe) throws Exception {
+    MongoDB mongoDB = null;
+    long start = 0;
+    try {
+      mongoDB = this.borrowObject();
+      start = System.nanoTime();
+      List<RawBsonDocument> docList = new ArrayList<>();
+      MongoCursor<RawBsonDocument> cursor = mongoDB.getRawCollection(database, collection)
+                                                   .aggregate(pipe)
+                                                   .allowDiskUse(true)
+                                                   .batchSize(mongoDB.getClientProfile().getBatchSize())
+                                                   .maxTime(ConstantMongodb.MONGODB_CURSOR_MAX_SECS, TimeUnit.SECONDS)
+                                                   .iterator();
+      try {
+        while (cursor.hasNext()) {
+          docList.add(cursor.next());
+        }
+      } finally {
+        cursor.close();
+      }
+      return docList;
+    } catch (RuntimeException e) {
+      metrics.recordError(Operation.AGGREGATE, e);
+      throw e;
+    } finally {
+      if (mongoDB != null) {
+        this.returnObject(mongoDB);
+        metrics.record(Operation.AGGREGATE, database, collection, start, pipe, null);
+      }
+    }
+  }
+
+  /**
+   * 모든 database x collection 을 동시에 find 한다.
+   * sort 결과는 namespace 간에 merge 되며, limit / skip 은 전체 결과에 대해 적용된다.
+   * @param databases
+   * @param collections
+   * @param query
+   * @param fields
+   * @param sort
+   * @param limit
+   * @param skip
+   * @return
+   * @throws Exception
+   */
   public List<Document> find(String[] databases,
                              String[] collections,
                              Document query,
@@ -140,28 +479,124 @@ public class MongoDBPool extends GenericObjectPool<MongoDB> {
                              Document sort,
                              int limit,
                              int skip) throws Exception {
-    MongoDB mongoDB = null;
+    long start = System.nanoTime();
     try {
-      mongoDB = this.borrowObject();
-      List<Document> docList = new ArrayList<>();
-      for (String database : databases) {
-        for (String collection: collections) {
-          MongoCursor<Document> cursor = mongoDB.getCollection(database, collection)
-                                                .find(query)
-                                                .projection(fields)
-                                                .sort(sort)
-                                                .limit(limit)
-                                                .skip(skip)
-                                                .maxTime(ConstantMongodb.MONGODB_CURSOR_MAX_SECS, TimeUnit.SECONDS)
-                                                .iterator();
-          while (cursor.hasNext()) {
-            docList.add(cursor.next());
-          }
-        }
-      }
-      return docList;
+      return this.getFanOut().find(databases, collections, query, fields, sort, limit, skip);
+    } catch (RuntimeException e) {
+      metrics.recordError(Operation.FIND, e);
+      throw e;
+    } finally {
+      metrics.record(Operation.FIND, null, null, start, query, sort);
+    }
+  }
+
+  /**
+   * 모든 database x collection 을 sort 순서로 limit 건씩 조회한다.
+   * skip 대신 이전 page 의 token 을 넘기며, 깊은 page 도 첫 page 와 같은 비용이 든다. ( MongoDBFanOut.findPage )
+   * @param token 이전 page 의 getNextToken(). 첫 page 는 null
+   * @return
+   * @throws Exception
+   */
+  public MongoDBPage findPage(String[] databases,
+                              String[] collections,
+                              Document query,
+                              Document fields,
+                              Document sort,
+                              int limit,
+                              String token) throws Exception {
+    long start = System.nanoTime();
+    try {
+      return this.getFanOut().findPage(databases, collections, query, fields, sort, limit, token);
+    } catch (RuntimeException e) {
+      metrics.recordError(Operation.FIND, e);
+      throw e;
     } finally {
-      if (mongoDB != null) this.returnObject(mongoDB);
+      metrics.record(Operation.FIND, null, null, start, query, sort);
+    }
+  }
+
+  /**
+   * find 결과를 Stream으로 반환한다.
+   * Stream이 열려있는 동안에만 MongoDB를 빌리며, 반드시 close 해야 한다. (try-with-resources)
+   * @param database
+   * @param collection
+   * @param query
+   * @param fields
+   * @param sort
+   * @param batchSize 0 이면 MongoDBClientProfile 의 batchSize
+   * @return
+   * @throws Exception
+   */
+  public Stream<Document> stream(String database,
+                                 String collection,
+                                 Document query,
+                                 Document fields,
+                                 Document sort,
+                                 int batchSize) throws Exception {
+    return this.cursor(database, collection, query, fields, sort, batchSize).stream();
+  }
+
+  public MongoDBCursor cursor(String database,
+                              String collection,
+                              Document query,
+                              Document fields,
+                              Document sort,
+                              int batchSize) throws Exception {
+    MongoDB mongoDB = this.borrowObject();
+    long start = System.nanoTime();
+    try {
+      MongoCursor<Document> cursor = mongoDB.getCollection(database, collection)
+                                            .find(query)
+                                            .projection(fields)
+                                            .sort(sort)
+                                            .batchSize(batchSize > 0 ? batchSize : mongoDB.getClientProfile().getBatchSize())
+                                            .maxTime(ConstantMongodb.MONGODB_CURSOR_MAX_SECS, TimeUnit.SECONDS)
+                                            .iterator();
+      metrics.record(Operation.CURSOR, database, collection, start, query, sort);
+      return new MongoDBCursor(this, mongoDB, cursor);
+    } catch (RuntimeException e) {
+      metrics.recordError(Operation.CURSOR, e);
+      this.returnObject(mongoDB);
+      throw e;
+    }
+  }
+
+  /**
+   * aggregate 결과를 Stream으로 반환한다.
+   * Stream이 열려있는 동안에만 MongoDB를 빌리며, 반드시 close 해야 한다. (try-with-resources)
+   * @param database
+   * @param collection
+   * @param pipe
+   * @param batchSize 0 이면 MongoDBClientProfile 의 batchSize
+   * @return
+   * @throws Exception
+   */
+  public Stream<Document> aggregateStream(String database,
+                                          String collection,
+                                          List<Document> pipe,
+                                          int batchSize) throws Exception {
+    return this.aggregateCursor(database, collection, pipe, batchSize).stream();
+  }
+
+  public MongoDBCursor aggregateCursor(String database,
+                                       String collection,
+                                       List<Document> pipe,
+                                       int batchSize) throws Exception {
+    MongoDB mongoDB = this.borrowObject();
+    long start = System.nanoTime();
+    try {
+      MongoCursor<Document> cursor = mongoDB.getCollection(database, collection)
+                                            .aggregate(pipe)
+                                            .allowDiskUse(true)
+                                            .batchSize(batchSize > 0 ? batchSize : mongoDB.getClientProfile().getBatchSize())
+                                            .maxTime(ConstantMongodb.MONGODB_CURSOR_MAX_SECS, TimeUnit.SECONDS)
+                                            .iterator();
+      metrics.record(Operation.CURSOR, database, collection, start, pipe, null);
+      return new MongoDBCursor(this, mongoDB, cursor);
+    } catch (RuntimeException e) {
+      metrics.recordError(Operation.CURSOR, e);
+      this.returnObject(mongoDB);
+      throw e;
     }
   }
 
@@ -169,36 +604,154 @@ public class MongoDBPool extends GenericObjectPool<MongoDB> {
                         String collection,
                         Document doc) throws Exception {
     MongoDB mongoDB = null;
+    long start = 0;
     try {
       mongoDB = this.borrowObject();
+      start = System.nanoTime();
       mongoDB.getCollectionPrimary(database, collection)
              .withWriteConcern(WriteConcern.ACKNOWLEDGED)
              .insertOne(doc);
+    } catch (RuntimeException e) {
+      metrics.recordError(Operation.INSERT, e);
+      throw e;
     } finally {
-      if (mongoDB != null) this.returnObject(mongoDB);
+      if (mongoDB != null) {
+        this.returnObject(mongoDB);
+        this.invalidateReadCache(database, collection);
+        metrics.record(Operation.INSERT, database, collection, start);
+      }
     }
   }
   
+  /**
+   * Buffered Insert
+   * namespace 별 MongoDBBulkWriter에 Document를 추가한다. Buffer가 가득 차면 대기한다.
+   * @param database
+   * @param collection
+   * @param doc
+   * @return 0 : 성공, 그 외 : MongoException code
+   * @throws InterruptedException
+   */
+  public CompletableFuture<Integer> insertBuffered(String database,
+                                                   String collection,
+                                                   Document doc) throws InterruptedException {
+    while (true) {
+      if (this.isClosed()) throw new IllegalStateException("MongoDBPool closed");
+      // 사용하지 않아 정리된 writer 이면 새로 만든다.
+      CompletableFuture<Integer> result = this.getBulkWriter(database, collection).offer(doc);
+      if (result != null) return result;
+    }
+  }
+
+  /**
+   * bulkWriterIdleMillis 동안 사용하지 않은 writer 는 정리되므로, 오래 보관하지 말고 insertBuffered 를 사용한다.
+   */
+  public MongoDBBulkWriter getBulkWriter(String database,
+                                         String collection) {
+    MongoDBBulkWriter writer = bulkWriters.get(database + "." + collection);
+    if (writer != null) return writer;
+    this.startBulkWriterEviction();
+    return bulkWriters.computeIfAbsent(database + "." + collection,
+                                       ns -> new MongoDBBulkWriter(this, database, collection));
+  }
+
+  /**
+   * 이 시간 동안 insert 가 없고 비어 있는 namespace 의 writer 를 정리한다. ( 날짜별 database / collection )
+   * @param millis
+   */
+  public void setBulkWriterIdleMillis(long millis) {
+    this.bulkWriterIdleMillis = Math.max(1, millis);
+  }
+
+  private void startBulkWriterEviction() {
+    if (bulkWriterEviction != null) return;
+    bulkWriterLock.lock();
+    try {
+      if (bulkWriterEviction == null) {
+        long period = Math.max(1000, bulkWriterIdleMillis / 2);
+        bulkWriterEviction = MongoDBBulkWriter.SCHEDULER.scheduleWithFixedDelay(this::evictIdleBulkWriters,
+                                                                                 period, period, TimeUnit.MILLISECONDS);
+      }
+    } finally {
+      bulkWriterLock.unlock();
+    }
+  }
+
+  void evictIdleBulkWriters() {
+    long idleNanos = TimeUnit.MILLISECONDS.toNanos(bulkWriterIdleMillis);
+    for (Map.Entry<String, MongoDBBulkWriter> entry : bulkWriters.entrySet()) {
+      MongoDBBulkWriter writer = entry.getValue();
+      if (writer.isIdle(idleNanos) && bulkWriters.remove(entry.getKey(), writer)) writer.close();
+    }
+  }
+
+  /**
+   * unordered bulkWrite. 같은 namespace 에 대한 여러 upsert / update 를 한번에 수행한다.
+   * @param database
+   * @param collection
+   * @param models
+   * @throws Exception
+   */
+  public BulkWriteResult bulkWrite(String database,
+                                   String collection,
+                                   List<? extends WriteModel<? extends Document>> models) throws Exception {
+    MongoDB mongoDB = null;
+    long start = 0;
+    try {
+      mongoDB = this.borrowObject();
+      start = System.nanoTime();
+      return mongoDB.getCollectionPrimary(database, collection)
+                    .withWriteConcern(WriteConcern.ACKNOWLEDGED)
+                    .bulkWrite(models, new BulkWriteOptions().ordered(false));
+    } catch (RuntimeException e) {
+      metrics.recordError(Operation.BULK_WRITE, e);
+      throw e;
+    } finally {
+      if (mongoDB != null) {
+        this.returnObject(mongoDB);
+        this.invalidateReadCache(database, collection);
+        metrics.record(Operation.BULK_WRITE, database, collection, start);
+      }
+    }
+  }
+
   public void deleteOne(String database,
                         String collection,
                         Document query) throws Exception {
     MongoDB mongoDB = null;
+    long start = 0;
     try {
       mongoDB = this.borrowObject();
+      start = System.nanoTime();
       mongoDB.getCollectionPrimary(database, collection)
              .deleteOne(query);
+    } catch (RuntimeException e) {
+      metrics.recordError(Operation.DELETE, e);
+      throw e;
     } finally {
-      if (mongoDB != null) this.returnObject(mongoDB);
+      if (mongoDB != null) {
+        this.returnObject(mongoDB);
+        this.invalidateReadCache(database, collection);
+        metrics.record(Operation.DELETE, database, collection, start, query, null);
+      }
     }
   }
   
   public Set<String> getCollcetionNames(String database) throws Exception {
     MongoDB mongoDB = null;
+    long start = 0;
     try {
       mongoDB = this.borrowObject();
+      start = System.nanoTime();
       return mongoDB.getCollcetions(database);
+    } catch (RuntimeException e) {
+      metrics.recordError(Operation.LIST, e);
+      throw e;
     } finally {
-      if (mongoDB != null) this.returnObject(mongoDB);
+      if (mongoDB != null) {
+        this.returnObject(mongoDB);
+        metrics.record(Operation.LIST, database, null, start);
+      }
     }
   }
   
@@ -206,45 +759,77 @@ public class MongoDBPool extends GenericObjectPool<MongoDB> {
     if (databases != null && databases.length == 1)
       return getCollcetionNames(databases[0]);
     MongoDB mongoDB = null;
+    long start = 0;
     try {
       mongoDB = this.borrowObject();
+      start = System.nanoTime();
       Set<String> collNames = new HashSet<>();
       for (String database : databases)
         collNames.addAll(mongoDB.getCollcetions(database));
       return collNames;
+    } catch (RuntimeException e) {
+      metrics.recordError(Operation.LIST, e);
+      throw e;
     } finally {
-      if (mongoDB != null) this.returnObject(mongoDB);
+      if (mongoDB != null) {
+        this.returnObject(mongoDB);
+        metrics.record(Operation.LIST, null, null, start);
+      }
     }
   }
 
   public Set<String> getDatbaseNames() throws Exception {
     MongoDB mongoDB = null;
+    long start = 0;
     try {
       mongoDB = this.borrowObject();
+      start = System.nanoTime();
       return mongoDB.getDatabaseNames();
+    } catch (RuntimeException e) {
+      metrics.recordError(Operation.LIST, e);
+      throw e;
     } finally {
-      if (mongoDB != null) this.returnObject(mongoDB);
+      if (mongoDB != null) {
+        this.returnObject(mongoDB);
+        metrics.record(Operation.LIST, null, null, start);
+      }
     }
   }
   
   public Document command(String database,
                           Document command) throws Exception {
     MongoDB mongoDB = null;
+    long start = 0;
     try {
       mongoDB = this.borrowObject();
+      start = System.nanoTime();
       return mongoDB.runCommand(database, command);
+    } catch (RuntimeException e) {
+      metrics.recordError(Operation.COMMAND, e);
+      throw e;
     } finally {
-      if (mongoDB != null) this.returnObject(mongoDB);
+      if (mongoDB != null) {
+        this.returnObject(mongoDB);
+        metrics.record(Operation.COMMAND, database, null, start);
+      }
     }
   }
   
   public void dropDatabase(String database) throws Exception {
     MongoDB mongoDB = null;
+    long start = 0;
     try {
       mongoDB = this.borrowObject();
+      start = System.nanoTime();
       mongoDB.dropDatabase(database);
+    } catch (RuntimeException e) {
+      metrics.recordError(Operation.DROP, e);
+      throw e;
     } finally {
-      if (mongoDB != null) this.returnObject(mongoDB);
+      if (mongoDB != null) {
+        this.returnObject(mongoDB);
+        metrics.record(Operation.DROP, database, null, start);
+      }
     }
   }
   
@@ -252,55 +837,127 @@ public class MongoDBPool extends GenericObjectPool<MongoDB> {
                                String collection,
                                String key) throws Exception {
     MongoDB mongoDB = null;
+    long start = 0;
     try {
       mongoDB = this.borrowObject();
+      start = System.nanoTime();
       return mongoDB.distinct(database, collection, key);
+    } catch (RuntimeException e) {
+      metrics.recordError(Operation.DISTINCT, e);
+      throw e;
     } finally {
-      if (mongoDB != null) this.returnObject(mongoDB);
+      if (mongoDB != null) {
+        this.returnObject(mongoDB);
+        metrics.record(Operation.DISTINCT, database, collection, start);
+      }
     }
   }
 
   public List<Document> aggregate(String[] databases,
                                   String[] collections,
                                   List<Document> pipe) throws Exception {
-    MongoDB mongoDB = null;
+    long start = System.nanoTime();
     try {
-      mongoDB = this.borrowObject();
-      List<Document> docList = new ArrayList<>();
-      for (String database : databases) {
-        for (String collection : collections) {
-          MongoCursor<Document> cursor = mongoDB.getCollection(database, collection)
-                                                .aggregate(pipe)
-                                                .maxTime(ConstantMongodb.MONGODB_CURSOR_MAX_SECS, TimeUnit.SECONDS)
-                                                .iterator();
-          while (cursor.hasNext()) {
-            docList.add(cursor.next());
-          }
-        }
-      }
-      return docList;
+      return this.getFanOut().aggregate(databases, collections, pipe);
+    } catch (RuntimeException e) {
+      metrics.recordError(Operation.AGGREGATE, e);
+      throw e;
     } finally {
-      if (mongoDB != null) this.returnObject(mongoDB);
+      metrics.record(Operation.AGGREGATE, null, null, start, pipe, null);
     }
   }
   
   public List<Document> count(String[] databases,
       String[] collections,
       Document query) throws Exception {
-    MongoDB mongoDB = null;
-    List<Document> docList = new ArrayList<>();
+    long start = System.nanoTime();
     try {
-      mongoDB = this.borrowObject();
-      for (String database : databases) {
-        for (String collection: collections) {
-          docList.add(new Document().append("database", database)
-                                    .append("collection", collection)
-                                    .append("count", mongoDB.getCollection(database, collection).count(query)));
-        }
+      return this.getFanOut().count(databases, collections, query);
+    } catch (RuntimeException e) {
+      metrics.recordError(Operation.COUNT, e);
+      throw e;
+    } finally {
+      metrics.record(Operation.COUNT, null, null, start, query, null);
+    }
+  }
+
+  /**
+   * 모든 database x collection 의 count 를 동시에 수행한다.
+   * 조건이 없으면 metadata 를 읽고, 있으면 hint / maxTime 으로 countDocuments 를 수행하며,
+   * approximate 이면 maxTime 을 넘긴 namespace 는 $sample 추정값을 반환한다. ( MongoDBCountOptions )
+   * @return [ { database, collection, count, approximate } ]
+   * @throws Exception
+   */
+  public List<Document> count(String[] databases,
+                              String[] collections,
+                              Document query,
+                              MongoDBCountOptions options) throws Exception {
+    long start = System.nanoTime();
+    try {
+      return this.getFanOut().count(databases, collections, query, options);
+    } catch (RuntimeException e) {
+      metrics.recordError(Operation.COUNT, e);
+      throw e;
+    } finally {
+      metrics.record(Operation.COUNT, null, null, start, query, null);
+    }
+  }
+
+  /**
+   * namespace fan-out 시 동시에 수행할 최대 작업 수를 설정한다.
+   * @param parallelism
+   */
+  public void setFanOutParallelism(int parallelism) {
+    MongoDBFanOut old;
+    fanOutLock.lock();
+    try {
+      old = fanOut;
+      fanOut = new MongoDBFanOut(this, parallelism);
+    } finally {
+      fanOutLock.unlock();
+    }
+    if (old != null) old.close();
+  }
+
+  MongoDBFanOut getFanOut() {
+    MongoDBFanOut current = fanOut;
+    if (current != null) return current;
+    fanOutLock.lock();
+    try {
+      if (fanOut == null) {
+        int maxTotal = this.getMaxTotal();
+        fanOut = new MongoDBFanOut(this, maxTotal > 0 ? Math.min(maxTotal, DEFAULT_FANOUT_PARALLELISM) : DEFAULT_FANOUT_PARALLELISM);
       }
-      return docList;
+      return fanOut;
     } finally {
-      if (mongoDB != null) this.returnObject(mongoDB);
+      fanOutLock.unlock();
+    }
+  }
+
+  @Override
+  public void close() {
+    bulkWriterLock.lock();
+    try {
+      if (bulkWriterEviction != null) bulkWriterEviction.cancel(false);
+      bulkWriterEviction = null;
+    } finally {
+      bulkWriterLock.unlock();
+    }
+    for (MongoDBBulkWriter writer : bulkWriters.values()) {
+      writer.close();
+    }
+    bulkWriters.clear();
+    fanOutLock.lock();
+    try {
+      if (fanOut != null) fanOut.close();
+      fanOut = null;
+    } finally {
+      fanOutLock.unlock();
+    }
+    super.close();
+    metrics.unregisterMBean();
+    if (this.getFactory() instanceof MongoManger) {
+      ((MongoManger) this.getFactory()).close();
     }
   }
 }
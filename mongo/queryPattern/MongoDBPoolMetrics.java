@@ -0,0 +1,323 @@
+package com.ea.asiacentraltech.thoth.mongodb;
+
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.bson.Document;
+
+import com.mongodb.MongoException;
+
+/**
+ * MongoDBPool 의 operation 별 / namespace 별 latency, borrow 대기시간, error code 별 횟수를 수집한다.
+ * operation latency 는 MongoDB를 빌린 뒤부터 반환할 때까지의 시간이며, borrow 대기시간은 따로 기록한다.
+ * 기록 경로는 Object 를 할당하지 않으므로 운영 환경에서 항상 켜둘 수 있다. ( error 기록 제외 )
+ * query shape 별 기록은 query 를 한번 순회하여 hash 하므로 기본적으로 꺼져 있으며, setQueryShapeSampleRate 로 일부만 기록한다.
+ * namespace 는 날짜가 붙어 계속 늘어나므로 숫자 4자리 이상인 부분을 * 로 바꾼 논리 이름( log_20240101 =&gt; log_* )으로 합치며,
+ * 논리 namespace 가 MAX_NAMESPACES 개를 넘으면 나머지는 OTHER_NAMESPACE 하나로 기록한다.
+ * snapshot() 또는 JMX( registerMBean ) 로 조회한다.
+ */
+public class MongoDBPoolMetrics implements MongoDBPoolMetricsMXBean {
+  public enum Operation {
+    FIND_ONE, FIND, CURSOR, AGGREGATE, COUNT, INSERT, BULK_INSERT, BULK_WRITE, UPDATE, DELETE, COMMAND, DISTINCT, LIST, DROP
+  }
+
+  public static final int MAX_NAMESPACES = 256;
+  public static final String OTHER_NAMESPACE = "_other";
+  private static final Operation[] OPERATIONS = Operation.values();
+  // 실제 이름 =&gt; 논리 namespace histogram cache 의 최대 크기. 넘으면 비운다.
+  private static final int MAX_RESOLVED = 4096;
+
+  private final MongoDBPool pool;
+  private final LatencyHistogram borrowWait = new LatencyHistogram();
+  private final LatencyHistogram[] operations = new LatencyHistogram[OPERATIONS.length];
+  private final LongAdder[] operationErrors = new LongAdder[OPERATIONS.length];
+  private final ConcurrentHashMap<String, LatencyHistogram> namespaces = new ConcurrentHashMap<>();
+  private final LatencyHistogram otherNamespace = new LatencyHistogram();
+  private final ConcurrentHashMap<String, ConcurrentHashMap<String, LatencyHistogram>> resolved = new ConcurrentHashMap<>();
+  private final AtomicInteger resolvedCount = new AtomicInteger();
+  private final ConcurrentHashMap<Integer, LongAdder> errors = new ConcurrentHashMap<>();
+  private final MongoDBQueryShapes shapes = new MongoDBQueryShapes();
+  private volatile int queryShapeSampleRate = 0;
+  private ObjectName objectName;
+
+  public MongoDBPoolMetrics(final MongoDBPool pool) {
+    this.pool = pool;
+    for (int i = 0; i < operations.length; i++) {
+      operations[i] = new LatencyHistogram();
+      operationErrors[i] = new LongAdder();
+    }
+  }
+
+  /**
+   * borrowObject 대기시간 기록
+   * @param startNanos System.nanoTime()
+   */
+  public void recordBorrow(final long startNanos) {
+    borrowWait.recordNanos(System.nanoTime() - startNanos);
+  }
+
+  /**
+   * operation latency 기록. database 가 null 이면 namespace 별 기록은 하지 않는다.
+   * @param startNanos System.nanoTime()
+   * @return 경과 시간 (ns)
+   */
+  public long record(final Operation op, final String database, final String collection, final long startNanos) {
+    long elapsed = System.nanoTime() - startNanos;
+    operations[op.ordinal()].recordNanos(elapsed);
+    if (database != null && collection != null) {
+      this.getNamespace(database, collection).recordNanos(elapsed);
+    }
+    return elapsed;
+  }
+
+  /**
+   * operation latency 와 query shape 별 latency 기록
+   * @param query Document 또는 aggregate pipeline( List )
+   * @param sort
+   * @param startNanos System.nanoTime()
+   * @return 경과 시간 (ns)
+   */
+  public long record(final Operation op, final String database, final String collection, final long startNanos,
+                     final Object query, final Map<String, ?> sort) {
+    long elapsed = this.record(op, database, collection, startNanos);
+    int rate = queryShapeSampleRate;
+    if (rate > 0 && (rate == 1 || ThreadLocalRandom.current().nextInt(rate) == 0)) {
+      shapes.record(op, database, collection, query, sort, elapsed);
+    }
+    return elapsed;
+  }
+
+  /**
+   * query shape 를 rate 번의 호출 중 한번 꼴로 기록한다. 0 이면 기록하지 않는다. ( 기본값 )
+   * shape 별 count / totalMillis 는 기록된 호출의 값이므로 실제 값은 약 rate 배이다.
+   * @param rate 1 이면 모든 호출
+   */
+  public void setQueryShapeSampleRate(final int rate) {
+    this.queryShapeSampleRate = Math.max(0, rate);
+  }
+
+  public int getQueryShapeSampleRate() {
+    return queryShapeSampleRate;
+  }
+
+  /**
+   * error 기록. MongoException 은 code 별로, 그 외는 -1 로 집계한다.
+   */
+  public void recordError(final Operation op, final Throwable t) {
+    int code = t instanceof MongoException ? ((MongoException) t).getCode() : -1;
+    LongAdder counter = errors.get(code);
+    if (counter == null) counter = errors.computeIfAbsent(code, k -> new LongAdder());
+    counter.increment();
+    operationErrors[op.ordinal()].increment();
+  }
+
+  public LatencyHistogram getOperation(final Operation op) {
+    return operations[op.ordinal()];
+  }
+
+  public LatencyHistogram getBorrowWait() {
+    return borrowWait;
+  }
+
+  /**
+   * query shape 별 누적 latency 상위 K 개
+   */
+  public MongoDBQueryShapes getQueryShapes() {
+    return shapes;
+  }
+
+  /**
+   * 현재 값을 Document 로 반환한다.
+   * @return { pool : {...}, borrowWait : {...}, operations : {...}, namespaces : {...}, errors : {...}, shapes : [...] }
+   */
+  public Document snapshot() {
+    Document ops = new Document();
+    for (Operation op : OPERATIONS) {
+      LatencyHistogram histogram = operations[op.ordinal()];
+      long errorCount = operationErrors[op.ordinal()].sum();
+      if (histogram.getCount() > 0 || errorCount > 0)
+        ops.append(op.name(), histogram.toDocument().append("errors", errorCount));
+    }
+    Document ns = new Document();
+    for (Map.Entry<String, LatencyHistogram> namespace : new TreeMap<>(namespaces).entrySet()) {
+      ns.append(namespace.getKey(), namespace.getValue().toDocument());
+    }
+    if (otherNamespace.getCount() > 0) ns.append(OTHER_NAMESPACE, otherNamespace.toDocument());
+    Document errorDoc = new Document();
+    for (Map.Entry<String, Long> error : this.getErrorCounts().entrySet()) {
+      errorDoc.append(error.getKey(), error.getValue());
+    }
+    return new Document("pool", new Document("active", pool.getNumActive())
+                                      .append("idle", pool.getNumIdle())
+                                      .append("waiters", pool.getNumWaiters())
+                                      .append("created", pool.getCreatedCount())
+                                      .append("destroyed", pool.getDestroyedCount()))
+        .append("borrowWait", borrowWait.toDocument())
+        .append("operations", ops)
+        .append("namespaces", ns)
+        .append("errors", errorDoc)
+        .append("shapes", shapes.snapshot());
+  }
+
+  /**
+   * platform MBeanServer 에 등록한다.
+   * @param name ObjectName 의 name 속성
+   */
+  public void registerMBean(final String name) throws JMException {
+    MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+    ObjectName oName = new ObjectName("com.ea.asiacentraltech.thoth.mongodb:type=MongoDBPoolMetrics,name=" + ObjectName.quote(name));
+    server.registerMBean(this, oName);
+    this.objectName = oName;
+  }
+
+  public void unregisterMBean() {
+    if (objectName == null) return;
+    try {
+      ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+    } catch (JMException e) {
+      // ignore
+    }
+    objectName = null;
+  }
+
+  @Override
+  public int getNumActive() {
+    return pool.getNumActive();
+  }
+
+  @Override
+  public int getNumIdle() {
+    return pool.getNumIdle();
+  }
+
+  @Override
+  public int getNumWaiters() {
+    return pool.getNumWaiters();
+  }
+
+  @Override
+  public long getBorrowWaitP50Micros() {
+    return borrowWait.getPercentileMicros(50);
+  }
+
+  @Override
+  public long getBorrowWaitP99Micros() {
+    return borrowWait.getPercentileMicros(99);
+  }
+
+  @Override
+  public long getBorrowWaitMaxMicros() {
+    return borrowWait.getMaxMicros();
+  }
+
+  @Override
+  public Map<String, Long> getOperationCounts() {
+    Map<String, Long> result = new TreeMap<>();
+    for (Operation op : OPERATIONS) {
+      result.put(op.name(), operations[op.ordinal()].getCount());
+    }
+    return result;
+  }
+
+  @Override
+  public Map<String, Long> getOperationP50Micros() {
+    return this.getOperationPercentile(50);
+  }
+
+  @Override
+  public Map<String, Long> getOperationP99Micros() {
+    return this.getOperationPercentile(99);
+  }
+
+  @Override
+  public Map<String, Long> getOperationP999Micros() {
+    return this.getOperationPercentile(99.9);
+  }
+
+  @Override
+  public Map<String, Long> getErrorCounts() {
+    Map<String, Long> result = new TreeMap<>();
+    for (Map.Entry<Integer, LongAdder> error : errors.entrySet()) {
+      result.put(String.valueOf(error.getKey()), error.getValue().sum());
+    }
+    return result;
+  }
+
+  @Override
+  public String getSnapshotJson() {
+    return this.snapshot().toJson();
+  }
+
+  private Map<String, Long> getOperationPercentile(final double percentile) {
+    Map<String, Long> result = new TreeMap<>();
+    for (Operation op : OPERATIONS) {
+      result.put(op.name(), operations[op.ordinal()].getPercentileMicros(percentile));
+    }
+    return result;
+  }
+
+  private LatencyHistogram getNamespace(final String database, final String collection) {
+    ConcurrentHashMap<String, LatencyHistogram> collections = resolved.get(database);
+    LatencyHistogram histogram = collections == null ? null : collections.get(collection);
+    if (histogram != null) return histogram;
+    histogram = this.getLogicalNamespace(logicalName(database) + "." + logicalName(collection));
+    if (resolvedCount.incrementAndGet() > MAX_RESOLVED) {
+      resolved.clear();
+      resolvedCount.set(1);
+    }
+    if (collections == null) collections = resolved.computeIfAbsent(database, k -> new ConcurrentHashMap<>());
+    collections.put(collection, histogram);
+    return histogram;
+  }
+
+  private LatencyHistogram getLogicalNamespace(final String namespace) {
+    LatencyHistogram histogram = namespaces.get(namespace);
+    if (histogram != null) return histogram;
+    if (namespaces.size() >= MAX_NAMESPACES) return otherNamespace;
+    return namespaces.computeIfAbsent(namespace, k -> new LatencyHistogram());
+  }
+
+  /**
+   * 숫자가 4자리 이상인 부분( 사이의 - _ 포함 )을 * 로 바꾼다. log_2024_01_01 =&gt; log_*, shard01 =&gt; shard01
+   */
+  static String logicalName(final String name) {
+    StringBuilder result = null;
+    int length = name.length();
+    int i = 0;
+    while (i < length) {
+      if (!Character.isDigit(name.charAt(i))) {
+        if (result != null) result.append(name.charAt(i));
+        i++;
+        continue;
+      }
+      int end = i;
+      int digits = 0;
+      while (end < length) {
+        char c = name.charAt(end);
+        if (Character.isDigit(c)) {
+          digits++;
+        } else if (!((c == '-' || c == '_') && end + 1 < length && Character.isDigit(name.charAt(end + 1)))) {
+          break;
+        }
+        end++;
+      }
+      if (digits >= 4) {
+        if (result == null) result = new StringBuilder(length).append(name, 0, i);
+        result.append('*');
+      } else if (result != null) {
+        result.append(name, i, end);
+      }
+      i = end;
+    }
+    return result == null ? name : result.toString();
+  }
+}
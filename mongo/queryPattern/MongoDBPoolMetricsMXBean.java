@@ -0,0 +1,35 @@
+package com.ea.asiacentraltech.thoth.mongodb;
+
+import java.util.Map;
+
+/**
+ * MongoDBPoolMetrics JMX 노출용 interface. ( latency 단위 : microseconds )
+ */
+public interface MongoDBPoolMetricsMXBean {
+  int getNumActive();
+
+  int getNumIdle();
+
+  int getNumWaiters();
+
+  long getBorrowWaitP50Micros();
+
+  long getBorrowWaitP99Micros();
+
+  long getBorrowWaitMaxMicros();
+
+  Map<String, Long> getOperationCounts();
+
+  Map<String, Long> getOperationP50Micros();
+
+  Map<String, Long> getOperationP99Micros();
+
+  Map<String, Long> getOperationP999Micros();
+
+  Map<String, Long> getErrorCounts();
+
+  /**
+   * snapshot 전체를 JSON 으로 반환한다.
+   */
+  String getSnapshotJson();
+}
@@ -0,0 +1,156 @@
+package com.ea.asiacentraltech.thoth.mongodb;
+
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+import org.bson.BsonRegularExpression;
+import org.bson.types.Binary;
+import org.bson.types.Decimal128;
+import org.bson.types.ObjectId;
+
+/**
+ * query / sort / pipeline 의 값을 type placeholder 로 바꾼 모양( shape ). ( slowQueryPattern.ts 의 VALUE_PATTERNS 와 같은 의미 )
+ * <pre>
+ * { aid : ObjectId('...'), st : { $in : [ 1, 2 ] }, name : "bob" }  =>  { aid: ?objectId, st: { $in: [] }, name: ?string }
+ * </pre>
+ * Document 의 값은 type 으로, 값 목록( $in 등 )은 [] 로 바꾸고 Document 의 목록( $and, $or, pipeline )은 그대로 순회한다.
+ * sort 는 방향도 모양에 포함한다.
+ * fingerprint 는 String 을 만들지 않고 Document 를 한번 순회하며 FNV-1a 64bit 로 계산한다.
+ */
+public final class MongoDBQueryShape {
+  private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+  private static final long FNV_PRIME = 0x100000001b3L;
+
+  private MongoDBQueryShape() {
+  }
+
+  /**
+   * @param op
+   * @param database fan-out 이면 null. 기록용이면 MongoDBPoolMetrics.logicalName
+   * @param collection
+   * @param query Document 또는 pipeline( List )
+   * @param sort
+   * @return
+   */
+  public static long fingerprint(final MongoDBPoolMetrics.Operation op, final String database, final String collection,
+                                 final Object query, final Map<String, ?> sort) {
+    long h = FNV_OFFSET;
+    h = hash(h, op.ordinal());
+    h = hash(h, database == null ? "*" : database);
+    h = hash(h, '.');
+    h = hash(h, collection == null ? "*" : collection);
+    h = hashValue(h, query);
+    h = hash(h, '|');
+    if (sort != null) {
+      for (Map.Entry<String, ?> entry : sort.entrySet()) {
+        Object direction = entry.getValue();
+        h = hash(h, entry.getKey());
+        h = direction instanceof Number ? hash(h, ((Number) direction).intValue()) : hash(h, String.valueOf(direction));
+      }
+    }
+    return h;
+  }
+
+  /**
+   * fingerprint 와 같은 기준의 표시용 문자열
+   */
+  public static String shape(final Object query, final Map<String, ?> sort) {
+    StringBuilder sb = new StringBuilder();
+    render(sb, query);
+    if (sort != null && !sort.isEmpty()) {
+      sb.append(" sort: { ");
+      boolean first = true;
+      for (Map.Entry<String, ?> entry : sort.entrySet()) {
+        if (!first) sb.append(", ");
+        sb.append(entry.getKey()).append(": ").append(entry.getValue());
+        first = false;
+      }
+      sb.append(" }");
+    }
+    return sb.toString();
+  }
+
+  private static long hashValue(long h, final Object value) {
+    if (value instanceof Map) {
+      h = hash(h, '{');
+      for (Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+        h = hash(h, String.valueOf(entry.getKey()));
+        h = hash(h, ':');
+        h = hashValue(h, entry.getValue());
+      }
+      return hash(h, '}');
+    }
+    if (value instanceof List) {
+      h = hash(h, '[');
+      if (isDocumentList((List<?>) value)) {
+        for (Object element : (List<?>) value) {
+          h = hashValue(h, element);
+        }
+      }
+      return hash(h, ']');
+    }
+    return hash(hash(h, '?'), typeOf(value));
+  }
+
+  private static void render(final StringBuilder sb, final Object value) {
+    if (value instanceof Map) {
+      Map<?, ?> map = (Map<?, ?>) value;
+      if (map.isEmpty()) {
+        sb.append("{}");
+        return;
+      }
+      sb.append("{ ");
+      boolean first = true;
+      for (Map.Entry<?, ?> entry : map.entrySet()) {
+        if (!first) sb.append(", ");
+        sb.append(entry.getKey()).append(": ");
+        render(sb, entry.getValue());
+        first = false;
+      }
+      sb.append(" }");
+    } else if (value instanceof List) {
+      List<?> list = (List<?>) value;
+      if (list.isEmpty() || !isDocumentList(list)) {
+        sb.append("[]");
+        return;
+      }
+      sb.append("[ ");
+      for (int i = 0; i < list.size(); i++) {
+        if (i > 0) sb.append(", ");
+        render(sb, list.get(i));
+      }
+      sb.append(" ]");
+    } else {
+      sb.append('?').append(typeOf(value));
+    }
+  }
+
+  private static boolean isDocumentList(final List<?> list) {
+    return !list.isEmpty() && list.get(0) instanceof Map;
+  }
+
+  private static String typeOf(final Object value) {
+    if (value == null) return "null";
+    if (value instanceof String) return "string";
+    if (value instanceof Number || value instanceof Decimal128) return "number";
+    if (value instanceof ObjectId) return "objectId";
+    if (value instanceof Date) return "date";
+    if (value instanceof Boolean) return "bool";
+    if (value instanceof Pattern || value instanceof BsonRegularExpression) return "regex";
+    if (value instanceof Binary || value instanceof byte[]) return "binary";
+    return "value";
+  }
+
+  private static long hash(long h, final String s) {
+    for (int i = 0; i < s.length(); i++) {
+      h = (h ^ s.charAt(i)) * FNV_PRIME;
+    }
+    return h;
+  }
+
+  private static long hash(final long h, final int c) {
+    return (h ^ c) * FNV_PRIME;
+  }
+}
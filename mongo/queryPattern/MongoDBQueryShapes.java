@@ -0,0 +1,194 @@
+package com.ea.asiacentraltech.thoth.mongodb;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import org.bson.Document;
+
+/**
+ * query shape ( MongoDBQueryShape ) 별 누적 latency 상위 K 개.
+ * 모든 shape 의 누적 latency 는 count-min sketch 에 더하고, 추정값이 현재 상위 K 개 중 가장 작은 값보다 크면
+ * 그 slot 을 CAS 로 교체한다. 이미 상위 K 개에 있는 shape 는 slot 에서 정확한 건수 / 합계 / 최대값을 기록한다.
+ * Lock 이 없고, shape 문자열은 slot 에 들어갈 때에만 만들므로 기록 비용은 Document 한번 순회 + 몇 번의 atomic 연산이다.
+ * database / collection 은 MongoDBPoolMetrics.logicalName 으로 바꿔 날짜별 collection 의 같은 query 를 하나의 shape 로 모은다.
+ */
+public class MongoDBQueryShapes {
+  public static final int DEFAULT_CAPACITY = 32;
+  private static final int SKETCH_DEPTH = 4;
+  private static final int SKETCH_WIDTH = 4096;
+
+  private final AtomicReferenceArray<Slot> slots;
+  private final AtomicLongArray sketch = new AtomicLongArray(SKETCH_DEPTH * SKETCH_WIDTH);
+
+  public MongoDBQueryShapes() {
+    this(DEFAULT_CAPACITY);
+  }
+
+  /**
+   * @param capacity 유지할 shape 수 ( K )
+   */
+  public MongoDBQueryShapes(final int capacity) {
+    this.slots = new AtomicReferenceArray<>(Math.max(1, capacity));
+  }
+
+  /**
+   * @param op
+   * @param database fan-out 이면 null
+   * @param collection
+   * @param query Document 또는 pipeline( List )
+   * @param sort
+   * @param elapsedNanos
+   */
+  public void record(final MongoDBPoolMetrics.Operation op, final String database, final String collection,
+                     final Object query, final Map<String, ?> sort, final long elapsedNanos) {
+    String logicalDatabase = database == null ? null : MongoDBPoolMetrics.logicalName(database);
+    String logicalCollection = collection == null ? null : MongoDBPoolMetrics.logicalName(collection);
+    long fingerprint = MongoDBQueryShape.fingerprint(op, logicalDatabase, logicalCollection, query, sort);
+    long micros = Math.max(1, elapsedNanos / 1000);
+    long estimate = this.addToSketch(fingerprint, micros);
+
+    int minIndex = -1;
+    long minEstimate = Long.MAX_VALUE;
+    for (int i = 0; i < slots.length(); i++) {
+      Slot slot = slots.get(i);
+      if (slot == null) {
+        if (minEstimate > 0) {
+          minIndex = i;
+          minEstimate = 0;
+        }
+        continue;
+      }
+      if (slot.fingerprint == fingerprint) {
+        slot.add(micros, estimate);
+        return;
+      }
+      if (slot.estimate < minEstimate) {
+        minIndex = i;
+        minEstimate = slot.estimate;
+      }
+    }
+    if (estimate <= minEstimate) return;
+    Slot expected = slots.get(minIndex);
+    if (expected != null && expected.estimate >= estimate) return;
+    String namespace = logicalDatabase == null || logicalCollection == null ? null : logicalDatabase + "." + logicalCollection;
+    Slot slot = new Slot(fingerprint, op, namespace, MongoDBQueryShape.shape(query, sort));
+    slot.add(micros, estimate);
+    // 다른 thread 가 먼저 교체했으면 이번 기록은 sketch 에만 남는다.
+    if (slots.compareAndSet(minIndex, expected, slot)) this.removeDuplicate(minIndex, slot);
+  }
+
+  /**
+   * 같은 fingerprint 를 여러 thread 가 동시에 서로 다른 slot 에 넣은 경우, 앞쪽 slot 만 남기고 뒤쪽 slot 의 기록을 합친다.
+   * 교체한 thread 가 모두 교체 후에 다시 확인하므로, 나중에 교체한 thread 는 먼저 들어간 slot 을 반드시 본다.
+   * 합치는 중에 뒤쪽 slot 에 더해지는 기록은 잃을 수 있다.
+   */
+  private void removeDuplicate(final int index, final Slot slot) {
+    for (int i = 0; i < slots.length(); i++) {
+      Slot other = slots.get(i);
+      if (i == index || other == null || other.fingerprint != slot.fingerprint) continue;
+      if (i < index) {
+        if (slots.compareAndSet(index, slot, null)) other.merge(slot);
+      } else {
+        if (slots.compareAndSet(i, other, null)) slot.merge(other);
+      }
+      return;
+    }
+  }
+
+  /**
+   * @return 누적 latency 순의 [ { fingerprint, operation, namespace, shape, count, totalMillis, avgMicros, maxMicros, estimatedMillis } ]
+   */
+  public List<Document> snapshot() {
+    List<Slot> current = new ArrayList<>(slots.length());
+    for (int i = 0; i < slots.length(); i++) {
+      Slot slot = slots.get(i);
+      if (slot != null) current.add(slot);
+    }
+    current.sort((a, b) -> Long.compare(b.estimate, a.estimate));
+    List<Document> result = new ArrayList<>(current.size());
+    for (Slot slot : current) {
+      long count = slot.count.get();
+      long total = slot.totalMicros.get();
+      result.add(new Document("fingerprint", Long.toHexString(slot.fingerprint))
+          .append("operation", slot.op.name())
+          .append("namespace", slot.namespace)
+          .append("shape", slot.shape)
+          .append("count", count)
+          .append("totalMillis", total / 1000)
+          .append("avgMicros", count == 0 ? 0 : total / count)
+          .append("maxMicros", slot.maxMicros.get())
+          .append("estimatedMillis", slot.estimate / 1000));
+    }
+    return result;
+  }
+
+  /**
+   * 누적값을 모두 지운다.
+   */
+  public void reset() {
+    for (int i = 0; i < slots.length(); i++) {
+      slots.set(i, null);
+    }
+    for (int i = 0; i < sketch.length(); i++) {
+      sketch.set(i, 0);
+    }
+  }
+
+  /**
+   * @return 더한 뒤의 추정값 ( row 별 최소값 )
+   */
+  private long addToSketch(final long fingerprint, final long micros) {
+    int h1 = (int) fingerprint;
+    int h2 = (int) (fingerprint >>> 32) | 1;
+    long estimate = Long.MAX_VALUE;
+    for (int row = 0; row < SKETCH_DEPTH; row++) {
+      int column = (h1 + row * h2) & (SKETCH_WIDTH - 1);
+      estimate = Math.min(estimate, sketch.addAndGet(row * SKETCH_WIDTH + column, micros));
+    }
+    return estimate;
+  }
+
+  private static class Slot {
+    private final long fingerprint;
+    private final MongoDBPoolMetrics.Operation op;
+    private final String namespace;
+    private final String shape;
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong totalMicros = new AtomicLong();
+    private final AtomicLong maxMicros = new AtomicLong();
+    // sketch 추정 누적 latency. 순위 비교에만 사용하므로 마지막 기록 값이면 충분하다.
+    private volatile long estimate;
+
+    Slot(final long fingerprint, final MongoDBPoolMetrics.Operation op, final String namespace, final String shape) {
+      this.fingerprint = fingerprint;
+      this.op = op;
+      this.namespace = namespace;
+      this.shape = shape;
+    }
+
+    void add(final long micros, final long estimate) {
+      count.incrementAndGet();
+      totalMicros.addAndGet(micros);
+      long max = maxMicros.get();
+      while (micros > max && !maxMicros.compareAndSet(max, micros)) {
+        max = maxMicros.get();
+      }
+      if (estimate > this.estimate) this.estimate = estimate;
+    }
+
+    void merge(final Slot other) {
+      count.addAndGet(other.count.get());
+      totalMicros.addAndGet(other.totalMicros.get());
+      long micros = other.maxMicros.get();
+      long max = maxMicros.get();
+      while (micros > max && !maxMicros.compareAndSet(max, micros)) {
+        max = maxMicros.get();
+      }
+      if (other.estimate > this.estimate) this.estimate = other.estimate;
+    }
+  }
+}
@@ -0,0 +1,101 @@
+package com.ea.asiacentraltech.thoth.mongodb;
+
+import java.util.Date;
+
+import org.bson.BsonDocument;
+import org.bson.BsonDocumentReader;
+import org.bson.BsonValue;
+import org.bson.Document;
+import org.bson.RawBsonDocument;
+import org.bson.codecs.DecoderContext;
+import org.bson.codecs.DocumentCodec;
+
+/**
+ * RawBsonDocument 의 값 접근.
+ * RawBsonDocument 는 받은 byte 를 그대로 가지고 있으며, get 할 때 해당 field 까지 scan 하여 그 값만 decode 한다.
+ * 한두개 field 만 읽는 경우 Document( LinkedHashMap ) 전체를 만들지 않으므로 큰 log Document 의 할당이 줄어든다.
+ * 여러번 읽는 field 는 한번 꺼내 변수에 두는 것이 좋다. ( get 마다 처음부터 scan )
+ */
+public final class MongoDBRawDocuments {
+  private static final DocumentCodec DOCUMENT_CODEC = new DocumentCodec();
+  private static final DecoderContext DECODER_CONTEXT = DecoderContext.builder().build();
+
+  private MongoDBRawDocuments() {
+  }
+
+  /**
+   * @param path . 으로 구분된 key ( a.b.c )
+   * @return 없거나 중간 값이 Document 가 아니면 null
+   */
+  public static BsonValue get(final BsonDocument doc, final String path) {
+    if (doc == null) return null;
+    int start = 0;
+    BsonDocument current = doc;
+    while (true) {
+      int dot = path.indexOf('.', start);
+      BsonValue value = current.get(dot < 0 ? path.substring(start) : path.substring(start, dot));
+      if (dot < 0 || value == null) return value;
+      if (!value.isDocument()) return null;
+      current = value.asDocument();
+      start = dot + 1;
+    }
+  }
+
+  /**
+   * @return Document 와 같은 Java 값 ( String, Integer, Long, Double, ObjectId, Date, Document, List ... )
+   */
+  public static Object getValue(final BsonDocument doc, final String path) {
+    return toJava(get(doc, path));
+  }
+
+  /**
+   * @return 문자열이 아니면 toJava 한 값의 toString(), 없으면 null
+   */
+  public static String getString(final BsonDocument doc, final String path) {
+    BsonValue value = get(doc, path);
+    if (value == null || value.isNull()) return null;
+    if (value.isString()) return value.asString().getValue();
+    return String.valueOf(toJava(value));
+  }
+
+  /**
+   * @return 숫자가 아니거나 없으면 defaultValue
+   */
+  public static long getLong(final BsonDocument doc, final String path, final long defaultValue) {
+    BsonValue value = get(doc, path);
+    if (value == null || !value.isNumber()) return defaultValue;
+    return value.asNumber().longValue();
+  }
+
+  public static Object toJava(final BsonValue value) {
+    if (value == null || value.isNull()) return null;
+    switch (value.getBsonType()) {
+      case STRING:
+        return value.asString().getValue();
+      case INT32:
+        return value.asInt32().getValue();
+      case INT64:
+        return value.asInt64().getValue();
+      case DOUBLE:
+        return value.asDouble().getValue();
+      case BOOLEAN:
+        return value.asBoolean().getValue();
+      case OBJECT_ID:
+        return value.asObjectId().getValue();
+      case DATE_TIME:
+        return new Date(value.asDateTime().getValue());
+      case DOCUMENT:
+        return decode(value.asDocument());
+      default:
+        return decode(new BsonDocument("v", value)).get("v");
+    }
+  }
+
+  /**
+   * 전체를 Document 로 decode 한다.
+   */
+  public static Document decode(final BsonDocument doc) {
+    if (doc instanceof RawBsonDocument) return ((RawBsonDocument) doc).decode(DOCUMENT_CODEC);
+    return DOCUMENT_CODEC.decode(new BsonDocumentReader(doc), DECODER_CONTEXT);
+  }
+}
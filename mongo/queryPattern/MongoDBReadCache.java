@@ -0,0 +1,395 @@
+package com.ea.asiacentraltech.thoth.mongodb;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.bson.Document;
+
+/**
+ * meta / analysis 조회 결과를 Process 내에 보관하는 read-through cache. ( MongoDBPool.setReadCache )
+ * 크기가 maximumSize 를 넘으면 가장 오래된 항목과 새 항목의 조회 빈도( count-min sketch )를 비교하여
+ * 새 항목이 더 자주 조회된 경우에만 교체한다. ( TinyLFU admission )
+ * TTL 은 namespace 별로 지정하며, 같은 Process 에서 해당 namespace 에 쓰기가 일어나면 즉시 무효화한다.
+ * 다른 Process 의 쓰기는 TTL 이 지나야 반영된다.
+ * 기본 생성자는 meta / analysis database 와 database 목록만 DEFAULT_META_TTL_MILLIS 동안 cache 하고, 나머지는 cache 하지 않는다.
+ * Document / List / Set 값은 보관할 때와 반환할 때 복사하므로 호출한 쪽에서 변경해도 cache 에 영향이 없다.
+ */
+public class MongoDBReadCache {
+  public static final long DEFAULT_TTL_MILLIS = 0L;
+  public static final long DEFAULT_META_TTL_MILLIS = 10_000L;
+  public static final int DEFAULT_MAXIMUM_SIZE = 10_000;
+
+  /** getDatabaseNames 등 cluster 단위 조회의 namespace */
+  public static final String CLUSTER_NAMESPACE = "";
+
+  private static final Object NULL = new Object();
+
+  /**
+   * cache miss 시 값을 읽어온다. Exception 을 던지지 않는 lambda 는 E 가 RuntimeException 으로 추론된다.
+   */
+  public interface Loader<T, E extends Exception> {
+    T load() throws E;
+  }
+
+  private static final class Entry {
+    final String database;
+    final String namespace;
+    final Object value;
+    final long databaseGeneration;
+    final long generation;
+    final long expireNanos;
+
+    Entry(final String database, final String namespace, final Object value,
+          final long databaseGeneration, final long generation, final long expireNanos) {
+      this.database = database;
+      this.namespace = namespace;
+      this.value = value;
+      this.databaseGeneration = databaseGeneration;
+      this.generation = generation;
+      this.expireNanos = expireNanos;
+    }
+  }
+
+  private final int maximumSize;
+  private final long defaultTtlNanos;
+  private final ConcurrentHashMap<String, Entry> entries = new ConcurrentHashMap<>();
+  // 들어온 순서. eviction 후보는 항상 가장 앞의 항목이다.
+  private final ConcurrentLinkedQueue<String> order = new ConcurrentLinkedQueue<>();
+  private final ConcurrentHashMap<String, AtomicLong> generations = new ConcurrentHashMap<>();
+  private final ConcurrentHashMap<String, Long> ttls = new ConcurrentHashMap<>();
+  private final FrequencySketch sketch;
+  private final ReentrantLock evictionLock = new ReentrantLock();
+
+  private final LongAdder hits = new LongAdder();
+  private final LongAdder misses = new LongAdder();
+  private final LongAdder evictions = new LongAdder();
+  private final LongAdder rejections = new LongAdder();
+  private final LongAdder invalidations = new LongAdder();
+
+  public MongoDBReadCache() {
+    this(DEFAULT_MAXIMUM_SIZE, DEFAULT_TTL_MILLIS);
+    this.enableMetaAndAnalysis(DEFAULT_META_TTL_MILLIS);
+  }
+
+  /**
+   * @param maximumSize 보관할 최대 항목 수
+   * @param defaultTtlMillis setTtl 로 지정하지 않은 namespace 의 TTL. 0 이면 cache 하지 않는다.
+   */
+  public MongoDBReadCache(final int maximumSize, final long defaultTtlMillis) {
+    this.maximumSize = Math.max(1, maximumSize);
+    this.defaultTtlNanos = TimeUnit.MILLISECONDS.toNanos(defaultTtlMillis);
+    this.sketch = new FrequencySketch(this.maximumSize);
+  }
+
+  /**
+   * collection 단위 TTL. 0 이면 해당 collection 은 cache 하지 않는다.
+   */
+  public void setTtl(final String database, final String collection, final long ttlMillis) {
+    ttls.put(getNamespace(database, collection), TimeUnit.MILLISECONDS.toNanos(ttlMillis));
+  }
+
+  /**
+   * database 단위 TTL. collection 단위 TTL 이 없는 collection 과 collection 목록 조회에 적용된다.
+   */
+  public void setTtl(final String database, final long ttlMillis) {
+    ttls.put(database, TimeUnit.MILLISECONDS.toNanos(ttlMillis));
+  }
+
+  /**
+   * meta / analysis database 와 database 목록( CLUSTER_NAMESPACE )의 TTL 을 지정한다.
+   */
+  public void enableMetaAndAnalysis(final long ttlMillis) {
+    this.setTtl(ConstantMongodb.DATABASE_META, ttlMillis);
+    this.setTtl(ConstantMongodb.DATABASE_ANALYSIS, ttlMillis);
+    this.setTtl(CLUSTER_NAMESPACE, ttlMillis);
+  }
+
+  /**
+   * cache 된 값이 있으면 반환하고, 없거나 만료되었으면 loader 의 결과를 보관한 뒤 반환한다. ( null 결과도 보관한다. )
+   * @param database
+   * @param collection null 이면 database 단위 조회 ( collection 목록 )
+   * @param key namespace 안에서 조회를 구분하는 값 ( 조회 종류 + 조건 )
+   * @param loader
+   * @return
+   * @throws E loader 의 Exception
+   */
+  @SuppressWarnings("unchecked")
+  public <T, E extends Exception> T get(final String database,
+                                        final String collection,
+                                        final String key,
+                                        final Loader<T, E> loader) throws E {
+    String namespace = getNamespace(database, collection);
+    long ttl = this.getTtlNanos(database, namespace);
+    if (ttl <= 0) return loader.load();
+
+    String cacheKey = namespace + '\u0000' + key;
+    sketch.increment(cacheKey);
+    Entry entry = entries.get(cacheKey);
+    long now = System.nanoTime();
+    if (entry != null && this.isValid(entry, now)) {
+      hits.increment();
+      return entry.value == NULL ? null : (T) copy(entry.value);
+    }
+    misses.increment();
+
+    // load 중에 쓰기가 일어나면 generation 이 바뀌므로 load 결과는 무효로 처리된다.
+    long databaseGeneration = this.getGeneration(database == null ? CLUSTER_NAMESPACE : database);
+    long generation = this.getGeneration(namespace);
+    T value = loader.load();
+    this.put(cacheKey, new Entry(database, namespace, value == null ? NULL : copy(value), databaseGeneration, generation, now + ttl));
+    return value;
+  }
+
+  /**
+   * Document / List / Set / Date 는 새로 만들고, 나머지( String, Number 등 )는 그대로 사용한다.
+   */
+  @SuppressWarnings("unchecked")
+  static Object copy(final Object value) {
+    if (value instanceof Document) {
+      Document copy = new Document();
+      for (Map.Entry<String, Object> entry : ((Document) value).entrySet()) {
+        copy.put(entry.getKey(), copy(entry.getValue()));
+      }
+      return copy;
+    }
+    if (value instanceof List) {
+      List<Object> list = (List<Object>) value;
+      List<Object> copy = new ArrayList<>(list.size());
+      for (Object element : list) {
+        copy.add(copy(element));
+      }
+      return copy;
+    }
+    if (value instanceof Set) {
+      Set<Object> copy = new HashSet<>();
+      for (Object element : (Set<Object>) value) {
+        copy.add(copy(element));
+      }
+      return copy;
+    }
+    if (value instanceof Date) return new Date(((Date) value).getTime());
+    return value;
+  }
+
+  /**
+   * 조회 종류와 조건 Document 로 key 를 만든다. ( null 조건은 빈 값 )
+   */
+  public static String key(final String operation, final Document... conditions) {
+    StringBuilder key = new StringBuilder(operation);
+    for (Document condition : conditions) {
+      key.append('\u0000');
+      if (condition != null) key.append(condition.toJson());
+    }
+    return key.toString();
+  }
+
+  /**
+   * collection 에 대한 cache 를 무효화한다. database 단위( collection 목록 ) cache 는 유지된다.
+   */
+  public void invalidate(final String database, final String collection) {
+    this.bump(getNamespace(database, collection));
+  }
+
+  /**
+   * database 전체( collection 목록, 각 collection )와 database 목록 cache 를 무효화한다. ( drop )
+   * insert 로 collection 이 새로 생기는 경우는 무효화하지 않으므로 collection 목록은 TTL 후에 반영된다.
+   */
+  public void invalidateDatabase(final String database) {
+    this.bump(database);
+    this.bump(CLUSTER_NAMESPACE);
+  }
+
+  public void clear() {
+    evictionLock.lock();
+    try {
+      entries.clear();
+      order.clear();
+    } finally {
+      evictionLock.unlock();
+    }
+  }
+
+  public long getHitCount() {
+    return hits.sum();
+  }
+
+  public long getMissCount() {
+    return misses.sum();
+  }
+
+  public double getHitRate() {
+    long hit = hits.sum();
+    long total = hit + misses.sum();
+    return total == 0 ? 0 : (double) hit / total;
+  }
+
+  public int size() {
+    return entries.size();
+  }
+
+  /**
+   * @return { size, hits, misses, hitRate, evictions, rejections, invalidations }
+   */
+  public Document snapshot() {
+    return new Document("size", this.size())
+        .append("hits", this.getHitCount())
+        .append("misses", this.getMissCount())
+        .append("hitRate", this.getHitRate())
+        .append("evictions", evictions.sum())
+        .append("rejections", rejections.sum())
+        .append("invalidations", invalidations.sum());
+  }
+
+  private boolean isValid(final Entry entry, final long now) {
+    return now - entry.expireNanos < 0
+        && entry.generation == this.getGeneration(entry.namespace)
+        && entry.databaseGeneration == this.getGeneration(entry.database == null ? CLUSTER_NAMESPACE : entry.database);
+  }
+
+  private void put(final String cacheKey, final Entry entry) {
+    evictionLock.lock();
+    try {
+      if (entries.containsKey(cacheKey)) {
+        entries.put(cacheKey, entry);
+        return;
+      }
+      if (entries.size() >= maximumSize && !this.evictFor(cacheKey)) {
+        rejections.increment();
+        return;
+      }
+      entries.put(cacheKey, entry);
+      order.offer(cacheKey);
+    } finally {
+      evictionLock.unlock();
+    }
+  }
+
+  /**
+   * 만료된 항목을 앞에서부터 제거하고, 그래도 가득 차 있으면 가장 오래된 항목과 빈도를 비교한다.
+   * @return candidate 를 넣을 자리가 있으면 true
+   */
+  private boolean evictFor(final String candidate) {
+    long now = System.nanoTime();
+    String victim;
+    while ((victim = order.peek()) != null) {
+      Entry entry = entries.get(victim);
+      if (entry == null || !this.isValid(entry, now)) {
+        order.poll();
+        entries.remove(victim);
+        if (entries.size() < maximumSize) return true;
+        continue;
+      }
+      if (sketch.frequency(candidate) <= sketch.frequency(victim)) return false;
+      order.poll();
+      entries.remove(victim);
+      evictions.increment();
+      return true;
+    }
+    return true;
+  }
+
+  private long getGeneration(final String namespace) {
+    AtomicLong generation = generations.get(namespace);
+    return generation == null ? 0 : generation.get();
+  }
+
+  private void bump(final String namespace) {
+    AtomicLong generation = generations.get(namespace);
+    if (generation == null) generation = generations.computeIfAbsent(namespace, k -> new AtomicLong());
+    generation.incrementAndGet();
+    invalidations.increment();
+  }
+
+  private long getTtlNanos(final String database, final String namespace) {
+    Long ttl = ttls.get(namespace);
+    if (ttl == null && database != null) ttl = ttls.get(database);
+    return ttl == null ? defaultTtlNanos : ttl;
+  }
+
+  private static String getNamespace(final String database, final String collection) {
+    if (database == null) return CLUSTER_NAMESPACE;
+    if (collection == null) return database;
+    return database + "." + collection;
+  }
+
+  /**
+   * 4 x width 의 count-min sketch. counter 는 15 에서 멈추며, sampleSize 만큼 증가하면 모든 counter 를 절반으로 줄여 오래된 빈도를 잊는다.
+   * 동시 증가 시 일부 누락될 수 있으나 admission 판단에는 근사값으로 충분하다.
+   */
+  static final class FrequencySketch {
+    private static final int DEPTH = 4;
+    private static final int MAX_COUNT = 15;
+    private static final int[] SEEDS = { 0x9E3779B9, 0x85EBCA6B, 0xC2B2AE35, 0x27D4EB2F };
+
+    private final byte[][] table;
+    private final int mask;
+    private final int sampleSize;
+    private final AtomicLong additions = new AtomicLong();
+    // reset 은 한 thread 만 수행하고, 이미 수행중이면 다른 thread 는 기다리지 않는다.
+    private final ReentrantLock resetLock = new ReentrantLock();
+
+    FrequencySketch(final int maximumSize) {
+      int width = Integer.highestOneBit(Math.max(16, maximumSize * 2) - 1) << 1;
+      this.table = new byte[DEPTH][width];
+      this.mask = width - 1;
+      this.sampleSize = 10 * maximumSize;
+    }
+
+    void increment(final Object key) {
+      int hash = spread(key.hashCode());
+      boolean added = false;
+      for (int i = 0; i < DEPTH; i++) {
+        int index = indexOf(hash, i);
+        if (table[i][index] < MAX_COUNT) {
+          table[i][index]++;
+          added = true;
+        }
+      }
+      if (added && additions.incrementAndGet() >= sampleSize) this.reset();
+    }
+
+    int frequency(final Object key) {
+      int hash = spread(key.hashCode());
+      int frequency = MAX_COUNT;
+      for (int i = 0; i < DEPTH; i++) {
+        frequency = Math.min(frequency, table[i][indexOf(hash, i)]);
+      }
+      return frequency;
+    }
+
+    private void reset() {
+      if (!resetLock.tryLock()) return;
+      try {
+        if (additions.get() < sampleSize) return;
+        for (byte[] row : table) {
+          for (int i = 0; i < row.length; i++) {
+            row[i] >>= 1;
+          }
+        }
+        additions.set(additions.get() / 2);
+      } finally {
+        resetLock.unlock();
+      }
+    }
+
+    private int indexOf(final int hash, final int row) {
+      int h = hash * SEEDS[row];
+      return (h ^ (h >>> 16)) & mask;
+    }
+
+    private static int spread(final int hash) {
+      int h = hash ^ (hash >>> 17);
+      return h * 0xED5AD4BB;
+    }
+  }
+}
@@ -0,0 +1,241 @@
+package com.ea.asiacentraltech.thoth.mongodb;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.bson.Document;
+
+import com.mongodb.MongoClientOptions;
+import com.mongodb.ReadPreference;
+import com.mongodb.ServerAddress;
+import com.mongodb.Tag;
+import com.mongodb.TagSet;
+import com.mongodb.connection.ClusterDescription;
+import com.mongodb.connection.ServerDescription;
+import com.mongodb.event.ClusterDescriptionChangedEvent;
+import com.mongodb.event.ClusterListenerAdapter;
+import com.mongodb.selector.ServerSelector;
+
+/**
+ * 읽기 routing. namespace / database 별 ReadPreference( maxStaleness, tag set 포함 )를 정하고,
+ * secondary 읽기는 round-trip 시간( driver 가 heartbeat 로 계산한 평균 )이 가장 빠른 member 들로만 보낸다.
+ * <pre>
+ * 우선순위 : 호출 시 지정한 ReadPreference &gt; database.collection &gt; database &gt; 기본값( secondaryPreferred )
+ * 예) 분석 traffic 을 dashboard 용 secondary 에서 분리
+ *   routing.route("analysis", MongoDBReadRouting.secondaryPreferred(120, MongoDBReadRouting.tags("use", "analytics")));
+ * </pre>
+ * apply 로 MongoClientOptions 에 등록해야 latency 기반 선택이 동작한다. ( MongoDB.connect 가 등록한다. )
+ * driver 는 이 선택 뒤에 localThreshold 범위를 한번 더 적용한다.
+ * mongos 로 접속한 경우( sharded cluster ) driver 가 보는 server 는 mongos 뿐이므로 latency 기반 선택은 동작하지 않는다.
+ * 이때 ReadPreference( tag set, maxStaleness )는 mongos 로 전달되어 shard 의 member 선택에 그대로 적용되지만,
+ * member 의 round-trip 시간은 mongos 가 판단하며 MongoDBHedgedReads 의 두번째 시도는 다른 member 가 아니라 다른 mongos 로 간다.
+ */
+public class MongoDBReadRouting extends ClusterListenerAdapter implements ServerSelector {
+  public static final long DEFAULT_LATENCY_WINDOW_MILLIS = 5;
+  private static final ThreadLocal<Selection> SELECTION = new ThreadLocal<>();
+
+  private final ConcurrentHashMap<String, ReadPreference> routes = new ConcurrentHashMap<>();
+  private volatile ClusterDescription cluster;
+  private volatile ReadPreference defaultPreference = ReadPreference.secondaryPreferred();
+  private volatile long latencyWindowNanos = TimeUnit.MILLISECONDS.toNanos(DEFAULT_LATENCY_WINDOW_MILLIS);
+
+  /**
+   * @param keyValues key, value, key, value ...
+   * @return
+   */
+  public static TagSet tags(final String... keyValues) {
+    List<Tag> tagList = new ArrayList<>(keyValues.length / 2);
+    for (int i = 0; i + 1 < keyValues.length; i += 2) {
+      tagList.add(new Tag(keyValues[i], keyValues[i + 1]));
+    }
+    return new TagSet(tagList);
+  }
+
+  /**
+   * @param maxStalenessSeconds 0 이하이면 제한하지 않는다. 그 외에는 90 초 이상이어야 한다.
+   * @param tagSets 순서대로 시도하며, 모두 맞는 member 가 없으면 primary 를 사용한다.
+   * @return
+   */
+  public static ReadPreference secondaryPreferred(final long maxStalenessSeconds, final TagSet... tagSets) {
+    if (maxStalenessSeconds <= 0) return ReadPreference.secondaryPreferred(Arrays.asList(tagSets));
+    return ReadPreference.secondaryPreferred(Arrays.asList(tagSets), maxStalenessSeconds, TimeUnit.SECONDS);
+  }
+
+  /**
+   * @param maxStalenessSeconds 0 이하이면 제한하지 않는다. 그 외에는 90 초 이상이어야 한다.
+   * @param tagSets 순서대로 시도하며, 모두 맞는 member 가 없으면 읽기가 실패한다.
+   * @return
+   */
+  public static ReadPreference secondary(final long maxStalenessSeconds, final TagSet... tagSets) {
+    if (maxStalenessSeconds <= 0) return ReadPreference.secondary(Arrays.asList(tagSets));
+    return ReadPreference.secondary(Arrays.asList(tagSets), maxStalenessSeconds, TimeUnit.SECONDS);
+  }
+
+  /**
+   * database 의 모든 collection 에 적용한다.
+   * @param readPreference null 이면 해제
+   */
+  public MongoDBReadRouting route(final String database, final ReadPreference readPreference) {
+    return this.route(database, null, readPreference);
+  }
+
+  /**
+   * @param collection null 이면 database 전체
+   * @param readPreference null 이면 해제
+   */
+  public MongoDBReadRouting route(final String database, final String collection, final ReadPreference readPreference) {
+    String key = collection == null ? database : database + "." + collection;
+    if (readPreference == null) {
+      routes.remove(key);
+    } else {
+      routes.put(key, readPreference);
+    }
+    return this;
+  }
+
+  public MongoDBReadRouting setDefault(final ReadPreference readPreference) {
+    this.defaultPreference = readPreference == null ? ReadPreference.secondaryPreferred() : readPreference;
+    return this;
+  }
+
+  /**
+   * 가장 빠른 secondary 보다 이 시간 이상 느린 secondary 에는 읽기를 보내지 않는다. 음수이면 사용하지 않는다.
+   */
+  public MongoDBReadRouting setLatencyWindow(final long window, final TimeUnit timeUnit) {
+    this.latencyWindowNanos = window < 0 ? -1 : timeUnit.toNanos(window);
+    return this;
+  }
+
+  /**
+   * @return database.collection, database, 기본값 순으로 찾은 ReadPreference
+   */
+  public ReadPreference resolve(final String database, final String collection) {
+    if (routes.isEmpty()) return defaultPreference;
+    ReadPreference readPreference = routes.get(database + "." + collection);
+    if (readPreference == null) readPreference = routes.get(database);
+    return readPreference == null ? defaultPreference : readPreference;
+  }
+
+  /**
+   * server selector 와 snapshot 을 위한 cluster listener 를 등록한다.
+   */
+  public MongoClientOptions apply(final MongoClientOptions options) {
+    return MongoClientOptions.builder(options).addClusterListener(this).serverSelector(this).build();
+  }
+
+  @Override
+  public void clusterDescriptionChanged(final ClusterDescriptionChangedEvent event) {
+    this.cluster = event.getNewDescription();
+  }
+
+  /**
+   * driver 가 ReadPreference 로 고른 member 들 중 round-trip 시간이 가장 빠른 secondary 로부터 window 안에 있는 것만 남긴다.
+   * primary 나 mongos 가 포함된 경우( 쓰기, primary / primaryPreferred / nearest, sharded cluster )는 그대로 둔다.
+   * 현재 thread 에 Selection 이 있으면 그 중 하나를 골라 기록한다.
+   */
+  @Override
+  public List<ServerDescription> select(final ClusterDescription clusterDescription) {
+    List<ServerDescription> eligible = clusterDescription.getServerDescriptions();
+    List<ServerDescription> servers = this.selectFastest(eligible);
+    Selection selection = SELECTION.get();
+    return selection == null ? servers : selection.pick(servers, eligible);
+  }
+
+  private List<ServerDescription> selectFastest(final List<ServerDescription> servers) {
+    long window = latencyWindowNanos;
+    if (servers.size() < 2 || window < 0) return servers;
+    long fastest = Long.MAX_VALUE;
+    for (ServerDescription server : servers) {
+      if (!server.isSecondary()) return servers;
+      fastest = Math.min(fastest, server.getRoundTripTimeNanos());
+    }
+    List<ServerDescription> result = new ArrayList<>(servers.size());
+    for (ServerDescription server : servers) {
+      if (server.getRoundTripTimeNanos() - fastest <= window) result.add(server);
+    }
+    return result;
+  }
+
+  /**
+   * @return driver 가 heartbeat 로 계산한 평균 round-trip 시간, 아직 모르면 -1
+   */
+  public long getRoundTripMicros(final ServerAddress address) {
+    ClusterDescription current = cluster;
+    ServerDescription server = current == null ? null : current.getByServerAddress(address);
+    return server == null || !server.isOk() ? -1 : server.getRoundTripTimeNanos() / 1000;
+  }
+
+  /**
+   * @return { routes : { namespace : readPreference }, members : { host:port : { type, rttMicros } } }
+   */
+  public Document snapshot() {
+    Document routeDoc = new Document();
+    for (Map.Entry<String, ReadPreference> route : new TreeMap<>(routes).entrySet()) {
+      routeDoc.append(route.getKey(), route.getValue().toString());
+    }
+    Document memberDoc = new Document();
+    ClusterDescription current = cluster;
+    if (current != null) {
+      for (ServerDescription server : current.getServerDescriptions()) {
+        memberDoc.append(server.getAddress().toString(),
+                         new Document("type", server.getType().name())
+                             .append("rttMicros", server.isOk() ? server.getRoundTripTimeNanos() / 1000 : -1));
+      }
+    }
+    return new Document("default", defaultPreference.toString()).append("routes", routeDoc).append("members", memberDoc);
+  }
+
+  /**
+   * 현재 thread 의 읽기를 보낼 member 를 driver 대신 하나로 정하고 기록한다. ( MongoDBHedgedReads )
+   * exclude 는 latency window 밖을 포함하여 다른 member 가 없을 때만 고른다.
+   */
+  static final class Selection {
+    private final ServerAddress exclude;
+    private volatile ServerAddress selected;
+
+    Selection(final ServerAddress exclude) {
+      this.exclude = exclude;
+    }
+
+    void begin() {
+      SELECTION.set(this);
+    }
+
+    void end() {
+      SELECTION.remove();
+    }
+
+    /**
+     * @return 고른 member, 아직 server selection 전이면 null
+     */
+    ServerAddress getSelected() {
+      return selected;
+    }
+
+    private List<ServerDescription> pick(final List<ServerDescription> servers, final List<ServerDescription> eligible) {
+      if (servers.isEmpty()) return servers;
+      List<ServerDescription> candidates = this.without(servers);
+      if (candidates.isEmpty()) candidates = this.without(eligible);
+      if (candidates.isEmpty()) candidates = servers;
+      ServerDescription server = candidates.get(ThreadLocalRandom.current().nextInt(candidates.size()));
+      selected = server.getAddress();
+      return Collections.singletonList(server);
+    }
+
+    private List<ServerDescription> without(final List<ServerDescription> servers) {
+      if (exclude == null) return servers;
+      List<ServerDescription> result = new ArrayList<>(servers.size());
+      for (ServerDescription server : servers) {
+        if (!exclude.equals(server.getAddress())) result.add(server);
+      }
+      return result;
+    }
+  }
+}
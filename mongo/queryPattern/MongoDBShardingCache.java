@@ -0,0 +1,174 @@
+package com.ea.asiacentraltech.thoth.mongodb;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.bson.BsonValue;
+import org.bson.Document;
+
+import com.mongodb.MongoException;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoCursor;
+import com.mongodb.client.model.changestream.ChangeStreamDocument;
+import com.mongodb.client.model.changestream.FullDocument;
+
+/**
+ * cluster 별로 Process 전체가 공유하는 collection sharding 상태 cache.
+ * (database, collection) 단위로 collectionSharding 처리가 끝난 namespace를 기억하여,
+ * Pool의 모든 MongoDB가 meta.logdbs 를 반복해서 조회하지 않도록 한다.
+ * meta.logdbs 의 change stream 을 구독하여 다른 Node에서 상태가 바뀌거나 삭제되면 해당 namespace를 제거한다.
+ * change stream 을 지원하지 않는 환경(standalone)에서는 같은 Process의 drop 에 의해서만 제거된다.
+ */
+public class MongoDBShardingCache {
+  private static final ConcurrentHashMap<String, MongoDBShardingCache> CLUSTERS = new ConcurrentHashMap<>();
+
+  // "db.collection" -> meta.logdbs _id ( db + collection )
+  private final ConcurrentHashMap<String, String> namespaces = new ConcurrentHashMap<>();
+  private final AtomicBoolean watching = new AtomicBoolean(false);
+  private final MongoDBChangeSignal changes = new MongoDBChangeSignal();
+  private final String clusterKey;
+
+  private MongoDBShardingCache(final String clusterKey) {
+    this.clusterKey = clusterKey;
+  }
+
+  /**
+   * 접속 주소 목록이 같은 cluster는 같은 cache를 사용한다.
+   * @param clusterKey MongoDB.getClusterKey
+   * @return
+   */
+  public static MongoDBShardingCache of(final String clusterKey) {
+    return CLUSTERS.computeIfAbsent(clusterKey, MongoDBShardingCache::new);
+  }
+
+  public boolean contains(final String dbName, final String collName) {
+    return namespaces.containsKey(getKey(dbName, collName));
+  }
+
+  public void put(final String dbName, final String collName) {
+    namespaces.put(getKey(dbName, collName), dbName + collName);
+  }
+
+  public void invalidate(final String dbName, final String collName) {
+    namespaces.remove(getKey(dbName, collName));
+  }
+
+  public void invalidateDatabase(final String dbName) {
+    String prefix = dbName + ".";
+    namespaces.keySet().removeIf(key -> key.startsWith(prefix));
+  }
+
+  public void clear() {
+    namespaces.clear();
+  }
+
+  /**
+   * meta.logdbs 변경 generation. awaitChange 전에 읽어둔다.
+   */
+  public long generation() {
+    return changes.generation();
+  }
+
+  /**
+   * generation 이후 meta.logdbs 에 변경이 생기거나 timeout 이 지날 때까지 대기한다.
+   * @return 변경 알림을 받았으면 true
+   * @throws InterruptedException
+   */
+  public boolean awaitChange(final long generation, final long timeoutMillis) throws InterruptedException {
+    return changes.await(generation, timeoutMillis);
+  }
+
+  /**
+   * meta.logdbs change stream 구독을 시작한다. 이미 구독중이면 아무것도 하지 않는다.
+   * 구독이 끊어지면 놓친 변경이 있을 수 있으므로 cache를 비우고, 다음 호출에서 다시 구독한다.
+   * @param logdbs meta.logdbs collection
+   * @param logger
+   */
+  public void watch(final MongoCollection<Document> logdbs, final Logger logger) {
+    if (!watching.compareAndSet(false, true)) return;
+    final MongoCursor<ChangeStreamDocument<Document>> cursor;
+    try {
+      cursor = logdbs.watch().fullDocument(FullDocument.UPDATE_LOOKUP).iterator();
+    } catch (MongoException e) {
+      // change stream 미지원 : watching 을 true로 유지하여 재시도하지 않는다.
+      if (logger != null)
+        logger.log(Level.INFO, "sharding cache change stream disabled {0} : {1}", new Object[] { clusterKey, e.getMessage() });
+      return;
+    }
+    Thread thread = new Thread(() -> {
+      try {
+        while (cursor.hasNext()) {
+          this.onChange(cursor.next());
+        }
+      } catch (RuntimeException e) {
+        if (logger != null)
+          logger.log(Level.FINE, "sharding cache change stream closed {0} : {1}", new Object[] { clusterKey, e.getMessage() });
+      } finally {
+        try {
+          cursor.close();
+        } catch (RuntimeException e) {
+          // ignore
+        }
+        this.clear();
+        watching.set(false);
+        changes.signal();
+      }
+    }, "mongodb-sharding-cache");
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  private void onChange(final ChangeStreamDocument<Document> change) {
+    this.invalidate(change);
+    changes.signal();
+  }
+
+  private void invalidate(final ChangeStreamDocument<Document> change) {
+    if (change.getOperationType() == null) {
+      this.clear();
+      return;
+    }
+    switch (change.getOperationType()) {
+      case INSERT:
+      case UPDATE:
+      case REPLACE:
+        Document doc = change.getFullDocument();
+        if (doc == null) {
+          this.invalidateByID(change);
+        } else if (doc.get(ConstantMongodb.KEY_META_LOGDBS_STATUS) == null
+            || ((Number) doc.get(ConstantMongodb.KEY_META_LOGDBS_STATUS)).intValue() != ConstantMongodb.STATUS_COLLECTION_DONE) {
+          this.invalidate(doc.getString(ConstantMongodb.KEY_META_LOGDBS_DATABASE),
+                          doc.getString(ConstantMongodb.KEY_META_LOGDBS_COLLECTION));
+        }
+        break;
+      case DELETE:
+        this.invalidateByID(change);
+        break;
+      default:
+        this.clear();
+        break;
+    }
+  }
+
+  /**
+   * meta.logdbs 의 _id ( db + collection ) 로 제거한다. _id 만으로는 db와 collection을 나눌 수 없으므로 값을 비교한다.
+   */
+  private void invalidateByID(final ChangeStreamDocument<Document> change) {
+    BsonValue id = change.getDocumentKey() == null ? null : change.getDocumentKey().get(ConstantMongodb.ID);
+    if (id == null || !id.isString()) {
+      this.clear();
+      return;
+    }
+    String shardingID = id.asString().getValue();
+    for (Map.Entry<String, String> entry : namespaces.entrySet()) {
+      if (entry.getValue().equals(shardingID)) namespaces.remove(entry.getKey(), shardingID);
+    }
+  }
+
+  private static String getKey(final String dbName, final String collName) {
+    return dbName + "." + collName;
+  }
+}
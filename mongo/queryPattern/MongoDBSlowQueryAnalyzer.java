@@ -0,0 +1,464 @@
+package com.ea.asiacentraltech.thoth.mongodb;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.bson.Document;
+
+import com.ea.asiacentraltech.thoth.common.Constant;
+import com.mongodb.ReadPreference;
+import com.mongodb.client.model.UpdateOneModel;
+import com.mongodb.client.model.UpdateOptions;
+import com.mongodb.client.model.WriteModel;
+
+/**
+ * mongod slow query log ( 4.4 이전 text 형식 ) 를 분석하여 pattern 별 건수 / 수행시간을 저장한다.
+ * 파일을 line 경계에 맞춘 chunk 로 나누어 memory-mapped 로 읽고, parallelism 개의 thread 가 chunk 를 하나씩 가져가 parsing 한다.
+ * line 은 String 으로 만들지 않고 MongoDBSlowQueryPattern 으로 분류하며, pattern 별 합계는 flushSize 개가 모일 때마다
+ * $inc / $max upsert 로 batchSize 개씩 bulkWrite 한다. 따라서 파일 크기와 관계없이 사용하는 heap 은 일정하다.
+ * 분석한 위치는 collection + MARKER_COLLECTION_SUFFIX 에 파일( 첫 줄의 sha1 )별로 기록하며, 다시 분석하면 그 뒤에 추가된 줄만 더한다.
+ * 마지막 줄바꿈 뒤의 쓰는 중인 줄은 다음 분석으로 넘긴다. 첫 줄이 다르면( rotate ) 다른 파일로 본다.
+ * 분석 중에 실패하면 위치는 기록되지 않으므로, 이미 저장된 일부가 다시 분석할 때 한번 더 더해질 수 있다.
+ * 같은 파일을 동시에 분석하지 않는다.
+ * <pre>
+ * 2019-01-01T12:00:00.123+0900 I COMMAND  [conn1] command db.coll command: find { find: "coll", filter: { ... } } ... 123ms
+ * </pre>
+ */
+public class MongoDBSlowQueryAnalyzer {
+  public static final long DEFAULT_CHUNK_SIZE = 64L * 1024 * 1024;
+  public static final int DEFAULT_FLUSH_SIZE = 10000;
+  public static final int DEFAULT_BATCH_SIZE = 1000;
+
+  public static final String KEY_DATABASE = "database";
+  public static final String KEY_CMD_TYPE = "cmdType";
+  public static final String KEY_COMMAND = "command";
+  public static final String KEY_TARGET = "target";
+  public static final String KEY_QUERY = "query";
+  public static final String KEY_COUNT = "count";
+  public static final String KEY_TOTAL_MILLIS = "totalMillis";
+  public static final String KEY_MAX_MILLIS = "maxMillis";
+
+  public static final String MARKER_COLLECTION_SUFFIX = "_files";
+  public static final String KEY_FILE = "file";
+  public static final String KEY_OFFSET = "offset";
+
+  private static final int DATE_LENGTH = 10;
+  private static final int BOUNDARY_SCAN_SIZE = 8192;
+  private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+  private final MongoDBPool pool;
+  private final String database;
+  private final String collection;
+  private int parallelism = Runtime.getRuntime().availableProcessors();
+  private long chunkSize = DEFAULT_CHUNK_SIZE;
+  private int flushSize = DEFAULT_FLUSH_SIZE;
+  private int batchSize = DEFAULT_BATCH_SIZE;
+
+  /**
+   * @param pool
+   * @param database 결과를 저장할 database
+   * @param collection 결과를 저장할 collection
+   */
+  public MongoDBSlowQueryAnalyzer(final MongoDBPool pool, final String database, final String collection) {
+    this.pool = pool;
+    this.database = database;
+    this.collection = collection;
+  }
+
+  /**
+   * 동시에 parsing 할 thread 수
+   */
+  public MongoDBSlowQueryAnalyzer parallelism(final int parallelism) {
+    this.parallelism = Math.max(1, parallelism);
+    return this;
+  }
+
+  /**
+   * 한번에 mmap 할 크기. 실제 chunk 는 다음 줄바꿈까지 늘어난다.
+   */
+  public MongoDBSlowQueryAnalyzer chunkSize(final long chunkSize) {
+    this.chunkSize = Math.max(BOUNDARY_SCAN_SIZE, Math.min(Integer.MAX_VALUE / 2, chunkSize));
+    return this;
+  }
+
+  /**
+   * 메모리에 모아둘 최대 pattern 수. 넘으면 저장 후 비운다.
+   */
+  public MongoDBSlowQueryAnalyzer flushSize(final int flushSize) {
+    this.flushSize = Math.max(1, flushSize);
+    return this;
+  }
+
+  /**
+   * bulkWrite 한번에 보낼 upsert 수
+   */
+  public MongoDBSlowQueryAnalyzer batchSize(final int batchSize) {
+    this.batchSize = Math.max(1, batchSize);
+    return this;
+  }
+
+  /**
+   * log 파일에서 지난번 분석한 위치 이후를 분석하여 저장한다.
+   * @param file mongod log
+   * @return { lines, slowLines, matched, ignored, upserts, offset, bytes, elapsedMillis } ( offset 부터 bytes 만큼 분석 )
+   * @throws Exception
+   */
+  public Document analyze(final Path file) throws Exception {
+    long begin = System.nanoTime();
+    Run run = new Run();
+    String source;
+    long offset = 0;
+    long end = 0;
+    try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+      source = this.sourceOf(channel);
+      if (source != null) {
+        offset = this.loadOffset(source);
+        end = lastLineEnd(channel, offset);
+      }
+      List<long[]> chunks = this.split(channel, offset, end);
+      int threads = Math.min(parallelism, Math.max(1, chunks.size()));
+      AtomicInteger next = new AtomicInteger();
+      ExecutorService executor = Executors.newFixedThreadPool(threads, this.threadFactory());
+      try {
+        List<Future<?>> futures = new ArrayList<>(threads);
+        for (int i = 0; i < threads; i++) {
+          futures.add(executor.submit(() -> {
+            int index;
+            while ((index = next.getAndIncrement()) < chunks.size()) {
+              long[] chunk = chunks.get(index);
+              this.parse(channel.map(FileChannel.MapMode.READ_ONLY, chunk[0], chunk[1] - chunk[0]), run);
+            }
+            return null;
+          }));
+        }
+        for (Future<?> future : futures) {
+          future.get();
+        }
+      } catch (ExecutionException e) {
+        if (e.getCause() instanceof Exception) throw (Exception) e.getCause();
+        throw e;
+      } finally {
+        executor.shutdownNow();
+      }
+      run.bytes = end - offset;
+    }
+    this.flush(run.drain());
+    if (end > offset) this.saveOffset(source, file, end);
+    return new Document("lines", run.lines.get())
+        .append("slowLines", run.slowLines.get())
+        .append("matched", run.matched.get())
+        .append("ignored", run.ignored.get())
+        .append("upserts", run.upserts.get())
+        .append(KEY_OFFSET, offset)
+        .append("bytes", run.bytes)
+        .append("elapsedMillis", (System.nanoTime() - begin) / 1_000_000L);
+  }
+
+  /**
+   * 파일의 첫 줄( 없으면 처음 BOUNDARY_SCAN_SIZE byte )의 sha1
+   * @return 첫 줄이 아직 끝나지 않았으면 null
+   */
+  private String sourceOf(final FileChannel channel) throws IOException {
+    ByteBuffer head = ByteBuffer.allocate(BOUNDARY_SCAN_SIZE);
+    while (head.hasRemaining() && channel.read(head, head.position()) > 0) {
+      // 끝까지 또는 BOUNDARY_SCAN_SIZE 만큼 읽는다.
+    }
+    int length = 0;
+    while (length < head.position() && head.get(length) != '\n') length++;
+    if (length < head.position()) {
+      length++;
+    } else if (head.hasRemaining()) {
+      return null;
+    }
+    MessageDigest sha1 = sha1();
+    sha1.update(head.array(), 0, length);
+    return hex(sha1.digest());
+  }
+
+  private long loadOffset(final String source) throws Exception {
+    Document marker = pool.findOne(database, collection + MARKER_COLLECTION_SUFFIX, new Document(ConstantMongodb.ID, source),
+                                   new Document(KEY_OFFSET, 1), null, ReadPreference.primary());
+    Object offset = marker == null ? null : marker.get(KEY_OFFSET);
+    return offset instanceof Number ? ((Number) offset).longValue() : 0;
+  }
+
+  private void saveOffset(final String source, final Path file, final long offset) throws Exception {
+    pool.updateOne(database, collection + MARKER_COLLECTION_SUFFIX, new Document(ConstantMongodb.ID, source),
+                   new Document("$set", new Document(KEY_FILE, file.toString())).append("$max", new Document(KEY_OFFSET, offset)),
+                   new UpdateOptions().upsert(true));
+  }
+
+  /**
+   * from 이후 마지막 줄바꿈의 다음 위치. 없으면 from
+   */
+  private static long lastLineEnd(final FileChannel channel, final long from) throws IOException {
+    ByteBuffer scan = ByteBuffer.allocate(BOUNDARY_SCAN_SIZE);
+    long end = channel.size();
+    while (end > from) {
+      long start = Math.max(from, end - BOUNDARY_SCAN_SIZE);
+      scan.clear();
+      scan.limit((int) (end - start));
+      int read = 0;
+      while (scan.hasRemaining()) {
+        int n = channel.read(scan, start + read);
+        if (n <= 0) break;
+        read += n;
+      }
+      for (int i = read - 1; i >= 0; i--) {
+        if (scan.get(i) == '\n') return start + i + 1;
+      }
+      end = start;
+    }
+    return from;
+  }
+
+  /**
+   * [from, size) 를 chunkSize 마다 다음 줄바꿈 뒤를 경계로 하는 [start, end) 목록
+   */
+  private List<long[]> split(final FileChannel channel, final long from, final long size) throws IOException {
+    List<long[]> chunks = new ArrayList<>();
+    ByteBuffer scan = ByteBuffer.allocate(BOUNDARY_SCAN_SIZE);
+    long start = from;
+    while (start < size) {
+      long end = Math.min(size, start + chunkSize);
+      while (end < size) {
+        scan.clear();
+        int read = channel.read(scan, end);
+        if (read <= 0) {
+          end = size;
+          break;
+        }
+        int i = 0;
+        while (i < read && scan.get(i) != '\n') i++;
+        end += i;
+        if (i < read) {
+          end++;
+          break;
+        }
+      }
+      chunks.add(new long[] { start, end });
+      start = end;
+    }
+    return chunks;
+  }
+
+  private void parse(final MappedByteBuffer buffer, final Run run) throws Exception {
+    Map<String, Stats> local = new HashMap<>();
+    ByteCharSequence line = new ByteCharSequence(buffer, 0, 0);
+    ByteCharSequence msg = new ByteCharSequence(buffer, 0, 0);
+    int limit = buffer.limit();
+    int start = 0;
+    long lines = 0;
+    long slowLines = 0;
+    long matched = 0;
+    long ignored = 0;
+    while (start < limit) {
+      int end = start;
+      while (end < limit && buffer.get(end) != '\n') end++;
+      int next = end + 1;
+      if (end > start && buffer.get(end - 1) == '\r') end--;
+      lines++;
+      int lineStart = start;
+      line.reset(lineStart, end - lineStart);
+      start = next;
+
+      int millisStart = durationStart(line);
+      if (millisStart < 0) continue;
+      long millis = parseLong(line, millisStart, line.length() - 2);
+      // timestamp severity component [context] cmdType namespace ...
+      int context = line.indexOf('[', 0);
+      int contextEnd = context < 0 ? -1 : line.indexOf("] ", context);
+      if (contextEnd < DATE_LENGTH) continue;
+      int cmdTypeStart = contextEnd + 2;
+      int cmdTypeEnd = line.indexOf(' ', cmdTypeStart);
+      if (cmdTypeEnd < 0) continue;
+      int nsEnd = line.indexOf(' ', cmdTypeEnd + 1);
+      if (nsEnd < 0 || nsEnd > millisStart) continue;
+      int dot = line.indexOf('.', cmdTypeEnd + 1);
+      if (dot < 0 || dot > nsEnd) dot = nsEnd;
+      slowLines++;
+
+      String cmdType = line.decode(cmdTypeStart, cmdTypeEnd);
+      String db = line.decode(cmdTypeEnd + 1, dot);
+      msg.reset(lineStart + nsEnd, millisStart - nsEnd);
+      MongoDBSlowQueryPattern.Match match = MongoDBSlowQueryPattern.match(cmdType, db, msg);
+      if (match == null) {
+        ignored++;
+        continue;
+      }
+      if (!match.getCommand().isEmpty()) matched++;
+      String date = line.decode(0, DATE_LENGTH);
+      String key = date + '\0' + db + '\0' + cmdType + '\0' + match.getCommand() + '\0'
+                   + match.getTarget() + '\0' + match.getQuery();
+      Stats stats = local.get(key);
+      if (stats == null) {
+        stats = new Stats(date, db, cmdType, match);
+        local.put(key, stats);
+      }
+      stats.add(1, millis, millis);
+      if (local.size() >= flushSize) {
+        this.merge(local, run);
+        local = new HashMap<>();
+      }
+    }
+    this.merge(local, run);
+    run.lines.addAndGet(lines);
+    run.slowLines.addAndGet(slowLines);
+    run.matched.addAndGet(matched);
+    run.ignored.addAndGet(ignored);
+  }
+
+  private void merge(final Map<String, Stats> local, final Run run) throws Exception {
+    Map<String, Stats> full = run.merge(local);
+    if (full != null) this.flush(full);
+  }
+
+  private void flush(final Map<String, Stats> stats) throws Exception {
+    if (stats.isEmpty()) return;
+    MessageDigest sha1 = sha1();
+    UpdateOptions upsert = new UpdateOptions().upsert(true);
+    List<WriteModel<Document>> models = new ArrayList<>(Math.min(batchSize, stats.size()));
+    for (Map.Entry<String, Stats> entry : stats.entrySet()) {
+      Stats s = entry.getValue();
+      Document filter = new Document(ConstantMongodb.ID, hex(sha1.digest(entry.getKey().getBytes(StandardCharsets.UTF_8))));
+      Document update = new Document("$setOnInsert", new Document(Constant.DATE, s.date)
+                                                         .append(KEY_DATABASE, s.db)
+                                                         .append(KEY_CMD_TYPE, s.cmdType)
+                                                         .append(KEY_COMMAND, s.command)
+                                                         .append(KEY_TARGET, s.target)
+                                                         .append(KEY_QUERY, s.query))
+          .append("$inc", new Document(KEY_COUNT, s.count).append(KEY_TOTAL_MILLIS, s.totalMillis))
+          .append("$max", new Document(KEY_MAX_MILLIS, s.maxMillis));
+      models.add(new UpdateOneModel<>(filter, update, upsert));
+      if (models.size() >= batchSize) {
+        pool.bulkWrite(database, collection, models);
+        models.clear();
+      }
+    }
+    if (!models.isEmpty()) pool.bulkWrite(database, collection, models);
+  }
+
+  /**
+   * line 이 " 123ms" 로 끝나면 숫자의 시작 위치, 아니면 -1
+   */
+  private static int durationStart(final CharSequence line) {
+    int length = line.length();
+    if (length < 4 || line.charAt(length - 1) != 's' || line.charAt(length - 2) != 'm') return -1;
+    int i = length - 2;
+    while (i > 0 && Character.isDigit(line.charAt(i - 1))) i--;
+    if (i == length - 2 || i == 0 || line.charAt(i - 1) != ' ') return -1;
+    return i;
+  }
+
+  private static long parseLong(final CharSequence s, final int start, final int end) {
+    long value = 0;
+    for (int i = start; i < end; i++) {
+      value = value * 10 + (s.charAt(i) - '0');
+    }
+    return value;
+  }
+
+  private static MessageDigest sha1() {
+    try {
+      return MessageDigest.getInstance("SHA-1");
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  private static String hex(final byte[] bytes) {
+    char[] chars = new char[bytes.length * 2];
+    for (int i = 0; i < bytes.length; i++) {
+      chars[i * 2] = HEX[(bytes[i] >> 4) & 0xf];
+      chars[i * 2 + 1] = HEX[bytes[i] & 0xf];
+    }
+    return new String(chars);
+  }
+
+  private ThreadFactory threadFactory() {
+    AtomicInteger count = new AtomicInteger();
+    return r -> {
+      Thread thread = new Thread(r, "mongodb-slowquery-" + count.incrementAndGet());
+      thread.setDaemon(true);
+      return thread;
+    };
+  }
+
+  /**
+   * analyze 한번의 진행 상태. chunk 별 합계를 모아 flushSize 가 되면 넘겨준다.
+   */
+  private class Run {
+    private final AtomicLong lines = new AtomicLong();
+    private final AtomicLong slowLines = new AtomicLong();
+    private final AtomicLong matched = new AtomicLong();
+    private final AtomicLong ignored = new AtomicLong();
+    private final AtomicLong upserts = new AtomicLong();
+    private Map<String, Stats> merged = new HashMap<>();
+    private long bytes;
+
+    /**
+     * @return flushSize 에 도달하면 저장할 Map, 아니면 null
+     */
+    synchronized Map<String, Stats> merge(final Map<String, Stats> local) {
+      for (Map.Entry<String, Stats> entry : local.entrySet()) {
+        Stats s = entry.getValue();
+        Stats stats = merged.putIfAbsent(entry.getKey(), s);
+        if (stats != null) stats.add(s.count, s.totalMillis, s.maxMillis);
+      }
+      if (merged.size() < flushSize) return null;
+      return this.drain();
+    }
+
+    synchronized Map<String, Stats> drain() {
+      Map<String, Stats> full = merged;
+      upserts.addAndGet(full.size());
+      merged = new HashMap<>();
+      return full;
+    }
+  }
+
+  private static class Stats {
+    private final String date;
+    private final String db;
+    private final String cmdType;
+    private final String command;
+    private final String target;
+    private final String query;
+    private long count;
+    private long totalMillis;
+    private long maxMillis;
+
+    Stats(final String date, final String db, final String cmdType, final MongoDBSlowQueryPattern.Match match) {
+      this.date = date;
+      this.db = db;
+      this.cmdType = cmdType;
+      this.command = match.getCommand();
+      this.target = match.getTarget();
+      this.query = match.getQuery();
+    }
+
+    void add(final long count, final long totalMillis, final long maxMillis) {
+      this.count += count;
+      this.totalMillis += totalMillis;
+      this.maxMillis = Math.max(this.maxMillis, maxMillis);
+    }
+  }
+}
@@ -0,0 +1,305 @@
+package com.ea.asiacentraltech.thoth.mongodb;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * mongod slow query log 의 command 분류와 query 정규화. ( slowQueryPattern.ts 의 PATTERNS / IGNORE_PATTERNS / VALUE_PATTERNS )
+ * 모든 rule 은 " keyword:" 로 시작하므로 msg 를 한번 훑어 " word:" 를 모두 찾고,
+ * 해당 keyword 를 가진 rule 만 PATTERNS 순서대로 원래의 정규식으로 확인한다. ( 보통 1 ~ 2 개 )
+ */
+public final class MongoDBSlowQueryPattern {
+  private static final Rule[] RULES = {
+    new Rule("insert", "insert", "\\sinsert:\\s\".*\",", 0, "insert: ", null, null),
+    new Rule("update", "update", "\\supdate:\\s\".*\",", 0, "update: ", "q: ", null),
+    new Rule("transactionStatusUpdate", "_id", "\\s_id:\\sObjectId.'[a-f\\d]{24}'.,\\sstate:\\s\"pending\"", 0, null, null, null),
+    new Rule("transactionInvokeDoc", "planSummary",
+             "\\splanSummary:\\sIXSCAN\\s.\\s_id:\\s1\\s.\\supdate:\\s.\\s.set:\\s.\\st:\\sObjectId", 0, "findandmodify: ", null, null),
+    new Rule("transactionUpdate", "_id",
+             "\\s_id:\\sObjectId.'[a-f\\d]{24}'.,\\st:\\sObjectId.'[a-f\\d]{24}'.*\\supdate:\\s.*\\s.set:.*\\sObjectId", 0, null, null, null),
+    new Rule("transactionPushHistory(common)", "planSummary",
+             "\\splanSummary:\\sIDHACK\\supdate:\\s.\\s.push:\\s.\\shistories:\\s", 0, null, null, null),
+    new Rule("transactionDateUpdate", "_id", "\\s_id:\\sObjectId.'[a-f\\d]{24}'.\\s.\\splanSummary:\\sIDHACK\\supdate:\\s", 0, null, null, null),
+    new Rule("checkViewedItems", "_id",
+             "\\s_id:\\s.\\s.in:\\s.\\sObjectId.'[a-f\\d]{24}'.*,\\saccountid:\\sObjectId.'[a-f\\d]{24}'.*\\supdate:\\s.\\s.set:\\s.\\sis_new",
+             0, null, null, null),
+    new Rule("checkMyOrdersNew", "aid",
+             "\\said:\\sObjectId.'[a-f\\d]{24}'.,\\s_id:\\s.\\s.in:\\s.\\sObjectId.'[a-f\\d]{24}'.*.\\supdate:\\s.\\s.set:\\s.\\sis_new",
+             0, null, null, null),
+    new Rule("getMore", "getMore", "\\sgetMore:\\s\\d", 0, "collection: ", null, null),
+    new Rule("find", "find", "\\sfind:\\s\".*\",", 0, "find: ", "filter: ", "sort: "),
+    new Rule("findAndModify", "findandmodify", "\\sfindandmodify:\\s*\".*\",", Pattern.CASE_INSENSITIVE, "findAndModify: ", "query: ", null),
+    new Rule("delete", "delete", "\\sdelete:\\s\".*\",", 0, "delete: ", "q: ", null),
+    new Rule("aggregate", "aggregate", "\\saggregate:\\s\".*\",", 0, "aggregate: ", "pipeline: ", null),
+    new Rule("count", "count", "\\scount:\\s\".*\",", 0, "count: \"", "query: ", null),
+    new Rule("distinct", "distinct", "\\sdistinct:\\s\".*\",", 0, "distinct: ", "query: ", null),
+    new Rule("create", "create", "\\screate:\\s*\".*\",", Pattern.CASE_INSENSITIVE, "create: ", null, null),
+    new Rule("drop", "drop", "\\sdrop:\\s*\".*\",", Pattern.CASE_INSENSITIVE, "drop: ", null, null),
+    new Rule("createIndex", "createIndexes", "\\screateIndexes:\\s*\".*\",", Pattern.CASE_INSENSITIVE, "createIndexes: ", null, null),
+    new Rule("dropUser", "dropUser", "\\sdropUser:\\s*\".*\"", Pattern.CASE_INSENSITIVE, "dropUser: ", null, null),
+    new Rule("moveChunk", "moveChunk", "\\smoveChunk:\\s\".*\",", 0, "moveChunk: ", null, null),
+    new Rule("moveChunkConfig", "_configsvrMoveChunk", "\\s_configsvrMoveChunk:\\s\\d,", 0, "ns: ", null, null),
+    new Rule("collStats", "collStats", "\\scollStats:\\s\".*\"", 0, "collStats: \"", null, null),
+    new Rule("listCollections", "listCollections", "\\slistCollections:\\s\\d", 0, null, null, null),
+    new Rule("serverStatus", "serverStatus", "\\sserverStatus:\\s\\d", 0, null, null, null),
+  };
+
+  private static final String[] IGNORE_KEYWORDS = { "fsyncUnlock", "fsync", "applyOps" };
+  private static final Pattern[] IGNORE_PATTERNS = {
+    Pattern.compile("\\sfsyncUnlock:\\s\\d"),
+    Pattern.compile("\\sfsync:\\s\\d"),
+    Pattern.compile("\\sapplyOps:\\s"),
+  };
+
+  // slowQueryPattern.ts 의 VALUE_PATTERNS. (\W|\w|\s)* 와 (\d|\.)* 는 같은 의미의 문자 class 로 바꾸었다.
+  private static final Pattern[] VALUE_PATTERNS = {
+    Pattern.compile("ObjectId.'[a-f\\d]{24}'.", Pattern.CASE_INSENSITIVE),
+    Pattern.compile("new\\sDate.[\\d]{13}.", Pattern.CASE_INSENSITIVE),
+    Pattern.compile("\\sTimestamp\\s+\\d*.\\|+\\d{1,}", Pattern.CASE_INSENSITIVE),
+    Pattern.compile("\\s.in:\\s\\[.*\\]", Pattern.CASE_INSENSITIVE),
+    Pattern.compile(":\\s\"[a-f\\d]{24}\"", Pattern.CASE_INSENSITIVE),
+    Pattern.compile(":\\s[\\d.]*[\\s,]", Pattern.CASE_INSENSITIVE),
+    Pattern.compile(":\\s\"[\\s\\S]*\"", Pattern.CASE_INSENSITIVE),
+    Pattern.compile("/[a-f\\d]{24}/", Pattern.CASE_INSENSITIVE),
+  };
+  private static final String[] VALUE_REPLACEMENTS = {
+    "\"ObjectId\"",
+    "\"Date\"",
+    " \"Timestamp\"",
+    " $in: []",
+    ": \"oid\"",
+    ": 0, ",
+    ": \"-\", ",
+    "\"oid\"",
+  };
+
+  private static final long IGNORE_MASK;
+  // 길이 별 keyword( 소문자 )와 해당 keyword 로 시작하는 rule 의 bit mask
+  private static final String[][] KEYWORDS;
+  private static final long[][] KEYWORD_MASKS;
+
+  static {
+    List<List<String>> keywords = new ArrayList<>();
+    List<List<Long>> masks = new ArrayList<>();
+    for (int i = 0; i < RULES.length; i++) {
+      addKeyword(keywords, masks, RULES[i].keyword, 1L << i);
+    }
+    long ignoreMask = 0;
+    for (int i = 0; i < IGNORE_KEYWORDS.length; i++) {
+      long bit = 1L << (RULES.length + i);
+      addKeyword(keywords, masks, IGNORE_KEYWORDS[i], bit);
+      ignoreMask |= bit;
+    }
+    IGNORE_MASK = ignoreMask;
+    KEYWORDS = new String[keywords.size()][];
+    KEYWORD_MASKS = new long[keywords.size()][];
+    for (int length = 0; length < keywords.size(); length++) {
+      KEYWORDS[length] = keywords.get(length).toArray(new String[0]);
+      KEYWORD_MASKS[length] = new long[masks.get(length).size()];
+      for (int i = 0; i < KEYWORD_MASKS[length].length; i++) {
+        KEYWORD_MASKS[length][i] = masks.get(length).get(i);
+      }
+    }
+  }
+
+  private MongoDBSlowQueryPattern() {
+  }
+
+  /**
+   * 분류 결과. command 가 "" 이면 해당하는 rule 이 없다.
+   */
+  public static final class Match {
+    private final String command;
+    private final String target;
+    private final String query;
+
+    Match(final String command, final String target, final String query) {
+      this.command = command;
+      this.target = target;
+      this.query = query;
+    }
+
+    public String getCommand() {
+      return command;
+    }
+
+    public String getTarget() {
+      return target;
+    }
+
+    public String getQuery() {
+      return query;
+    }
+  }
+
+  private static final Match UNKNOWN = new Match("", "", "");
+
+  /**
+   * slowQueryPattern.ts getPattern
+   * @param cmdType log 의 command 종류 ( command, query, update, remove ... )
+   * @param db
+   * @param msg namespace 뒤의 log 내용
+   * @return 무시할 log( fsync, applyOps ) 이면 null
+   */
+  public static Match match(final String cmdType, final String db, final CharSequence msg) {
+    long candidates = scanKeywords(msg);
+    if ((candidates & IGNORE_MASK) != 0) {
+      for (int i = 0; i < IGNORE_PATTERNS.length; i++) {
+        if ((candidates & (1L << (RULES.length + i))) != 0 && IGNORE_PATTERNS[i].matcher(msg).find()) return null;
+      }
+    }
+    if (cmdType == null || "remove".equals(cmdType) || "admin".equals(db) || "local".equals(db)) return UNKNOWN;
+    for (int i = 0; i < RULES.length; i++) {
+      if ((candidates & (1L << i)) == 0) continue;
+      Rule rule = RULES[i];
+      if (!rule.pattern.matcher(msg).find()) continue;
+      return new Match(rule.command, getTarget(msg, rule.target), getQuery(msg, rule));
+    }
+    return UNKNOWN;
+  }
+
+  /**
+   * VALUE_PATTERNS 를 순서대로 적용하여 값을 제거한다.
+   */
+  public static String normalize(final String query) {
+    String result = query;
+    for (int i = 0; i < VALUE_PATTERNS.length; i++) {
+      Matcher matcher = VALUE_PATTERNS[i].matcher(result);
+      if (matcher.find()) result = matcher.replaceAll(Matcher.quoteReplacement(VALUE_REPLACEMENTS[i]));
+    }
+    return result;
+  }
+
+  /**
+   * msg 에서 공백 뒤의 "word:" 를 모두 찾아 해당 keyword 의 rule bit 를 모은다.
+   */
+  static long scanKeywords(final CharSequence msg) {
+    long mask = 0;
+    int length = msg.length();
+    int i = 0;
+    while (i < length) {
+      if (!isWhitespace(msg.charAt(i))) {
+        i++;
+        continue;
+      }
+      int start = i + 1;
+      int end = start;
+      while (end < length && isWordChar(msg.charAt(end))) end++;
+      if (end > start && end < length && msg.charAt(end) == ':') mask |= lookup(msg, start, end);
+      i = Math.max(end, start);
+    }
+    return mask;
+  }
+
+  private static long lookup(final CharSequence msg, final int start, final int end) {
+    int length = end - start;
+    if (length >= KEYWORDS.length) return 0;
+    String[] keywords = KEYWORDS[length];
+    for (int k = 0; k < keywords.length; k++) {
+      String keyword = keywords[k];
+      int i = 0;
+      while (i < length && Character.toLowerCase(msg.charAt(start + i)) == keyword.charAt(i)) i++;
+      if (i == length) return KEYWORD_MASKS[length][k];
+    }
+    return 0;
+  }
+
+  /**
+   * key 다음의 "..." 값
+   */
+  private static String getTarget(final CharSequence msg, final String key) {
+    if (key == null) return "";
+    int index = indexOf(msg, key, 0);
+    if (index < 0) return "";
+    int start = index + key.length();
+    if (key.charAt(key.length() - 1) != '"') {
+      if (start >= msg.length() || msg.charAt(start) != '"') return "";
+      start++;
+    }
+    int end = indexOf(msg, "\"", start);
+    if (end < 0) return "";
+    return slice(msg, start, end);
+  }
+
+  private static String getQuery(final CharSequence msg, final Rule rule) {
+    if (rule.query == null) return "";
+    String query = extractObject(msg, indexOf(msg, rule.query, 0));
+    String sort = rule.sort == null ? "" : extractObject(msg, indexOf(msg, rule.sort, 0));
+    return normalize(query + sort);
+  }
+
+  /**
+   * from 이후 첫번째 { 부터 짝이 맞는 } 까지. 없으면 ""
+   */
+  static String extractObject(final CharSequence msg, final int from) {
+    if (from < 0) return "";
+    int start = indexOf(msg, "{", from);
+    if (start < 0) return "";
+    int depth = 0;
+    for (int i = start; i < msg.length(); i++) {
+      char c = msg.charAt(i);
+      if (c == '{') {
+        depth++;
+      } else if (c == '}' && --depth == 0) {
+        return slice(msg, start, i + 1);
+      }
+    }
+    return "";
+  }
+
+  private static int indexOf(final CharSequence msg, final String s, final int from) {
+    if (msg instanceof ByteCharSequence) return ((ByteCharSequence) msg).indexOf(s, from);
+    return msg.toString().indexOf(s, from);
+  }
+
+  private static String slice(final CharSequence msg, final int start, final int end) {
+    if (msg instanceof ByteCharSequence) return ((ByteCharSequence) msg).decode(start, end);
+    return msg.subSequence(start, end).toString();
+  }
+
+  private static boolean isWhitespace(final char c) {
+    return c == ' ' || c == '\t' || c == '\n' || c == '\r' || c == '\f' || c == '\u000B';
+  }
+
+  private static boolean isWordChar(final char c) {
+    return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9') || c == '_' || c == '$';
+  }
+
+  private static void addKeyword(final List<List<String>> keywords, final List<List<Long>> masks,
+                                 final String keyword, final long bit) {
+    String lower = keyword.toLowerCase();
+    while (keywords.size() <= lower.length()) {
+      keywords.add(new ArrayList<>());
+      masks.add(new ArrayList<>());
+    }
+    List<String> sameLength = keywords.get(lower.length());
+    int index = sameLength.indexOf(lower);
+    if (index < 0) {
+      sameLength.add(lower);
+      masks.get(lower.length()).add(bit);
+    } else {
+      masks.get(lower.length()).set(index, masks.get(lower.length()).get(index) | bit);
+    }
+  }
+
+  private static final class Rule {
+    final String command;
+    final String keyword;
+    final Pattern pattern;
+    final String target;
+    final String query;
+    final String sort;
+
+    Rule(final String command, final String keyword, final String regexp, final int flags,
+         final String target, final String query, final String sort) {
+      this.command = command;
+      this.keyword = keyword;
+      this.pattern = Pattern.compile(regexp, flags);
+      this.target = target;
+      this.query = query;
+      this.sort = sort;
+    }
+  }
+}
@@ -0,0 +1,231 @@
+package com.ea.asiacentraltech.thoth.mongodb;
+
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.bson.Document;
+
+import com.mongodb.bulk.BulkWriteResult;
+import com.mongodb.client.model.UpdateOptions;
+import com.mongodb.client.model.WriteModel;
+
+/**
+ * virtual thread 에서 MongoDBPool 을 사용하기 위한 facade.
+ * 요청마다 virtual thread 하나를 쓰면 동시 호출이 수만개가 되므로, Pool 에 들어가기 전에 fair Semaphore 로 입장을 제한한다.
+ * 대기는 Semaphore( AbstractQueuedSynchronizer ) 에서만 일어나며 monitor 를 사용하지 않으므로 carrier thread 를 붙잡지 않는다.
+ * permit 수를 Pool 의 maxTotal 이하로 두면 입장한 호출은 GenericObjectPool.borrowObject 에서 기다리지 않는다.
+ * 대기는 도착 순서대로 처리되며, 대기시간이 borrowTimeout 을 넘으면 NoSuchElementException 이 발생한다. ( GenericObjectPool 과 같음 )
+ * <pre>
+ * MongoDBVirtualPool vpool = new MongoDBVirtualPool(pool);
+ * try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+ *   executor.submit(() -&gt; vpool.findOne("db", "coll", query, null));
+ * }
+ * </pre>
+ * 여러 Object 를 빌리는 fan-out( String[] databases ), cursor / stream, hedged read 는 permit 하나로 제한되지 않으므로
+ * call 로 감싸더라도 Pool 에서 대기할 수 있다.
+ */
+public class MongoDBVirtualPool {
+  public static final long DEFAULT_BORROW_TIMEOUT_MILLIS = 30_000L;
+  public static final int DEFAULT_PERMITS = 64;
+
+  private final MongoDBPool pool;
+  private final Semaphore permits;
+  private final int maxPermits;
+  private volatile long borrowTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(DEFAULT_BORROW_TIMEOUT_MILLIS);
+  private final LatencyHistogram admissionWait = new LatencyHistogram();
+  private final LongAdder timeouts = new LongAdder();
+
+  /**
+   * MongoDBPool 을 사용하는 작업
+   */
+  public interface PoolCall<T> {
+    T call(MongoDBPool pool) throws Exception;
+  }
+
+  /**
+   * 빌린 MongoDB 를 사용하는 작업
+   */
+  public interface MongoDBCall<T> {
+    T call(MongoDB mongoDB) throws Exception;
+  }
+
+  /**
+   * permit 수는 Pool 의 maxTotal ( 제한이 없으면 DEFAULT_PERMITS )
+   */
+  public MongoDBVirtualPool(final MongoDBPool pool) {
+    this(pool, pool.getMaxTotal() > 0 ? pool.getMaxTotal() : DEFAULT_PERMITS);
+  }
+
+  /**
+   * @param pool
+   * @param permits 동시에 Pool 을 사용할 수 있는 호출 수
+   */
+  public MongoDBVirtualPool(final MongoDBPool pool, final int permits) {
+    if (permits < 1) throw new IllegalArgumentException("permits must be positive : " + permits);
+    this.pool = pool;
+    this.maxPermits = permits;
+    this.permits = new Semaphore(permits, true);
+  }
+
+  /**
+   * @param timeout permit 을 기다리는 최대 시간. 0 이면 기다리지 않는다.
+   */
+  public MongoDBVirtualPool setBorrowTimeout(final long timeout, final TimeUnit timeUnit) {
+    this.borrowTimeoutNanos = Math.max(0, timeUnit.toNanos(timeout));
+    return this;
+  }
+
+  public MongoDBPool getPool() {
+    return pool;
+  }
+
+  /**
+   * permit 을 얻은 뒤 MongoDBPool 의 API 를 호출한다.
+   * @throws NoSuchElementException borrowTimeout 안에 permit 을 얻지 못한 경우
+   */
+  public <T> T call(final PoolCall<T> call) throws Exception {
+    return this.call(borrowTimeoutNanos, TimeUnit.NANOSECONDS, call);
+  }
+
+  /**
+   * @param timeout 이 호출의 permit 대기 최대 시간
+   */
+  public <T> T call(final long timeout, final TimeUnit timeUnit, final PoolCall<T> call) throws Exception {
+    this.acquire(timeUnit.toNanos(timeout));
+    try {
+      return call.call(pool);
+    } finally {
+      permits.release();
+    }
+  }
+
+  /**
+   * permit 을 얻고 MongoDB 를 빌려 작업한 뒤 반환한다. permit 대기와 borrow 를 합쳐 borrowTimeout 을 넘지 않는다.
+   */
+  public <T> T execute(final MongoDBCall<T> call) throws Exception {
+    return this.execute(borrowTimeoutNanos, TimeUnit.NANOSECONDS, call);
+  }
+
+  public <T> T execute(final long timeout, final TimeUnit timeUnit, final MongoDBCall<T> call) throws Exception {
+    long timeoutNanos = timeUnit.toNanos(timeout);
+    long waited = this.acquire(timeoutNanos);
+    MongoDB mongoDB = null;
+    try {
+      // permit 대기는 admissionWait 에 기록되므로 borrowWait 는 acquire 이후부터 잰다.
+      long start = System.nanoTime();
+      long remaining = Math.max(0, timeoutNanos - waited);
+      mongoDB = pool.borrowObject(Math.max(1, TimeUnit.NANOSECONDS.toMillis(remaining)));
+      pool.getMetrics().recordBorrow(start);
+      return call.call(mongoDB);
+    } finally {
+      if (mongoDB != null) pool.returnObject(mongoDB);
+      permits.release();
+    }
+  }
+
+  public Document findOne(final String database,
+                          final String collection,
+                          final Document query,
+                          final Document fields) throws Exception {
+    return this.call(p -> p.findOne(database, collection, query, fields));
+  }
+
+  public Document findOne(final String database,
+                          final String collection,
+                          final Document query,
+                          final Document fields,
+                          final Document sort) throws Exception {
+    return this.call(p -> p.findOne(database, collection, query, fields, sort));
+  }
+
+  public List<Document> find(final String database,
+                             final String collection,
+                             final Document query,
+                             final Document fields,
+                             final Document sort,
+                             final int limit) throws Exception {
+    return this.call(p -> p.find(database, collection, query, fields, sort, limit));
+  }
+
+  public void insertOne(final String database,
+                        final String collection,
+                        final Document doc) throws Exception {
+    this.call(p -> {
+      p.insertOne(database, collection, doc);
+      return null;
+    });
+  }
+
+  public void updateOne(final String database,
+                        final String collection,
+                        final Document filter,
+                        final Document update,
+                        final UpdateOptions options) throws Exception {
+    this.call(p -> {
+      p.updateOne(database, collection, filter, update, options);
+      return null;
+    });
+  }
+
+  public void deleteOne(final String database,
+                        final String collection,
+                        final Document query) throws Exception {
+    this.call(p -> {
+      p.deleteOne(database, collection, query);
+      return null;
+    });
+  }
+
+  public BulkWriteResult bulkWrite(final String database,
+                                   final String collection,
+                                   final List<? extends WriteModel<? extends Document>> models) throws Exception {
+    return this.call(p -> p.bulkWrite(database, collection, models));
+  }
+
+  public Document command(final String database, final Document command) throws Exception {
+    return this.call(p -> p.command(database, command));
+  }
+
+  /**
+   * @return permit 대기 중인 호출 수 ( 추정치 )
+   */
+  public int getQueueLength() {
+    return permits.getQueueLength();
+  }
+
+  public int getActive() {
+    return maxPermits - permits.availablePermits();
+  }
+
+  public LatencyHistogram getAdmissionWait() {
+    return admissionWait;
+  }
+
+  /**
+   * @return { permits, active, waiting, timeouts, admissionWait : {...} }
+   */
+  public Document snapshot() {
+    return new Document("permits", maxPermits).append("active", this.getActive())
+                                              .append("waiting", this.getQueueLength())
+                                              .append("timeouts", timeouts.sum())
+                                              .append("admissionWait", admissionWait.toDocument());
+  }
+
+  /**
+   * @return permit 을 기다린 시간 (ns)
+   */
+  private long acquire(final long timeoutNanos) throws InterruptedException {
+    long start = System.nanoTime();
+    boolean acquired = permits.tryAcquire(timeoutNanos, TimeUnit.NANOSECONDS);
+    long waited = System.nanoTime() - start;
+    admissionWait.recordNanos(waited);
+    if (!acquired) {
+      timeouts.increment();
+      throw new NoSuchElementException("Timeout waiting for MongoDB permit");
+    }
+    return waited;
+  }
+}
@@ -1,29 +1,71 @@
 package com.ea.asiacentraltech.thoth.mongodb;
 
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.logging.Logger;
 import org.apache.commons.pool2.BasePooledObjectFactory;
 import org.apache.commons.pool2.PooledObject;
 import org.apache.commons.pool2.impl.DefaultPooledObject;
 
 public class MongoManger extends BasePooledObjectFactory<MongoDB> {
+  public static final long DEFAULT_VALIDATION_INTERVAL_MILLIS = 30_000L;
+
   private final Logger logger;
   private final String mongoHosts;
   private final String mongoId;
   private final String mongoPwd;
+  private final boolean sharedClient;
+  private final MongoDBClientProfile clientProfile;
+  private final ReentrantLock sharedLock = new ReentrantLock();
+  private volatile MongoDB sharedMongoDB;
+  private volatile long validationIntervalMillis = DEFAULT_VALIDATION_INTERVAL_MILLIS;
+  private volatile MongoDBReadCache readCache;
+  private final MongoDBReadRouting readRouting = new MongoDBReadRouting();
+  private final Set<String> summaryCollections = ConcurrentHashMap.newKeySet();
 
   public MongoManger(Logger logger, String host, String id, String pwd) {
+    this(logger, host, id, pwd, false);
+  }
+
+  /**
+   * @param sharedClient true 이면 cluster 당 하나의 MongoClient를 만들고,
+   *                     Pool에는 이를 공유하는 가벼운 MongoDB Handle을 넘긴다.
+   */
+  public MongoManger(Logger logger, String host, String id, String pwd, boolean sharedClient) {
+    this(logger, host, id, pwd, sharedClient, MongoDBClientProfile.defaults());
+  }
+
+  /**
+   * @param sharedClient
+   * @param clientProfile MongoClient 설정 ( MongoDBClientProfile.ingest(), dashboard(), batch() ... )
+   */
+  public MongoManger(Logger logger, String host, String id, String pwd, boolean sharedClient,
+                     MongoDBClientProfile clientProfile) {
     this.logger = logger;
     this.mongoHosts = host;
     this.mongoId = id;
     this.mongoPwd = pwd;
+    this.sharedClient = sharedClient;
+    this.clientProfile = clientProfile == null ? MongoDBClientProfile.defaults() : clientProfile;
+  }
+
+  public MongoDBClientProfile getClientProfile() {
+    return clientProfile;
+  }
+
+  /**
+   * 이 factory 가 만드는 모든 MongoDB 가 공유하는 읽기 routing
+   */
+  public MongoDBReadRouting getReadRouting() {
+    return readRouting;
   }
 
   @Override
   public MongoDB create() throws Exception {
-    MongoDB mongoDB = new MongoDB();
-    mongoDB.bindLogger(logger);
-    mongoDB.auth(mongoId, mongoPwd);
-    mongoDB.multiConn(mongoHosts);
+    MongoDB mongoDB = sharedClient ? this.getSharedMongoDB().newHandle() : this.connect();
+    mongoDB.setReadCache(readCache);
+    mongoDB.setAnalysisSummaryCollections(summaryCollections);
     return mongoDB;
   }
 
@@ -32,6 +74,60 @@ public class MongoManger extends BasePooledObjectFactory<MongoDB> {
     return new DefaultPooledObject<>(mongoDB);
   }
 
+  /**
+   * borrow 시점에 호출된다. 마지막 확인 후 validationIntervalMillis 가 지난 경우에만 ping 하며,
+   * 실패하면 재접속한다. ( 재접속도 실패하면 Exception 이 발생하고 Pool은 해당 Object를 폐기한다. )
+   */
+  @Override
+  public void activateObject(PooledObject<MongoDB> p) throws Exception {
+    MongoDB mongoDB = p.getObject();
+    mongoDB.setReadCache(readCache);
+    if (mongoDB.getValidatedAgeMillis() < validationIntervalMillis)
+      return;
+    mongoDB.keepAlive();
+  }
+
+  /**
+   * Pool의 evictor( testWhileIdle ) 가 idle Object에 대해 호출한다.
+   * false 이면 Pool이 폐기하고 필요할 때 새로 만든다.
+   */
+  @Override
+  public boolean validateObject(PooledObject<MongoDB> p) {
+    return p.getObject().ping();
+  }
+
+  /**
+   * borrow 시 ping 을 생략하는 시간. 0 이면 매번 확인한다.
+   * @param millis
+   */
+  public void setValidationIntervalMillis(long millis) {
+    this.validationIntervalMillis = millis;
+  }
+
+  /**
+   * 이후 create / borrow 되는 MongoDB 에 read cache 를 연결한다. null 이면 해제한다.
+   * @param readCache
+   */
+  public void setReadCache(MongoDBReadCache readCache) {
+    this.readCache = readCache;
+  }
+
+  /**
+   * 이 factory 가 만든 모든 MongoDB 에서 collName 의 Summary 를 Summary Document 에서 읽는다. ( MongoDB.enableAnalysisSummary )
+   * @param collName
+   */
+  public void enableAnalysisSummary(String collName) {
+    summaryCollections.add(collName);
+    MongoDBReadCache cache = readCache;
+    if (cache != null) cache.invalidate(ConstantMongodb.DATABASE_ANALYSIS, collName);
+  }
+
+  public void disableAnalysisSummary(String collName) {
+    summaryCollections.remove(collName);
+    MongoDBReadCache cache = readCache;
+    if (cache != null) cache.invalidate(ConstantMongodb.DATABASE_ANALYSIS, collName);
+  }
+
   @Override
   public void destroyObject(PooledObject<MongoDB> p) throws Exception {
     try {
@@ -40,4 +136,46 @@ public class MongoManger extends BasePooledObjectFactory<MongoDB> {
       super.destroyObject(p);
     }
   }
+
+  /**
+   * 공유 MongoClient를 닫는다.
+   * Pool이 close 될 때 호출된다.
+   */
+  public void close() {
+    sharedLock.lock();
+    try {
+      if (sharedMongoDB != null) {
+        sharedMongoDB.close();
+        sharedMongoDB = null;
+      }
+    } finally {
+      sharedLock.unlock();
+    }
+  }
+
+  /**
+   * 접속 중 대기하는 thread 가 virtual thread 이면 monitor 대신 lock 을 사용해야 carrier thread 를 붙잡지 않는다.
+   */
+  private MongoDB getSharedMongoDB() {
+    MongoDB mongoDB = sharedMongoDB;
+    if (mongoDB != null) return mongoDB;
+    sharedLock.lock();
+    try {
+      if (sharedMongoDB == null) {
+        sharedMongoDB = this.connect();
+      }
+      return sharedMongoDB;
+    } finally {
+      sharedLock.unlock();
+    }
+  }
+
+  private MongoDB connect() {
+    MongoDB mongoDB = new MongoDB();
+    mongoDB.bindLogger(logger);
+    mongoDB.auth(mongoId, mongoPwd);
+    mongoDB.setReadRouting(readRouting);
+    mongoDB.multiConn(mongoHosts, clientProfile);
+    return mongoDB;
+  }
 }
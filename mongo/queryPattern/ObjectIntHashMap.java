@@ -0,0 +1,153 @@
+package com.ea.asiacentraltech.thoth.mongodb;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * value 가 int 인 open addressing ( linear probing ) hash map.
+ * Map<K, Integer> 와 달리 Entry 와 Integer boxing 이 없으므로 집계 경로에서 사용한다.
+ * null key 는 허용하지 않으며, Thread-safe 하지 않다.
+ */
+public class ObjectIntHashMap<K> {
+  private static final int DEFAULT_CAPACITY = 16;
+
+  /**
+   * forEach 용 callback
+   */
+  public interface Consumer<K> {
+    void accept(K key, int value);
+  }
+
+  private Object[] keys;
+  private int[] values;
+  private int size;
+  private int mask;
+  private int threshold;
+
+  public ObjectIntHashMap() {
+    this(DEFAULT_CAPACITY);
+  }
+
+  /**
+   * @param expectedSize resize 없이 담을 수 있는 key 수
+   */
+  public ObjectIntHashMap(final int expectedSize) {
+    this.allocate(tableSizeFor(expectedSize));
+  }
+
+  public int size() {
+    return size;
+  }
+
+  public boolean isEmpty() {
+    return size == 0;
+  }
+
+  /**
+   * @return 이전 값, 없었으면 defaultValue
+   */
+  public int put(final K key, final int value, final int defaultValue) {
+    int index = this.indexOf(key);
+    if (keys[index] != null) {
+      int old = values[index];
+      values[index] = value;
+      return old;
+    }
+    keys[index] = key;
+    values[index] = value;
+    if (++size > threshold) this.resize();
+    return defaultValue;
+  }
+
+  public void put(final K key, final int value) {
+    this.put(key, value, 0);
+  }
+
+  /**
+   * key 의 값에 delta 를 더한다. 없으면 delta 로 추가한다.
+   * @return 더한 뒤의 값
+   */
+  public int add(final K key, final int delta) {
+    int index = this.indexOf(key);
+    if (keys[index] != null) return values[index] += delta;
+    keys[index] = key;
+    values[index] = delta;
+    if (++size > threshold) this.resize();
+    return delta;
+  }
+
+  public int getOrDefault(final Object key, final int defaultValue) {
+    int index = this.indexOf(key);
+    return keys[index] == null ? defaultValue : values[index];
+  }
+
+  public boolean containsKey(final Object key) {
+    return keys[this.indexOf(key)] != null;
+  }
+
+  public void clear() {
+    Arrays.fill(keys, null);
+    size = 0;
+  }
+
+  @SuppressWarnings("unchecked")
+  public void forEach(final Consumer<? super K> consumer) {
+    for (int i = 0; i < keys.length; i++) {
+      if (keys[i] != null) consumer.accept((K) keys[i], values[i]);
+    }
+  }
+
+  /**
+   * java.util.Map 이 필요한 기존 API 용 변환
+   */
+  public Map<K, Integer> toMap() {
+    Map<K, Integer> result = new HashMap<>(Math.max(DEFAULT_CAPACITY, (int) (size / 0.75f) + 1));
+    this.forEach(result::put);
+    return result;
+  }
+
+  /**
+   * key 가 있는 slot 또는 key 를 넣을 빈 slot 의 index
+   */
+  private int indexOf(final Object key) {
+    int h = key.hashCode() * 0x9E3779B9;
+    int index = (h ^ (h >>> 16)) & mask;
+    Object current;
+    while ((current = keys[index]) != null && !current.equals(key)) {
+      index = (index + 1) & mask;
+    }
+    return index;
+  }
+
+  private void resize() {
+    Object[] oldKeys = keys;
+    int[] oldValues = values;
+    this.allocate(oldKeys.length << 1);
+    for (int i = 0; i < oldKeys.length; i++) {
+      if (oldKeys[i] != null) {
+        int index = this.indexOf(oldKeys[i]);
+        keys[index] = oldKeys[i];
+        values[index] = oldValues[i];
+      }
+    }
+  }
+
+  private void allocate(final int capacity) {
+    keys = new Object[capacity];
+    values = new int[capacity];
+    mask = capacity - 1;
+    threshold = capacity / 2;
+  }
+
+  /**
+   * load factor 0.5 기준으로 expectedSize 를 담을 수 있는 2의 거듭제곱
+   */
+  private static int tableSizeFor(final int expectedSize) {
+    int capacity = DEFAULT_CAPACITY;
+    while (capacity / 2 < expectedSize) {
+      capacity <<= 1;
+    }
+    return capacity;
+  }
+}
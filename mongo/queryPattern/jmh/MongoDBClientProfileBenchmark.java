@@ -0,0 +1,143 @@
+package com.ea.asiacentraltech.thoth.mongodb;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Logger;
+
+import org.bson.Document;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * MongoDBClientProfile 별 MongoDBPool 처리량 benchmark. 실행 중인 mongod / mongos 가 필요하다.
+ * -Dmongodb.hosts=mongodb://host:port ( 기본값 localhost:27017 ), -Dmongodb.id / -Dmongodb.pwd
+ * insertBatch 는 INGEST 형태의 1000 건 bulkWrite, findPage 는 DASHBOARD 형태의 20 건 조회, scan 은 BATCH 형태의 전체 조회이다.
+ * JMH 는 CPU 사용량을 측정하지 않으므로 trial 마다 process CPU 시간 / 호출 수를 출력한다. ( cpuMicrosPerOp )
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Threads(8)
+@Fork(1)
+public class MongoDBClientProfileBenchmark {
+  private static final String DATABASE = "jmh_profile";
+  private static final String COLLECTION = "docs";
+  private static final int INSERT_BATCH = 1000;
+  private static final int SCAN_DOCUMENTS = 20000;
+
+  @Param({ MongoDBClientProfile.DEFAULT, MongoDBClientProfile.INGEST, MongoDBClientProfile.DASHBOARD, MongoDBClientProfile.BATCH })
+  public String profile;
+
+  private MongoDBPool pool;
+  private List<Document> batch;
+  private long cpuStart;
+  private final LongAdder calls = new LongAdder();
+
+  @Setup(Level.Trial)
+  public void setup() throws Exception {
+    MongoManger factory = new MongoManger(Logger.getLogger(MongoDBClientProfileBenchmark.class.getName()),
+                                          System.getProperty("mongodb.hosts", "mongodb://localhost:27017"),
+                                          System.getProperty("mongodb.id"),
+                                          System.getProperty("mongodb.pwd"),
+                                          true,
+                                          MongoDBClientProfile.named(profile));
+    pool = new MongoDBPool(factory);
+    pool.setMaxTotal(16);
+    batch = new ArrayList<>(INSERT_BATCH);
+    StringBuilder payload = new StringBuilder();
+    for (int i = 0; i < 64; i++) {
+      payload.append("log line ").append(i).append(' ');
+    }
+    for (int i = 0; i < INSERT_BATCH; i++) {
+      batch.add(new Document("n", i).append("type", i % 10).append("message", payload.toString()));
+    }
+    MongoDB mongoDB = pool.borrowObject();
+    try {
+      mongoDB.getCollectionPrimary(DATABASE, COLLECTION).drop();
+      for (int i = 0; i < SCAN_DOCUMENTS / INSERT_BATCH; i++) {
+        mongoDB.getCollectionPrimary(DATABASE, COLLECTION).insertMany(copy(batch));
+      }
+    } finally {
+      pool.returnObject(mongoDB);
+    }
+    cpuStart = processCpuNanos();
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() throws Exception {
+    long cpu = processCpuNanos() - cpuStart;
+    long count = Math.max(1, calls.sum());
+    System.out.println("profile=" + profile + " cpuMicrosPerOp=" + (cpu / 1000 / count));
+    MongoDB mongoDB = pool.borrowObject();
+    try {
+      mongoDB.getCollectionPrimary(DATABASE, COLLECTION).drop();
+    } finally {
+      pool.returnObject(mongoDB);
+    }
+    pool.close();
+  }
+
+  @Benchmark
+  public Object insertBatch() throws Exception {
+    calls.increment();
+    MongoDB mongoDB = pool.borrowObject();
+    try {
+      mongoDB.getCollectionPrimary(DATABASE, COLLECTION).insertMany(copy(batch));
+      return mongoDB;
+    } finally {
+      pool.returnObject(mongoDB);
+    }
+  }
+
+  @Benchmark
+  public List<Document> findPage() throws Exception {
+    calls.increment();
+    return pool.find(DATABASE, COLLECTION, new Document("type", 3), null, new Document("n", 1), 20);
+  }
+
+  @Benchmark
+  public long scan() throws Exception {
+    calls.increment();
+    long count = 0;
+    try (MongoDBCursor cursor = pool.cursor(DATABASE, COLLECTION, new Document(), null, null, 0)) {
+      while (cursor.hasNext()) {
+        cursor.next();
+        count++;
+      }
+    }
+    return count;
+  }
+
+  private static List<Document> copy(final List<Document> docs) {
+    List<Document> result = new ArrayList<>(docs.size());
+    for (Document doc : docs) {
+      result.add(new Document(doc));
+    }
+    return result;
+  }
+
+  private static long processCpuNanos() {
+    java.lang.management.OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+    if (os instanceof com.sun.management.OperatingSystemMXBean) {
+      return ((com.sun.management.OperatingSystemMXBean) os).getProcessCpuTime();
+    }
+    return 0;
+  }
+}
@@ -0,0 +1,273 @@
+package com.ea.asiacentraltech.thoth.mongodb;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.bson.BsonBinaryWriter;
+import org.bson.Document;
+import org.bson.RawBsonDocument;
+import org.bson.codecs.DocumentCodec;
+import org.bson.codecs.EncoderContext;
+import org.bson.io.BasicOutputBuffer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * MongoDB Document helper 의 JMH benchmark.
+ * depth x width 의 중첩 Document( chart 집계 결과와 같은 int leaf 구조 )를 fixture 로 사용한다.
+ * leaf 수는 width^depth 이므로 조합을 나열하며, MAX_LEAVES 를 넘는 조합은 setup 에서 거부한다.
+ * docInsert 경로는 key 치환( MongoDBKeySanitizer )과 DocumentCodec encode 를 측정한다.
+ * queryShape* 는 MongoDBPoolMetrics 가 sample 된 호출마다 수행하는 query shape fingerprint / top-K 기록 비용이며,
+ * metricsRecord* 는 MongoDBPoolMetrics.record( query, sort 포함 ) 한번의 비용을 shape 기록 꺼짐 / 1% sample / 모두 기록으로 비교한다.
+ * raw* 는 RawBsonDocument 에서 field 하나를 읽는 비용이며, decode* ( Document 전체 decode 후 조회 )와 비교한다.
+ * legacy* 는 MongoDBDocumentFlattener 이전의 구현( getKeyList 후 key 마다 split / root 부터 재조회 )으로 비교 기준이다.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MongoDBDocumentBenchmark {
+  private static final EncoderContext COLLECTIBLE = EncoderContext.builder().isEncodingCollectibleDocument(true).build();
+  // doc, illegalDoc, raw 를 함께 만들므로 leaf 수를 제한한다.
+  private static final long MAX_LEAVES = 1L << 16;
+
+  /**
+   * depth x width
+   */
+  @Param({ "2x4", "2x16", "4x4", "4x16", "6x4" })
+  public String shape;
+
+  private int depth;
+  private int width;
+
+  private MongoDB mongoDB;
+  private DocumentCodec codec;
+  private Document doc;
+  private Document illegalDoc;
+  private String deepestKey;
+  private String[] numerics;
+  private MongoDBQueryShapes shapes;
+  private MongoDBPoolMetrics metrics;
+  private MongoDBPoolMetrics sampledMetrics;
+  private MongoDBPoolMetrics shapeMetrics;
+  private Document sort;
+  private RawBsonDocument raw;
+
+  @Setup
+  public void setup() {
+    String[] pair = shape.split("x");
+    depth = Integer.parseInt(pair[0]);
+    width = Integer.parseInt(pair[1]);
+    if (Math.pow(width, depth) > MAX_LEAVES)
+      throw new IllegalArgumentException("shape " + shape + " exceeds " + MAX_LEAVES + " leaves");
+    mongoDB = new MongoDB();
+    codec = new DocumentCodec();
+    doc = makeDocument(depth, width, "k", false);
+    illegalDoc = makeDocument(depth, width, "k", true);
+    StringBuilder key = new StringBuilder("k0");
+    for (int i = 1; i < depth; i++) {
+      key.append(".k0");
+    }
+    deepestKey = key.toString();
+    numerics = new String[] { "12345", "-0.25", "+7", "1e5", "abc", "2019-01-01", "", "3.14159" };
+    shapes = new MongoDBQueryShapes();
+    // record 경로는 pool 을 사용하지 않는다.
+    metrics = new MongoDBPoolMetrics(null);
+    sampledMetrics = new MongoDBPoolMetrics(null);
+    sampledMetrics.setQueryShapeSampleRate(100);
+    shapeMetrics = new MongoDBPoolMetrics(null);
+    shapeMetrics.setQueryShapeSampleRate(1);
+    sort = new Document("k0", -1).append("_id", 1);
+    raw = new RawBsonDocument(doc, codec);
+  }
+
+  @Benchmark
+  public Set<String> getKeyList() {
+    return mongoDB.getKeyList(doc);
+  }
+
+  @Benchmark
+  public Object getDepthValue() {
+    return mongoDB.getDepthValue(doc, depth);
+  }
+
+  @Benchmark
+  public ObjectIntHashMap<String> depthValues() {
+    return MongoDBDocumentFlattener.depthValues(doc, depth);
+  }
+
+  @Benchmark
+  public long queryShapeFingerprint() {
+    return MongoDBQueryShape.fingerprint(MongoDBPoolMetrics.Operation.FIND, "db", "coll", doc, sort);
+  }
+
+  @Benchmark
+  public void queryShapesRecord() {
+    shapes.record(MongoDBPoolMetrics.Operation.FIND, "db", "coll", doc, sort, 1_500_000L);
+  }
+
+  @Benchmark
+  public long metricsRecord() {
+    return metrics.record(MongoDBPoolMetrics.Operation.FIND, "db", "coll", System.nanoTime() - 1_500_000L, doc, sort);
+  }
+
+  @Benchmark
+  public long metricsRecordSampled() {
+    return sampledMetrics.record(MongoDBPoolMetrics.Operation.FIND, "db", "coll", System.nanoTime() - 1_500_000L, doc, sort);
+  }
+
+  @Benchmark
+  public long metricsRecordShapes() {
+    return shapeMetrics.record(MongoDBPoolMetrics.Operation.FIND, "db", "coll", System.nanoTime() - 1_500_000L, doc, sort);
+  }
+
+  @Benchmark
+  public Set<String> legacyGetKeyList() {
+    return legacyKeyList(doc);
+  }
+
+  @Benchmark
+  public Map<String, Integer> legacyGetDepthValue() {
+    Map<String, Integer> result = new HashMap<>();
+    for (String key : legacyKeyList(doc)) {
+      if (key.split("\\.").length != depth)
+        continue;
+      result.put(key, legacyDocValue(doc, key));
+    }
+    return result;
+  }
+
+  @Benchmark
+  public int legacyGetDocValue() {
+    return legacyDocValue(doc, deepestKey);
+  }
+
+  @Benchmark
+  public int getDocValue() {
+    return mongoDB.getDocValue(doc, deepestKey);
+  }
+
+  @Benchmark
+  public void isNumeric(Blackhole bh) {
+    for (String str : numerics) {
+      bh.consume(MongoDB.isNumeric(str));
+    }
+  }
+
+  @Benchmark
+  public Document sanitizeClean() {
+    return MongoDBKeySanitizer.sanitize(doc);
+  }
+
+  @Benchmark
+  public Document sanitizeIllegal() {
+    return MongoDBKeySanitizer.sanitize(illegalDoc);
+  }
+
+  /**
+   * docInsert 의 encode 경로 : key 치환 + collectible DocumentCodec encode
+   */
+  @Benchmark
+  public int encodeInsert() {
+    BasicOutputBuffer buffer = new BasicOutputBuffer();
+    try (BsonBinaryWriter writer = new BsonBinaryWriter(buffer)) {
+      codec.encode(writer, MongoDBKeySanitizer.sanitize(doc), COLLECTIBLE);
+    }
+    return buffer.getPosition();
+  }
+
+  @Benchmark
+  public int encodeInsertIllegal() {
+    BasicOutputBuffer buffer = new BasicOutputBuffer();
+    try (BsonBinaryWriter writer = new BsonBinaryWriter(buffer)) {
+      codec.encode(writer, MongoDBKeySanitizer.sanitize(illegalDoc), COLLECTIBLE);
+    }
+    return buffer.getPosition();
+  }
+
+  /**
+   * findOneRaw / findRaw 결과에서 가장 깊은 field 하나를 읽는다.
+   */
+  @Benchmark
+  public long rawGetDeepest() {
+    return MongoDBRawDocuments.getLong(raw, deepestKey, 0);
+  }
+
+  /**
+   * findOne / find 결과( 전체 decode )에서 같은 field 를 읽는다.
+   */
+  @Benchmark
+  public int decodeGetDeepest() {
+    return MongoDBDocumentFlattener.value(raw.decode(codec), deepestKey);
+  }
+
+  private static Set<String> legacyKeyList(final Document doc) {
+    Set<String> keyList = new HashSet<>();
+    for (Map.Entry<String, Object> entry : doc.entrySet()) {
+      String key = entry.getKey();
+      Object value = entry.getValue();
+      if (value instanceof Document) {
+        for (String keyName : legacyKeyList((Document) value)) {
+          keyList.add(new StringBuilder(key).append(".").append(keyName).toString());
+        }
+      } else {
+        keyList.add(key);
+      }
+    }
+    return keyList;
+  }
+
+  private static int legacyDocValue(final Document obj, final String keyInfo) {
+    Object doc = obj;
+    for (String key : keyInfo.split("\\.")) {
+      if (doc instanceof Document)
+        doc = ((Document) doc).get(key);
+    }
+    try {
+      return Integer.parseInt(doc.toString());
+    } catch (NumberFormatException | NullPointerException e) {
+      return 0;
+    }
+  }
+
+  /**
+   * width 개의 key를 가진 depth 단계의 중첩 Document.
+   * leaf 는 int 이고, 각 단계에 배열 하나를 포함한다.
+   * illegal 이면 leaf 단계의 key 일부에 . 과 $ 를 넣는다.
+   */
+  static Document makeDocument(final int depth, final int width, final String prefix, final boolean illegal) {
+    Document doc = new Document();
+    for (int i = 0; i < width; i++) {
+      String key = prefix + i;
+      if (depth <= 1) {
+        if (illegal && i % 4 == 1) key = key + ".v";
+        if (illegal && i % 4 == 3) key = "$" + key;
+        doc.append(key, i * 31 + depth);
+      } else {
+        doc.append(key, makeDocument(depth - 1, width, "k", illegal));
+      }
+    }
+    List<Object> list = new ArrayList<>();
+    list.add(depth);
+    list.add(new Document("n", depth));
+    doc.append("list", list);
+    return doc;
+  }
+}
@@ -0,0 +1,106 @@
+package com.ea.asiacentraltech.thoth.mongodb;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Logger;
+
+import org.bson.Document;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * MongoDBVirtualPool 부하 test. Java 21 이상과 실행 중인 mongod / mongos 가 필요하다.
+ * -Dmongodb.hosts=mongodb://host:port ( 기본값 localhost:27017 ), -Dmongodb.id / -Dmongodb.pwd
+ * 한번의 호출마다 callers 개의 virtual thread 가 동시에 findOne 을 한번씩 수행하고 모두 끝날 때까지의 시간을 잰다.
+ * callers 가 늘어도 시간이 callers / permits 에 비례하고 timeout 이 0 이면 입장 대기열이 정상적으로 동작하는 것이다.
+ * carrier thread pinning 은 -Djdk.tracePinnedThreads=full 로 확인한다. ( jvmArgsAppend )
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = { "-Djdk.tracePinnedThreads=short" })
+public class MongoDBVirtualPoolBenchmark {
+  private static final String DATABASE = "jmh_virtual";
+  private static final String COLLECTION = "docs";
+  private static final int DOCUMENTS = 1000;
+
+  @Param({ "1000", "10000", "50000" })
+  public int callers;
+
+  @Param({ "32" })
+  public int permits;
+
+  private MongoDBPool pool;
+  private MongoDBVirtualPool virtualPool;
+  private final LongAdder failures = new LongAdder();
+
+  @Setup(Level.Trial)
+  public void setup() throws Exception {
+    MongoManger factory = new MongoManger(Logger.getLogger(MongoDBVirtualPoolBenchmark.class.getName()),
+                                          System.getProperty("mongodb.hosts", "mongodb://localhost:27017"),
+                                          System.getProperty("mongodb.id"),
+                                          System.getProperty("mongodb.pwd"),
+                                          true,
+                                          MongoDBClientProfile.dashboard());
+    pool = new MongoDBPool(factory);
+    pool.setMaxTotal(permits);
+    virtualPool = new MongoDBVirtualPool(pool).setBorrowTimeout(60, TimeUnit.SECONDS);
+    List<Document> docs = new ArrayList<>(DOCUMENTS);
+    for (int i = 0; i < DOCUMENTS; i++) {
+      docs.add(new Document("_id", i).append("type", i % 10).append("message", "log line " + i));
+    }
+    virtualPool.execute(mongoDB -> {
+      mongoDB.getCollectionPrimary(DATABASE, COLLECTION).drop();
+      mongoDB.getCollectionPrimary(DATABASE, COLLECTION).insertMany(docs);
+      return null;
+    });
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() throws Exception {
+    System.out.println("callers=" + callers + " failures=" + failures.sum() + " " + virtualPool.snapshot().toJson());
+    virtualPool.execute(mongoDB -> {
+      mongoDB.getCollectionPrimary(DATABASE, COLLECTION).drop();
+      return null;
+    });
+    pool.close();
+  }
+
+  @Benchmark
+  public int findOne() throws Exception {
+    List<Future<Document>> futures = new ArrayList<>(callers);
+    try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+      for (int i = 0; i < callers; i++) {
+        Document query = new Document("_id", i % DOCUMENTS);
+        futures.add(executor.submit(() -> virtualPool.findOne(DATABASE, COLLECTION, query, null)));
+      }
+    }
+    int found = 0;
+    for (Future<Document> future : futures) {
+      try {
+        if (future.get() != null) found++;
+      } catch (Exception e) {
+        failures.increment();
+      }
+    }
+    return found;
+  }
+}
@@ -0,0 +1,104 @@
+package com.ea.asiacentraltech.thoth.mongodb;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+
+import org.bson.Document;
+import org.bson.types.MaxKey;
+import org.bson.types.MinKey;
+import org.bson.types.ObjectId;
+import org.junit.jupiter.api.Test;
+
+/**
+ * DocumentSortComparator 가 MongoDB 의 sort 와 같은 순서를 만드는지 확인한다.
+ */
+public class DocumentSortComparatorTest {
+
+  @Test
+  public void sortsByKeysInOrderWithDirection() {
+    List<Document> docs = new ArrayList<>(Arrays.asList(new Document("_id", 1).append("a", 1).append("b", "x"),
+                                                        new Document("_id", 2).append("a", 2).append("b", "x"),
+                                                        new Document("_id", 3).append("a", 1).append("b", "y"),
+                                                        new Document("_id", 4).append("a", 2).append("b", "w")));
+    docs.sort(new DocumentSortComparator(new Document("b", -1).append("a", 1)));
+    assertEquals(Arrays.asList(3, 1, 2, 4), ids(docs));
+  }
+
+  @Test
+  public void comparesNumbersAcrossTypes() {
+    List<Document> docs = new ArrayList<>(Arrays.asList(new Document("_id", 1).append("n", 2L),
+                                                        new Document("_id", 2).append("n", 1.5),
+                                                        new Document("_id", 3).append("n", 1),
+                                                        new Document("_id", 4).append("n", Long.MAX_VALUE),
+                                                        new Document("_id", 5).append("n", Long.MAX_VALUE - 1)));
+    docs.sort(new DocumentSortComparator(new Document("n", 1)));
+    assertEquals(Arrays.asList(3, 2, 1, 5, 4), ids(docs));
+  }
+
+  @Test
+  public void followsBsonTypeOrder() {
+    Object[] ordered = { new MinKey(), null, 1, "a", new Document("k", 1), Arrays.asList(1, 2), new ObjectId(),
+                         Boolean.FALSE, new Date(0), new MaxKey() };
+    for (int i = 0; i < ordered.length; i++) {
+      for (int j = 0; j < ordered.length; j++) {
+        int cmp = DocumentSortComparator.compareValue(ordered[i], ordered[j]);
+        assertEquals(Integer.signum(Integer.compare(i, j)), Integer.signum(cmp), i + " vs " + j);
+      }
+    }
+  }
+
+  @Test
+  public void treatsMissingAsNullAndReadsNestedPaths() {
+    List<Document> docs = new ArrayList<>(Arrays.asList(new Document("_id", 1).append("a", new Document("b", 5)),
+                                                        new Document("_id", 2),
+                                                        new Document("_id", 3).append("a", new Document("b", null)),
+                                                        new Document("_id", 4).append("a", new Document("b", -1))));
+    docs.sort(new DocumentSortComparator(new Document("a.b", 1).append("_id", 1)));
+    assertEquals(Arrays.asList(2, 3, 4, 1), ids(docs));
+  }
+
+  @Test
+  public void comparesListsAndDocumentsElementWise() {
+    assertTrue(DocumentSortComparator.compareValue(Arrays.asList(1, 2), Arrays.asList(1, 3)) < 0);
+    assertTrue(DocumentSortComparator.compareValue(Arrays.asList(1, 2), Arrays.asList(1, 2, 0)) < 0);
+    assertTrue(DocumentSortComparator.compareValue(new Document("a", 1), new Document("a", 2)) < 0);
+    assertTrue(DocumentSortComparator.compareValue(new Document("a", 1), new Document("b", 0)) < 0);
+    assertEquals(0, DocumentSortComparator.compareValue(new Document("a", 1L), new Document("a", 1)));
+  }
+
+  @Test
+  public void sortsArrayFieldsByMinOrMaxElement() {
+    List<Document> docs = new ArrayList<>(Arrays.asList(new Document("_id", 1).append("a", Arrays.asList(5, 1)),
+                                                        new Document("_id", 2).append("a", 3),
+                                                        new Document("_id", 3).append("a", Arrays.asList(2, 9)),
+                                                        new Document("_id", 4).append("a", Arrays.asList()),
+                                                        new Document("_id", 5)));
+    // 오름차순은 가장 작은 원소 : [] < null < 1 < 2 < 3
+    docs.sort(new DocumentSortComparator(new Document("a", 1)));
+    assertEquals(Arrays.asList(4, 5, 1, 3, 2), ids(docs));
+    // 내림차순은 가장 큰 원소 : 9 > 5 > 3 > null > []
+    docs.sort(new DocumentSortComparator(new Document("a", -1)));
+    assertEquals(Arrays.asList(3, 1, 2, 5, 4), ids(docs));
+  }
+
+  @Test
+  public void emptySortKeepsOrder() {
+    DocumentSortComparator comparator = new DocumentSortComparator(null);
+    assertFalse(comparator.isSorted());
+    assertEquals(0, comparator.compare(new Document("a", 1), new Document("a", 2)));
+  }
+
+  private static List<Object> ids(final List<Document> docs) {
+    List<Object> ids = new ArrayList<>(docs.size());
+    for (Document doc : docs) {
+      ids.add(doc.get("_id"));
+    }
+    return ids;
+  }
+}
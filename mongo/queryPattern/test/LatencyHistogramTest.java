@@ -0,0 +1,108 @@
+package com.ea.asiacentraltech.thoth.mongodb;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * LatencyHistogram 의 percentile 이 정확한 값보다 작지 않고, 상대 오차 1/32 안에 있는지 확인한다.
+ */
+public class LatencyHistogramTest {
+
+  @Test
+  public void emptyHistogramReturnsZero() {
+    LatencyHistogram histogram = new LatencyHistogram();
+    assertEquals(0, histogram.getCount());
+    assertEquals(0, histogram.getPercentileMicros(50));
+    assertEquals(0, histogram.getMeanMicros());
+    assertEquals(0, histogram.getMaxMicros());
+  }
+
+  @Test
+  public void linearRangeIsExact() {
+    LatencyHistogram histogram = new LatencyHistogram();
+    for (int i = 1; i <= 100; i++) {
+      histogram.record(i);
+    }
+    assertEquals(100, histogram.getCount());
+    assertEquals(1, histogram.getPercentileMicros(0));
+    assertEquals(50, histogram.getPercentileMicros(50));
+    assertEquals(99, histogram.getPercentileMicros(99));
+    assertEquals(100, histogram.getPercentileMicros(100));
+    assertEquals(50, histogram.getMeanMicros());
+    assertEquals(100, histogram.getMaxMicros());
+  }
+
+  @Test
+  public void percentilesStayWithinRelativeError() {
+    Random random = new Random(42);
+    LatencyHistogram histogram = new LatencyHistogram();
+    long[] values = new long[20_000];
+    for (int i = 0; i < values.length; i++) {
+      // 1us ~ 약 1000s 의 log-uniform 분포
+      values[i] = (long) Math.exp(random.nextDouble() * Math.log(1e9));
+      histogram.record(values[i]);
+    }
+    Arrays.sort(values);
+    for (double percentile : new double[] { 1, 10, 50, 90, 95, 99, 99.9, 100 }) {
+      long exact = values[(int) Math.max(0, Math.ceil(values.length * percentile / 100.0) - 1)];
+      long actual = histogram.getPercentileMicros(percentile);
+      assertTrue(actual >= exact, "p" + percentile + " " + actual + " < " + exact);
+      assertTrue(actual <= exact + exact / 32, "p" + percentile + " " + actual + " > " + exact + " * 33/32");
+    }
+  }
+
+  @Test
+  public void bucketBoundsContainValue() {
+    Random random = new Random(7);
+    for (int i = 0; i < 100_000; i++) {
+      long value = random.nextInt(4) == 0 ? random.nextInt(256) : (random.nextLong() >>> 24);
+      int index = LatencyHistogram.indexOf(value);
+      assertTrue(LatencyHistogram.valueOf(index) >= value, "upper bound of " + value);
+      if (index > 0) assertTrue(LatencyHistogram.valueOf(index - 1) < value, "previous bucket of " + value);
+    }
+  }
+
+  @Test
+  public void clampsNegativeAndOverflowingValues() {
+    LatencyHistogram histogram = new LatencyHistogram();
+    histogram.record(-5);
+    assertEquals(0, histogram.getPercentileMicros(100));
+    long huge = 1L << 50;
+    histogram.record(huge);
+    assertEquals(huge, histogram.getPercentileMicros(100));
+    assertEquals(huge, histogram.getMaxMicros());
+  }
+
+  @Test
+  public void recordsNanosAsMicros() {
+    LatencyHistogram histogram = new LatencyHistogram();
+    histogram.recordNanos(TimeUnit.MILLISECONDS.toNanos(3));
+    assertEquals(3000, histogram.getMaxMicros());
+    assertEquals(3000, histogram.getMeanMicros());
+  }
+
+  @Test
+  public void concurrentRecordsAreNotLost() throws Exception {
+    LatencyHistogram histogram = new LatencyHistogram();
+    ExecutorService executor = Executors.newFixedThreadPool(4);
+    for (int t = 0; t < 4; t++) {
+      executor.execute(() -> {
+        for (int i = 0; i < 10_000; i++) {
+          histogram.record(i % 500);
+        }
+      });
+    }
+    executor.shutdown();
+    assertTrue(executor.awaitTermination(30, TimeUnit.SECONDS));
+    assertEquals(40_000, histogram.getCount());
+    assertEquals(499, histogram.getMaxMicros());
+  }
+}
@@ -0,0 +1,257 @@
+package com.ea.asiacentraltech.thoth.mongodb;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.bson.Document;
+import org.junit.jupiter.api.Test;
+
+import com.ea.asiacentraltech.thoth.common.Constant;
+
+/**
+ * MongoDBAnalysisSummary 의 aggregate 결과가 기존 구현( date 의 Document 를 모두 읽어 summary 를 key 별로 더함 )과 같은지 비교한다.
+ * pipeline 은 사용하는 stage / 연산자만 해석하는 evaluate 로 실행하며, $objectToArray 는 Server 처럼 Document 가 아니면 실패한다.
+ */
+public class MongoDBAnalysisSummaryTest {
+  private static final String DATE = "2019-01-02";
+  private static final Object MISSING = new Object();
+
+  @Test
+  public void matchesLegacyOnRandomDocuments() {
+    Random random = new Random(20190102L);
+    for (int iteration = 0; iteration < 500; iteration++) {
+      List<Document> docs = new ArrayList<>();
+      int count = random.nextInt(8);
+      for (int i = 0; i < count; i++) {
+        docs.add(randomDocument(random));
+      }
+      Document actual = MongoDBAnalysisSummary.summaryOf(DATE, evaluate(MongoDBAnalysisSummary.pipeline(DATE), docs));
+      assertNotNull(actual, docs.toString());
+      assertEquals(DATE, actual.get(ConstantMongodb.ID));
+      assertSums(legacySums(docs), (Document) actual.get(MongoDBAnalysisSummary.SUMMARY), docs.toString());
+    }
+  }
+
+  @Test
+  public void skipsMissingAndNonObjectSummary() {
+    List<Document> docs = Arrays.asList(new Document(Constant.DATE, DATE),
+                                        new Document(Constant.DATE, DATE).append(MongoDBAnalysisSummary.SUMMARY, "broken"),
+                                        new Document(Constant.DATE, DATE).append(MongoDBAnalysisSummary.SUMMARY, 3),
+                                        new Document(Constant.DATE, DATE).append(MongoDBAnalysisSummary.SUMMARY, null),
+                                        new Document(Constant.DATE, DATE).append(MongoDBAnalysisSummary.SUMMARY,
+                                                                                 new Document("a", 2)));
+    Document actual = MongoDBAnalysisSummary.summaryOf(DATE, evaluate(MongoDBAnalysisSummary.pipeline(DATE), docs));
+    assertEquals(new Document(ConstantMongodb.ID, DATE).append(MongoDBAnalysisSummary.SUMMARY, new Document("a", 2)), actual);
+  }
+
+  @Test
+  public void nonNumericValueFallsBackToDocuments() {
+    List<Document> docs = Arrays.asList(
+        new Document(Constant.DATE, DATE).append(MongoDBAnalysisSummary.SUMMARY, new Document("a", 1)),
+        new Document(Constant.DATE, DATE).append(MongoDBAnalysisSummary.SUMMARY, new Document("a", new Document("b", 1))));
+    assertNull(MongoDBAnalysisSummary.summaryOf(DATE, evaluate(MongoDBAnalysisSummary.pipeline(DATE), docs)));
+  }
+
+  @Test
+  public void emptyDateHasEmptySummary() {
+    Document actual = MongoDBAnalysisSummary.summaryOf(DATE, evaluate(MongoDBAnalysisSummary.pipeline(DATE),
+                                                                      Collections.<Document>emptyList()));
+    assertEquals(new Document(), actual.get(MongoDBAnalysisSummary.SUMMARY));
+  }
+
+  private static Document randomDocument(final Random random) {
+    Document doc = new Document(ConstantMongodb.ID, random.nextInt())
+        .append(Constant.DATE, random.nextInt(4) == 0 ? "2019-01-01" : DATE);
+    switch (random.nextInt(6)) {
+      case 0:
+        return doc;
+      case 1:
+        return doc.append(MongoDBAnalysisSummary.SUMMARY, "x");
+      default:
+        Document summary = new Document();
+        for (String key : Arrays.asList("read", "write", "error", "a.b")) {
+          if (random.nextBoolean()) continue;
+          switch (random.nextInt(3)) {
+            case 0:
+              summary.append(key, random.nextInt(1000));
+              break;
+            case 1:
+              summary.append(key, (long) random.nextInt(1000) + Integer.MAX_VALUE);
+              break;
+            default:
+              summary.append(key, random.nextInt(1000) / 4.0);
+              break;
+          }
+        }
+        return doc.append(MongoDBAnalysisSummary.SUMMARY, summary);
+    }
+  }
+
+  /**
+   * 기존 구현이 읽는 date 의 Document 들의 summary 를 key 별로 더한다.
+   */
+  private static Map<String, Double> legacySums(final List<Document> docs) {
+    Map<String, Double> sums = new LinkedHashMap<>();
+    for (Document doc : docs) {
+      if (!DATE.equals(doc.get(Constant.DATE))) continue;
+      Object summary = doc.get(MongoDBAnalysisSummary.SUMMARY);
+      if (!(summary instanceof Document)) continue;
+      for (Map.Entry<String, Object> entry : ((Document) summary).entrySet()) {
+        sums.merge(entry.getKey(), ((Number) entry.getValue()).doubleValue(), Double::sum);
+      }
+    }
+    return sums;
+  }
+
+  private static void assertSums(final Map<String, Double> expected, final Document actual, final String message) {
+    assertEquals(expected.keySet(), actual.keySet(), message);
+    for (Map.Entry<String, Double> entry : expected.entrySet()) {
+      assertEquals(entry.getValue(), ((Number) actual.get(entry.getKey())).doubleValue(), 1e-6, message);
+    }
+  }
+
+  /**
+   * $match( 등호 ), $project, $unwind, $group 만 실행한다.
+   */
+  @SuppressWarnings("unchecked")
+  private static List<Document> evaluate(final List<Document> pipeline, final List<Document> docs) {
+    List<Document> current = new ArrayList<>(docs);
+    for (Document stage : pipeline) {
+      Map.Entry<String, Object> entry = stage.entrySet().iterator().next();
+      List<Document> next = new ArrayList<>();
+      switch (entry.getKey()) {
+        case "$match":
+          for (Document doc : current) {
+            boolean match = true;
+            for (Map.Entry<String, Object> condition : ((Document) entry.getValue()).entrySet()) {
+              match &= condition.getValue().equals(doc.get(condition.getKey()));
+            }
+            if (match) next.add(doc);
+          }
+          break;
+        case "$project":
+          for (Document doc : current) {
+            Document projected = new Document();
+            for (Map.Entry<String, Object> field : ((Document) entry.getValue()).entrySet()) {
+              if (ConstantMongodb.ID.equals(field.getKey())) continue;
+              Object value = expression(doc, field.getValue());
+              if (value != MISSING) projected.append(field.getKey(), value);
+            }
+            next.add(projected);
+          }
+          break;
+        case "$unwind":
+          String field = ((String) entry.getValue()).substring(1);
+          for (Document doc : current) {
+            Object value = doc.get(field);
+            if (!(value instanceof List)) {
+              if (value != null) next.add(doc);
+              continue;
+            }
+            for (Object element : (List<Object>) value) {
+              Document unwound = new Document(doc);
+              unwound.put(field, element);
+              next.add(unwound);
+            }
+          }
+          break;
+        case "$group":
+          Document group = (Document) entry.getValue();
+          Map<Object, Document> groups = new LinkedHashMap<>();
+          for (Document doc : current) {
+            Object id = expression(doc, group.get(ConstantMongodb.ID));
+            Document result = groups.computeIfAbsent(id, k -> new Document(ConstantMongodb.ID, k));
+            for (Map.Entry<String, Object> accumulator : group.entrySet()) {
+              if (ConstantMongodb.ID.equals(accumulator.getKey())) continue;
+              Object value = expression(doc, ((Document) accumulator.getValue()).get("$sum"));
+              result.put(accumulator.getKey(), sum(result.get(accumulator.getKey()), value));
+            }
+          }
+          next.addAll(groups.values());
+          break;
+        default:
+          throw new IllegalArgumentException(entry.getKey());
+      }
+      current = next;
+    }
+    return current;
+  }
+
+  @SuppressWarnings("unchecked")
+  private static Object expression(final Document doc, final Object expression) {
+    if (expression instanceof String && ((String) expression).startsWith("$")) {
+      Object value = doc;
+      for (String key : ((String) expression).substring(1).split("\\.")) {
+        if (!(value instanceof Document) || !((Document) value).containsKey(key)) return MISSING;
+        value = ((Document) value).get(key);
+      }
+      return value;
+    }
+    if (expression instanceof List) {
+      List<Object> values = new ArrayList<>();
+      for (Object element : (List<Object>) expression) {
+        values.add(expression(doc, element));
+      }
+      return values;
+    }
+    if (!(expression instanceof Document)) return expression;
+    Map.Entry<String, Object> operator = ((Document) expression).entrySet().iterator().next();
+    if ("$cond".equals(operator.getKey())) {
+      // 선택된 쪽만 계산한다.
+      List<Object> branches = (List<Object>) operator.getValue();
+      return Boolean.TRUE.equals(expression(doc, branches.get(0))) ? expression(doc, branches.get(1))
+                                                                   : expression(doc, branches.get(2));
+    }
+    Object argument = expression(doc, operator.getValue());
+    switch (operator.getKey()) {
+      case "$type":
+        return typeOf(argument);
+      case "$eq":
+        return ((List<Object>) argument).get(0).equals(((List<Object>) argument).get(1));
+      case "$in":
+        return ((List<Object>) ((List<Object>) argument).get(1)).contains(((List<Object>) argument).get(0));
+      case "$objectToArray":
+        if (argument == MISSING || argument == null) return null;
+        if (!(argument instanceof Document)) throw new IllegalStateException("$objectToArray requires a document input");
+        List<Document> pairs = new ArrayList<>();
+        for (Map.Entry<String, Object> entry : ((Document) argument).entrySet()) {
+          pairs.add(new Document("k", entry.getKey()).append("v", entry.getValue()));
+        }
+        return pairs;
+      default:
+        throw new IllegalArgumentException(operator.getKey());
+    }
+  }
+
+  private static String typeOf(final Object value) {
+    if (value == MISSING) return "missing";
+    if (value == null) return "null";
+    if (value instanceof Integer) return "int";
+    if (value instanceof Long) return "long";
+    if (value instanceof Double) return "double";
+    if (value instanceof String) return "string";
+    if (value instanceof Document) return "object";
+    if (value instanceof List) return "array";
+    return value.getClass().getSimpleName();
+  }
+
+  /**
+   * $sum : 숫자가 아닌 값은 무시한다.
+   */
+  private static Object sum(final Object total, final Object value) {
+    Number current = total == null ? 0 : (Number) total;
+    if (!(value instanceof Number)) return current;
+    if (current instanceof Double || value instanceof Double) return current.doubleValue() + ((Number) value).doubleValue();
+    long sum = current.longValue() + ((Number) value).longValue();
+    return sum == (int) sum && !(current instanceof Long) && !(value instanceof Long) ? (Object) (int) sum : (Object) sum;
+  }
+}
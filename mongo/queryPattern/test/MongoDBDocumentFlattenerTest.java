@@ -0,0 +1,158 @@
+package com.ea.asiacentraltech.thoth.mongodb;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import org.bson.Document;
+import org.junit.jupiter.api.Test;
+
+/**
+ * MongoDBDocumentFlattener 와 기존 구현( MongoDB.getKeyList / getDepthValue / getDocValue 를 그대로 옮긴 legacy* )이
+ * 임의의 Document 에서 같은 결과를 내는지 비교한다.
+ * key 에는 . 이 들어가거나 비어있는 경우, 값에는 숫자 문자열, Long, Double, null, 배열을 섞는다.
+ */
+public class MongoDBDocumentFlattenerTest {
+  private static final int ITERATIONS = 2000;
+  private static final int MAX_DEPTH = 5;
+  private static final String[] KEYS = { "a", "b", "c", "k0", "k1", "", ".", "..", "a.b", "a.", ".a", "b.c.", "$x" };
+
+  @Test
+  public void matchesLegacyOnRandomDocuments() {
+    Random random = new Random(20190101L);
+    for (int iteration = 0; iteration < ITERATIONS; iteration++) {
+      Document doc = randomDocument(random, 1 + random.nextInt(MAX_DEPTH));
+      String message = "iteration " + iteration + " : " + doc;
+
+      Set<String> legacyKeys = legacyKeyList(doc);
+      assertEquals(legacyKeys, MongoDBDocumentFlattener.keys(doc), message);
+
+      for (int depth = 0; depth <= MAX_DEPTH + 1; depth++) {
+        assertEquals(legacyDepthValue(doc, depth), MongoDBDocumentFlattener.depthValues(doc, depth).toMap(),
+                     message + " depth " + depth);
+      }
+
+      List<String> paths = new ArrayList<>(legacyKeys);
+      for (int i = 0; i < 5; i++) {
+        paths.add(randomPath(random));
+      }
+      for (String path : paths) {
+        assertEquals(legacyDocValue(doc, path), MongoDBDocumentFlattener.value(doc, path), message + " path " + path);
+      }
+    }
+  }
+
+  @Test
+  public void matchesLegacyOnEdgeCaseKeys() {
+    Document doc = new Document("a.b", 1)
+        .append("a", new Document("b", 2).append("", 3).append(".", 4))
+        .append("", new Document("", 5))
+        .append(".", 6)
+        .append("x", new Document("y.", 7).append("z", new Document()));
+    assertEquals(legacyKeyList(doc), MongoDBDocumentFlattener.keys(doc));
+    for (int depth = 0; depth <= 4; depth++) {
+      assertEquals(legacyDepthValue(doc, depth), MongoDBDocumentFlattener.depthValues(doc, depth).toMap(), "depth " + depth);
+    }
+    for (String path : Arrays.asList("", ".", "..", "a", "a.b", "a.", "a..", ".a", "x.y", "x.y.", "x.z", "q.r")) {
+      assertEquals(legacyDocValue(doc, path), MongoDBDocumentFlattener.value(doc, path), "path " + path);
+    }
+  }
+
+  @Test
+  public void splitLengthMatchesStringSplit() {
+    for (String path : Arrays.asList("", ".", "..", "a", "a.b", "a.", "a..", ".a", "..a", "a..b", ".a.", "a.b.c")) {
+      assertEquals(path.split("\\.").length, MongoDBDocumentFlattener.splitLength(path), path);
+    }
+  }
+
+  private static Document randomDocument(final Random random, final int depth) {
+    Document doc = new Document();
+    int width = random.nextInt(5);
+    for (int i = 0; i < width; i++) {
+      String key = KEYS[random.nextInt(KEYS.length)];
+      if (depth > 1 && random.nextInt(3) == 0) {
+        doc.append(key, randomDocument(random, depth - 1));
+      } else {
+        doc.append(key, randomValue(random));
+      }
+    }
+    return doc;
+  }
+
+  private static Object randomValue(final Random random) {
+    switch (random.nextInt(8)) {
+      case 0:
+        return null;
+      case 1:
+        return (long) random.nextInt(1000);
+      case 2:
+        return String.valueOf(random.nextInt(1000) - 500);
+      case 3:
+        return "abc";
+      case 4:
+        return random.nextDouble();
+      case 5:
+        return Arrays.asList(1, 2);
+      case 6:
+        return new Document();
+      default:
+        return random.nextInt(1000);
+    }
+  }
+
+  private static String randomPath(final Random random) {
+    StringBuilder path = new StringBuilder();
+    int segments = random.nextInt(4);
+    for (int i = 0; i < segments; i++) {
+      if (i > 0) path.append('.');
+      path.append(KEYS[random.nextInt(KEYS.length)]);
+    }
+    return path.toString();
+  }
+
+  private static Set<String> legacyKeyList(final Document doc) {
+    Set<String> keyList = new HashSet<>();
+    for (Map.Entry<String, Object> entry : doc.entrySet()) {
+      String key = entry.getKey();
+      Object value = entry.getValue();
+      if (value instanceof Document) {
+        for (String keyName : legacyKeyList((Document) value)) {
+          keyList.add(new StringBuilder(key).append(".").append(keyName).toString());
+        }
+      } else {
+        keyList.add(key);
+      }
+    }
+    return keyList;
+  }
+
+  private static Map<String, Integer> legacyDepthValue(final Document doc, final int depth) {
+    Map<String, Integer> result = new HashMap<>();
+    for (String key : legacyKeyList(doc)) {
+      if (key.split("\\.").length != depth)
+        continue;
+      result.put(key, legacyDocValue(doc, key));
+    }
+    return result;
+  }
+
+  private static int legacyDocValue(final Document obj, final String keyInfo) {
+    Object doc = obj;
+    for (String key : keyInfo.split("\\.")) {
+      if (doc instanceof Document)
+        doc = ((Document) doc).get(key);
+    }
+    try {
+      return Integer.parseInt(doc.toString());
+    } catch (NumberFormatException | NullPointerException e) {
+      return 0;
+    }
+  }
+}
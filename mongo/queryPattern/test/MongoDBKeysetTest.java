@@ -0,0 +1,238 @@
+package com.ea.asiacentraltech.thoth.mongodb;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import org.bson.Document;
+import org.junit.jupiter.api.Test;
+
+/**
+ * MongoDBKeyset 의 page token round-trip, sort key 를 포함하는 projection 과 strip, range 조건을 확인한다.
+ */
+public class MongoDBKeysetTest {
+
+  @Test
+  public void appendsIdToSort() {
+    assertEquals(new Document("a", -1).append("_id", 1), new MongoDBKeyset(new Document("a", -1), null).getSort());
+    assertEquals(new Document("_id", -1), new MongoDBKeyset(new Document("_id", -1), null).getSort());
+    assertEquals(new Document("_id", 1), new MongoDBKeyset(null, null).getSort());
+  }
+
+  @Test
+  public void tokenRoundTrip() {
+    MongoDBKeyset keyset = new MongoDBKeyset(new Document("a", 1), null);
+    MongoDBKeyset.Position position = new MongoDBKeyset.Position();
+    position.put("db1.coll", Arrays.asList(5, "id5"));
+    position.put("db2.coll", Arrays.asList(null, "id9"));
+    position.done("db3.coll");
+
+    MongoDBKeyset.Position decoded = keyset.decode(keyset.encode(position));
+    assertEquals(Arrays.asList(5, "id5"), decoded.get("db1.coll"));
+    assertEquals(Arrays.asList(null, "id9"), decoded.get("db2.coll"));
+    assertNull(decoded.get("db3.coll"));
+    assertTrue(decoded.isDone("db3.coll"));
+    assertFalse(decoded.isDone("db1.coll"));
+  }
+
+  @Test
+  public void emptyTokenIsFirstPage() {
+    MongoDBKeyset keyset = new MongoDBKeyset(new Document("a", 1), null);
+    assertNull(keyset.decode(null).get("db.coll"));
+    assertNull(keyset.decode("").get("db.coll"));
+  }
+
+  @Test
+  public void rejectsTokenOfOtherSortOrGarbage() {
+    MongoDBKeyset keyset = new MongoDBKeyset(new Document("a", 1), null);
+    MongoDBKeyset.Position position = new MongoDBKeyset.Position();
+    position.put("db.coll", Arrays.asList(1, 2));
+    String token = keyset.encode(position);
+    assertThrows(IllegalArgumentException.class, () -> new MongoDBKeyset(new Document("a", -1), null).decode(token));
+    assertThrows(IllegalArgumentException.class, () -> keyset.decode("not a token"));
+  }
+
+  @Test
+  public void rejectsTokenWithWrongFieldTypes() {
+    MongoDBKeyset keyset = new MongoDBKeyset(new Document("a", 1), null);
+    Document sort = keyset.getSort();
+    for (Document crafted : Arrays.asList(new Document("s", sort).append("p", "x"),
+                                          new Document("s", sort).append("p", new Document("db.coll", 5)),
+                                          new Document("s", sort).append("p", new Document("db.coll", null)),
+                                          new Document("s", sort).append("d", "db.coll"),
+                                          new Document("s", sort).append("d", Arrays.asList(1)))) {
+      String token = Base64.getUrlEncoder().encodeToString(crafted.toJson().getBytes(StandardCharsets.UTF_8));
+      assertThrows(IllegalArgumentException.class, () -> keyset.decode(token), crafted.toString());
+    }
+  }
+
+  @Test
+  public void excludedIdIsFetchedForTokenAndStripped() {
+    MongoDBKeyset keyset = new MongoDBKeyset(new Document("a", 1), new Document("_id", 0).append("a", 1));
+    Document projection = keyset.getProjection();
+    assertFalse(projection.containsKey("_id"), projection.toString());
+    assertEquals(1, projection.get("a"));
+
+    Document doc = new Document("_id", 7).append("a", 3);
+    assertEquals(Arrays.asList(3, 7), keyset.valuesOf(doc));
+    keyset.strip(Collections.singletonList(doc));
+    assertEquals(new Document("a", 3), doc);
+  }
+
+  @Test
+  public void inclusionAddsMissingSortKeys() {
+    MongoDBKeyset keyset = new MongoDBKeyset(new Document("b.c", -1), new Document("a", 1));
+    assertEquals(new Document("a", 1).append("b.c", 1), keyset.getProjection());
+
+    Document doc = new Document("_id", 1).append("a", 2).append("b", new Document("c", 3));
+    assertEquals(Arrays.asList(3, 1), keyset.valuesOf(doc));
+    keyset.strip(Collections.singletonList(doc));
+    assertEquals(new Document("_id", 1).append("a", 2), doc);
+  }
+
+  @Test
+  public void coveredSortKeysKeepCallerProjection() {
+    Document fields = new Document("a", 1);
+    MongoDBKeyset keyset = new MongoDBKeyset(new Document("a.b", 1), fields);
+    assertSame(fields, keyset.getProjection());
+    Document doc = new Document("_id", 1).append("a", new Document("b", 2));
+    keyset.strip(Collections.singletonList(doc));
+    assertEquals(new Document("_id", 1).append("a", new Document("b", 2)), doc);
+  }
+
+  @Test
+  public void exclusionOfSortKeyIsLiftedAndStripped() {
+    MongoDBKeyset keyset = new MongoDBKeyset(new Document("a.b", 1), new Document("a", 0).append("big", 0));
+    assertEquals(new Document("big", 0), keyset.getProjection());
+
+    Document doc = new Document("_id", 1).append("a", new Document("b", 2).append("c", 3)).append("x", 4);
+    keyset.strip(Collections.singletonList(doc));
+    assertEquals(new Document("_id", 1).append("x", 4), doc);
+  }
+
+  @Test
+  public void noProjectionIsUnchanged() {
+    MongoDBKeyset keyset = new MongoDBKeyset(new Document("a", 1), null);
+    assertNull(keyset.getProjection());
+  }
+
+  @Test
+  public void afterBuildsRangeOnSortKeys() {
+    MongoDBKeyset keyset = new MongoDBKeyset(new Document("a", -1), null);
+    Document query = new Document("type", 3);
+    assertSame(query, keyset.after(query, null));
+
+    Document range = new Document("$or", Arrays.asList(new Document("$or", Arrays.asList(new Document("a", new Document("$lt", 5)),
+                                                                                         new Document("a", null))),
+                                                       new Document("a", 5).append("_id", new Document("$gt", 9))));
+    assertEquals(range, keyset.after(null, Arrays.asList(5, 9)));
+    assertEquals(new Document("$and", Arrays.asList(query, range)), keyset.after(query, Arrays.asList(5, 9)));
+  }
+
+  @Test
+  public void nullSortValueContinuesPastNulls() {
+    MongoDBKeyset ascending = new MongoDBKeyset(new Document("a", 1), null);
+    List<Object> values = Arrays.asList(null, 9);
+    assertEquals(new Document("$or", Arrays.asList(new Document("a", new Document("$ne", null)),
+                                                   new Document("a", null).append("_id", new Document("$gt", 9)))),
+                 ascending.after(null, values));
+
+    // 내림차순에서는 null 뒤에 오는 값이 없으므로 같은 null 안에서 _id 로만 이어간다.
+    MongoDBKeyset descending = new MongoDBKeyset(new Document("a", -1), null);
+    assertEquals(new Document("$or", Arrays.asList(new Document("a", null).append("_id", new Document("$gt", 9)))),
+                 descending.after(null, values));
+  }
+
+  @Test
+  public void descendingPagesReachNullsAfterValues() {
+    List<Document> docs = Arrays.asList(new Document("_id", 1).append("a", 3),
+                                        new Document("_id", 2),
+                                        new Document("_id", 3).append("a", 7),
+                                        new Document("_id", 4).append("a", null),
+                                        new Document("_id", 5).append("a", 3),
+                                        new Document("_id", 6).append("a", 1),
+                                        new Document("_id", 7));
+    for (int direction : new int[] { -1, 1 }) {
+      MongoDBKeyset keyset = new MongoDBKeyset(new Document("a", direction), null);
+      List<Document> expected = new ArrayList<>(docs);
+      expected.sort(new DocumentSortComparator(keyset.getSort()));
+
+      // page 크기 2 로 끝까지 넘기면 모든 Document 가 sort 순서대로 한 번씩 나와야 한다.
+      List<Document> paged = new ArrayList<>();
+      List<Object> values = null;
+      while (true) {
+        Document query = keyset.after(null, values);
+        List<Document> page = new ArrayList<>();
+        for (Document doc : expected) {
+          if (query == null || matches(doc, query)) page.add(doc);
+          if (page.size() == 2) break;
+        }
+        if (page.isEmpty()) break;
+        paged.addAll(page);
+        values = keyset.valuesOf(page.get(page.size() - 1));
+      }
+      assertEquals(expected, paged, "direction " + direction);
+    }
+  }
+
+  /**
+   * after 가 만드는 조건( $or, $and, $lt, $gt, $ne, 등호, $exists )만 해석하는 matcher.
+   * 숫자와 null 만 다루며, $lt / $gt 는 서버처럼 null / 없음 을 match 하지 않는다.
+   */
+  @SuppressWarnings("unchecked")
+  private static boolean matches(final Document doc, final Document query) {
+    for (Map.Entry<String, Object> entry : query.entrySet()) {
+      String key = entry.getKey();
+      if ("$or".equals(key) || "$and".equals(key)) {
+        boolean any = false;
+        boolean all = true;
+        for (Document sub : (List<Document>) entry.getValue()) {
+          boolean match = matches(doc, sub);
+          any |= match;
+          all &= match;
+        }
+        if ("$or".equals(key) ? !any : !all) return false;
+        continue;
+      }
+      Object value = doc.get(key);
+      Object condition = entry.getValue();
+      if (!(condition instanceof Document)) {
+        if (DocumentSortComparator.compareValue(value, condition) != 0) return false;
+        continue;
+      }
+      for (Map.Entry<String, Object> operator : ((Document) condition).entrySet()) {
+        Object operand = operator.getValue();
+        boolean match;
+        switch (operator.getKey()) {
+          case "$lt":
+            match = value instanceof Number && DocumentSortComparator.compareValue(value, operand) < 0;
+            break;
+          case "$gt":
+            match = value instanceof Number && DocumentSortComparator.compareValue(value, operand) > 0;
+            break;
+          case "$ne":
+            match = DocumentSortComparator.compareValue(value, operand) != 0;
+            break;
+          case "$exists":
+            match = doc.containsKey(key) == Boolean.TRUE.equals(operand);
+            break;
+          default:
+            throw new IllegalArgumentException(operator.getKey());
+        }
+        if (!match) return false;
+      }
+    }
+    return true;
+  }
+}
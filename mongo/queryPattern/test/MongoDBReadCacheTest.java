@@ -0,0 +1,225 @@
+package com.ea.asiacentraltech.thoth.mongodb;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.bson.Document;
+import org.junit.jupiter.api.Test;
+
+/**
+ * MongoDBReadCache 의 read-through, namespace / database 단위 무효화, TTL, 크기 제한과 admission, 값 복사를 확인한다.
+ */
+public class MongoDBReadCacheTest {
+
+  @Test
+  public void loadsOnceUntilInvalidated() {
+    MongoDBReadCache cache = new MongoDBReadCache(100, 60_000);
+    Counter loader = new Counter("v");
+    assertEquals("v", cache.get("db", "coll", "k", loader));
+    assertEquals("v", cache.get("db", "coll", "k", loader));
+    assertEquals(1, loader.count.get());
+    assertEquals(1, cache.getHitCount());
+
+    cache.invalidate("db", "coll");
+    assertEquals("v", cache.get("db", "coll", "k", loader));
+    assertEquals(2, loader.count.get());
+  }
+
+  @Test
+  public void cachesNullResults() {
+    MongoDBReadCache cache = new MongoDBReadCache(100, 60_000);
+    Counter loader = new Counter(null);
+    assertNull(cache.get("db", "coll", "k", loader));
+    assertNull(cache.get("db", "coll", "k", loader));
+    assertEquals(1, loader.count.get());
+  }
+
+  @Test
+  public void collectionInvalidationKeepsOtherNamespaces() {
+    MongoDBReadCache cache = new MongoDBReadCache(100, 60_000);
+    Counter target = new Counter("a");
+    Counter sibling = new Counter("b");
+    Counter collections = new Counter("list");
+    cache.get("db", "coll", "k", target);
+    cache.get("db", "other", "k", sibling);
+    cache.get("db", null, "listCollectionNames", collections);
+
+    cache.invalidate("db", "coll");
+    cache.get("db", "coll", "k", target);
+    cache.get("db", "other", "k", sibling);
+    cache.get("db", null, "listCollectionNames", collections);
+    assertEquals(2, target.count.get());
+    assertEquals(1, sibling.count.get());
+    assertEquals(1, collections.count.get());
+  }
+
+  @Test
+  public void databaseInvalidationCoversCollectionsAndDatabaseList() {
+    MongoDBReadCache cache = new MongoDBReadCache(100, 60_000);
+    Counter coll = new Counter("a");
+    Counter collections = new Counter("list");
+    Counter databases = new Counter("dbs");
+    Counter otherDatabase = new Counter("x");
+    cache.get("db", "coll", "k", coll);
+    cache.get("db", null, "listCollectionNames", collections);
+    cache.get(null, null, "listDatabaseNames", databases);
+    cache.get("other", "coll", "k", otherDatabase);
+
+    cache.invalidateDatabase("db");
+    cache.get("db", "coll", "k", coll);
+    cache.get("db", null, "listCollectionNames", collections);
+    cache.get(null, null, "listDatabaseNames", databases);
+    cache.get("other", "coll", "k", otherDatabase);
+    assertEquals(2, coll.count.get());
+    assertEquals(2, collections.count.get());
+    assertEquals(2, databases.count.get());
+    assertEquals(1, otherDatabase.count.get());
+  }
+
+  @Test
+  public void writeDuringLoadDiscardsLoadedValue() {
+    MongoDBReadCache cache = new MongoDBReadCache(100, 60_000);
+    AtomicInteger loads = new AtomicInteger();
+    MongoDBReadCache.Loader<String, RuntimeException> racing = () -> {
+      // load 와 같은 namespace 에 쓰기가 일어난 경우
+      if (loads.incrementAndGet() == 1) cache.invalidate("db", "coll");
+      return "v" + loads.get();
+    };
+    assertEquals("v1", cache.get("db", "coll", "k", racing));
+    assertEquals("v2", cache.get("db", "coll", "k", racing));
+    assertEquals("v2", cache.get("db", "coll", "k", racing));
+    assertEquals(2, loads.get());
+  }
+
+  @Test
+  public void zeroTtlBypassesCache() {
+    MongoDBReadCache cache = new MongoDBReadCache(100, 60_000);
+    cache.setTtl("db", "live", 0);
+    Counter live = new Counter("v");
+    cache.get("db", "live", "k", live);
+    cache.get("db", "live", "k", live);
+    assertEquals(2, live.count.get());
+    assertEquals(0, cache.size());
+  }
+
+  @Test
+  public void expiresAfterTtl() throws Exception {
+    MongoDBReadCache cache = new MongoDBReadCache(100, 20);
+    Counter loader = new Counter("v");
+    cache.get("db", "coll", "k", loader);
+    Thread.sleep(60);
+    cache.get("db", "coll", "k", loader);
+    assertEquals(2, loader.count.get());
+  }
+
+  @Test
+  public void staysWithinMaximumSize() {
+    MongoDBReadCache cache = new MongoDBReadCache(8, 60_000);
+    for (int i = 0; i < 100; i++) {
+      cache.get("db", "coll", "k" + i, new Counter(i));
+    }
+    assertTrue(cache.size() <= 8, "size " + cache.size());
+  }
+
+  @Test
+  public void defaultCachesOnlyMetaAndAnalysis() {
+    MongoDBReadCache cache = new MongoDBReadCache();
+    Counter meta = new Counter("m");
+    Counter analysis = new Counter("a");
+    Counter databases = new Counter("dbs");
+    Counter log = new Counter("l");
+    for (int i = 0; i < 2; i++) {
+      cache.get(ConstantMongodb.DATABASE_META, "coll", "k", meta);
+      cache.get(ConstantMongodb.DATABASE_ANALYSIS, "coll", "k", analysis);
+      cache.get(null, null, "listDatabaseNames", databases);
+      cache.get("log", "coll", "k", log);
+    }
+    assertEquals(1, meta.count.get());
+    assertEquals(1, analysis.count.get());
+    assertEquals(1, databases.count.get());
+    assertEquals(2, log.count.get());
+  }
+
+  @Test
+  public void admitsOnlyMoreFrequentKeysWhenFull() {
+    MongoDBReadCache cache = new MongoDBReadCache(2, 60_000);
+    Counter first = new Counter("1");
+    Counter second = new Counter("2");
+    Counter third = new Counter("3");
+    cache.get("db", "coll", "k1", first);
+    cache.get("db", "coll", "k2", second);
+
+    // 한번 조회된 k3 는 가장 오래된 k1 보다 자주 조회되지 않았으므로 들어가지 못한다.
+    cache.get("db", "coll", "k3", third);
+    assertEquals(1L, cache.snapshot().get("rejections"));
+    assertEquals(2, cache.size());
+    cache.get("db", "coll", "k1", first);
+    assertEquals(1, first.count.get());
+
+    // k1 과 같은 빈도로는 여전히 거절되고, 더 자주 조회되면 k1 을 밀어낸다.
+    cache.get("db", "coll", "k3", third);
+    assertEquals(2L, cache.snapshot().get("rejections"));
+    cache.get("db", "coll", "k3", third);
+    assertEquals(3, third.count.get());
+    assertEquals(1L, cache.snapshot().get("evictions"));
+
+    cache.get("db", "coll", "k3", third);
+    cache.get("db", "coll", "k2", second);
+    assertEquals(3, third.count.get());
+    assertEquals(1, second.count.get());
+    cache.get("db", "coll", "k1", first);
+    assertEquals(2, first.count.get());
+  }
+
+  @Test
+  public void returnedValuesAreCopies() {
+    MongoDBReadCache cache = new MongoDBReadCache(100, 60_000);
+    List<Object> tags = new ArrayList<>(Arrays.asList("x"));
+    Document loaded = new Document("a", new Document("b", 1)).append("tags", tags);
+    assertSame(loaded, cache.get("db", "coll", "k", () -> loaded));
+
+    // load 한 쪽과 조회한 쪽의 변경이 cache 에 남지 않아야 한다.
+    loaded.get("a", Document.class).put("b", 2);
+    tags.add("y");
+    Document hit = cache.get("db", "coll", "k", () -> null);
+    assertEquals(new Document("a", new Document("b", 1)).append("tags", Arrays.asList("x")), hit);
+    hit.get("a", Document.class).put("b", 3);
+    hit.put("c", 4);
+    assertEquals(new Document("a", new Document("b", 1)).append("tags", Arrays.asList("x")),
+                 cache.get("db", "coll", "k", () -> null));
+  }
+
+  @Test
+  public void keyDistinguishesConditions() {
+    String a = MongoDBReadCache.key("findOne", new Document("a", 1));
+    String b = MongoDBReadCache.key("findOne", new Document("a", 2));
+    String withFields = MongoDBReadCache.key("findOne", new Document("a", 1), new Document("x", 1));
+    assertNotEquals(a, b);
+    assertNotEquals(a, withFields);
+    assertNotEquals(MongoDBReadCache.key("findOne", (Document) null), MongoDBReadCache.key("count", (Document) null));
+    assertEquals(a, MongoDBReadCache.key("findOne", new Document("a", 1)));
+  }
+
+  private static final class Counter implements MongoDBReadCache.Loader<Object, RuntimeException> {
+    private final Object value;
+    private final AtomicInteger count = new AtomicInteger();
+
+    Counter(final Object value) {
+      this.value = value;
+    }
+
+    @Override
+    public Object load() {
+      count.incrementAndGet();
+      return value;
+    }
+  }
+}